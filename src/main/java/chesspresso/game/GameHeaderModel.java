@@ -66,6 +66,8 @@ public class GameHeaderModel
     private LinkedList m_otherTags;
     private LinkedList m_otherTagValues;
     private long m_long;
+    private long m_movetextOffset;
+    private int m_movetextLength;
 
     /*================================================================================*/
 
@@ -74,6 +76,8 @@ public class GameHeaderModel
         m_standardTags = new String[NUM_OF_STANDARD_TAGS];
         m_otherTags = null;
         m_long = -1;
+        m_movetextOffset = -1;
+        m_movetextLength = -1;
     }
 
     public GameHeaderModel(DataInput in, int mode) throws IOException
@@ -81,6 +85,8 @@ public class GameHeaderModel
         m_standardTags = new String[NUM_OF_STANDARD_TAGS];
         m_otherTags = null;
         m_long = -1;
+        m_movetextOffset = -1;
+        m_movetextLength = -1;
         load(in, mode);
     }
 
@@ -90,6 +96,18 @@ public class GameHeaderModel
     public long getLong() {return m_long;}
     public void setLong(long l) {m_long = l;}
 
+    /*================================================================================*/
+    // use to store the position of the movetext in a PGN file, -1 if unknown
+
+    public long getMovetextOffset() {return m_movetextOffset;}
+    public int getMovetextLength()  {return m_movetextLength;}
+
+    public void setMovetext(long offset, int length)
+    {
+        m_movetextOffset = offset;
+        m_movetextLength = length;
+    }
+
     /*================================================================================*/
 
     private int getStandardTagIndex(String tagName)
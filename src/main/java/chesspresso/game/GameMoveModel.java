@@ -64,13 +64,49 @@ public class GameMoveModel
 
     //======================================================================
 
+    /**
+     * Fills a model with its moves on first access, see {@link GameMoveModel#GameMoveModel(Decoder)}.
+     */
+    public interface Decoder
+    {
+        /**
+         * Adds the moves to an empty model, e.g. through a {@link Game}. The
+         * moves of the model are then taken over by the model being decoded.
+         *
+         *@param model the model to fill
+         */
+        void decode(GameMoveModel model);
+    }
+
+    //======================================================================
+
     private short[] m_moves;
     private int m_size;
     private int m_hashCode;
+    private volatile Decoder m_decoder;     // null once the moves are present
 
     //======================================================================
 
     public GameMoveModel()
+    {
+        init();
+    }
+
+    /**
+     * Creates a model whose moves are added by the decoder on the first access
+     * to moves, comments, NAGs or lines. Until then the model takes no space
+     * besides the decoder. The moves are decoded once, also if the model is
+     * shared between threads: a thread accessing the model while another one
+     * decodes it waits for the moves.
+     *
+     *@param decoder the decoder
+     */
+    public GameMoveModel(Decoder decoder)
+    {
+        m_decoder = decoder;
+    }
+
+    private void init()
     {
         m_moves = new short[MIN_ALLOC_SIZE];
         m_moves[0] = LINE_START;
@@ -79,6 +115,34 @@ public class GameMoveModel
         m_hashCode = 0;
     }
 
+    /**
+     * Returns whether the moves are present, i.e. the model has not been created
+     * with a {@link Decoder} or the moves have been decoded.
+     */
+    public boolean isDecoded()
+    {
+        return m_decoder == null;
+    }
+
+    private void decode()
+    {
+        if (m_decoder != null) {
+            synchronized (this) {
+                Decoder decoder = m_decoder;
+                if (decoder != null) {
+                    // decode into a separate model, so that no other thread sees
+                    // the moves before they are complete
+                    GameMoveModel model = new GameMoveModel();
+                    decoder.decode(model);
+                    m_moves = model.m_moves;
+                    m_size = model.m_size;
+                    m_hashCode = model.m_hashCode;
+                    m_decoder = null;  // publishes the moves
+                }
+            }
+        }
+    }
+
     public GameMoveModel(DataInput in, int mode) throws IOException
     {
         load(in, mode);
@@ -114,6 +178,7 @@ public class GameMoveModel
 
     public boolean hasNag(int index, short nag)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("hasNag " + index + " nag " + nag);
             LOGGER.debug( writeToString() );
@@ -132,6 +197,7 @@ public class GameMoveModel
 
     public short[] getNags(int index)
     {
+        decode();
         if (EXTRA_CHECKS)
             if (!isMoveValue(m_moves[index]))
                 throw new RuntimeException("No move at index " + index + " move=" + valueToString(m_moves[index]));
@@ -150,6 +216,7 @@ public class GameMoveModel
 
     public void addNag(int index, short nag)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("addNag " + index + " nag " + nag);
             LOGGER.debug( writeToString() );
@@ -169,6 +236,7 @@ public class GameMoveModel
 
     public boolean removeNag(int index, short nag)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("removeNag " + index + " nag " + nag);
             LOGGER.debug( writeToString() );
@@ -220,6 +288,7 @@ public class GameMoveModel
 
     public String getComment(int index)
     {
+        decode();
         if (EXTRA_CHECKS)
             if (!isMoveValue(m_moves[index]) && index != 0)  // comment at index 0 allowed
                 throw new RuntimeException("No move at index " + index + " move=" + valueToString(m_moves[index]));
@@ -254,6 +323,7 @@ public class GameMoveModel
 
     public String getPreMoveComment(int index)
     {
+        decode();
         if (EXTRA_CHECKS)
             if (!isMoveValue(m_moves[index]) && index != 0)  // comment at index 0 allowed
                 throw new RuntimeException("No move at index " + index + " move=" + valueToString(m_moves[index]));
@@ -276,6 +346,7 @@ public class GameMoveModel
 
     public boolean addComment(int index, String comment)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("addComment " + index+ " comment " + comment);
             LOGGER.debug( writeToString() );
@@ -309,6 +380,7 @@ public class GameMoveModel
 
     public boolean addPreMoveComment(int index, String comment)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("addPreMoveComment " + index+ " comment " + comment);
             LOGGER.debug( writeToString() );
@@ -338,6 +410,7 @@ public class GameMoveModel
 
     public boolean removeComment(int index)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("removeComment " + index);
             LOGGER.debug( writeToString() );
@@ -370,6 +443,7 @@ public class GameMoveModel
 
     public boolean setComment(int index, String comment)
     {
+        decode();
         boolean changed = removeComment(index);
         return addComment(index, comment) || changed;
     }
@@ -378,6 +452,7 @@ public class GameMoveModel
 
     public boolean hasLines()
     {
+        decode();
         for (int i=1; i<m_size; i++) {
             if (m_moves[i] == LINE_START) return true;
         }
@@ -386,6 +461,7 @@ public class GameMoveModel
 
     public int getTotalNumOfPlies()
     {
+        decode();
         int num = 0;
         for (int index = 0; index < m_size; index++) {
             if (isMoveValue(m_moves[index])) num++;
@@ -393,8 +469,33 @@ public class GameMoveModel
         return num;
     }
 
+    /**
+     * Returns the moves of the main line from the start of the game, e.g. to
+     * replay them with {@link chesspresso.position.Position#replay(short[], int, int, long[])}.
+     *
+     *@return the moves of the main line
+     */
+    public short[] getMainLine()
+    {
+        decode();
+        int num = 0;
+        for (int index = 0; hasNextMove(index); ) {
+            index = goForward(index);
+            num++;
+        }
+
+        short[] moves = new short[num];
+        int index = 0;
+        for (int i = 0; i < num; i++) {
+            index = goForward(index);
+            moves[i] = m_moves[index];
+        }
+        return moves;
+    }
+
     public int getTotalCommentSize()
     {
+        decode();
         boolean inComment = false;
         int num = 0;
         for (int i=0; i<m_size; i++) {
@@ -408,6 +509,7 @@ public class GameMoveModel
 
     public short getMove(int index)
     {
+        decode();
         if (index >= 0 && index < m_size) {
             short move = m_moves[index];
             return (isMoveValue(move) ? move : NO_MOVE);
@@ -421,6 +523,7 @@ public class GameMoveModel
      */
     public int goBack(int index, boolean gotoMainLine)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("goBack " + index + " " + gotoMainLine);
             LOGGER.debug( writeToString() );
@@ -469,6 +572,7 @@ public class GameMoveModel
      */
     public int goForward(int index)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("goForward " + index);
             LOGGER.debug( writeToString() );
@@ -496,6 +600,7 @@ public class GameMoveModel
 
     public int goForward(int index, int whichLine)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("goForward " + index + " " + whichLine);
             LOGGER.debug( writeToString() );
@@ -527,6 +632,7 @@ public class GameMoveModel
 
     public int getNumOfNextMoves(int index)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("getNumOfNextMoves " + index);
             LOGGER.debug( writeToString() );
@@ -559,6 +665,7 @@ public class GameMoveModel
 
     public boolean hasNextMove(int index)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("hasNextMove " + index);
             LOGGER.debug( writeToString() );
@@ -638,6 +745,7 @@ public class GameMoveModel
 
     public int appendAsRightMostLine(int index, short move)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("appendAsRightMostLine " + index + " " + Move.getString(move));
             LOGGER.debug( writeToString() );
@@ -672,6 +780,7 @@ public class GameMoveModel
 
     public void deleteCurrentLine(int index)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("deleteCurrentLine " + index);
             LOGGER.debug( writeToString() );
@@ -712,6 +821,7 @@ public class GameMoveModel
 
     public int pack(int index)
     {
+        decode();
         if (DEBUG) {
             LOGGER.debug("pack");
             LOGGER.debug( writeToString() );
@@ -746,6 +856,7 @@ public class GameMoveModel
 
     public void load(DataInput in, int mode) throws IOException
     {
+        m_decoder = null;
         m_size = in.readInt() + 2;
         m_moves = new short[m_size];
         byte[] data = new byte[2 * (m_size - 2)];
@@ -762,6 +873,7 @@ public class GameMoveModel
 
     public void save(DataOutput out, int mode) throws IOException
     {
+        decode();
         // do not save the guards at index 0 and m_size-1
         out.writeInt(m_size - 2);
         byte[] data = new byte[2 * (m_size - 2)];
@@ -789,6 +901,7 @@ public class GameMoveModel
 
     public void write(PrintStream out)
     {
+        decode();
         boolean inComment = false;
         for (int i=0; i<m_size; i++) {
             short move = m_moves[i];
@@ -807,6 +920,7 @@ public class GameMoveModel
 
     public String writeToString()
     {
+        decode();
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         this.write( new PrintStream( output ) );
         return output.toString();
@@ -814,6 +928,7 @@ public class GameMoveModel
 
     public long getHashCode()
     {
+        decode();
         if (m_hashCode == 0) {
             int shift = 0;
             for (int index = 0; ; index = goForward(index)) {
@@ -853,6 +968,7 @@ public class GameMoveModel
     }
 
 	public void deleteCurrentVariation(int index) {
+		decode();
 		index = gotoVariationStart(index);
 		int startOfVariation = index;
 		while (m_moves[index] != LINE_END) {
@@ -866,6 +982,7 @@ public class GameMoveModel
 	}
 
 	public int promoteVariation(int curMove) {
+		decode();
 		int index = gotoVariationStart(curMove);
 		int startOfVariation = index;
 		int varFirstMoveStart = -1;
@@ -0,0 +1,116 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.move;
+
+
+/**
+ * A reusable list of moves in their short representation.
+ *
+ * <p>The list is backed by a primitive array which is only reallocated if it is
+ * too small, so a single instance can be filled again and again (e.g. once per
+ * node of a search or once per ply of a replayed game) without creating garbage.
+ *
+ * @author Andreas Rudolph
+ */
+public class MoveList
+{
+    private short[] m_moves;
+    private int m_size;
+
+    /*================================================================================*/
+
+    public MoveList()
+    {
+        this(256);
+    }
+
+    public MoveList(int capacity)
+    {
+        m_moves = new short[capacity];
+        m_size = 0;
+    }
+
+    /*================================================================================*/
+
+    public final int size()             {return m_size;}
+    public final boolean isEmpty()      {return m_size == 0;}
+    public final short get(int index)   {return m_moves[index];}
+    public final void clear()           {m_size = 0;}
+
+    /**
+     * Returns the backing array of the list. Only the first {@link #size()} entries
+     * are valid. The array is exposed to allow generators to write directly into it,
+     * after {@link #ensureCapacity(int)} has been called and followed by {@link #setSize(int)}.
+     *
+     *@return the backing array
+     */
+    public final short[] getMoves()     {return m_moves;}
+
+    public final void setSize(int size)
+    {
+        if (size < 0 || size > m_moves.length) throw new IllegalArgumentException("Illegal size: " + size);
+        m_size = size;
+    }
+
+    public final void ensureCapacity(int capacity)
+    {
+        if (capacity > m_moves.length) {
+            short[] newMoves = new short[Math.max(capacity, 2 * m_moves.length)];
+            System.arraycopy(m_moves, 0, newMoves, 0, m_size);
+            m_moves = newMoves;
+        }
+    }
+
+    public final void add(short move)
+    {
+        if (m_size == m_moves.length) ensureCapacity(m_size + 1);
+        m_moves[m_size++] = move;
+    }
+
+    public final void set(int index, short move)
+    {
+        if (index >= m_size) throw new IndexOutOfBoundsException("Index " + index + " size " + m_size);
+        m_moves[index] = move;
+    }
+
+    public final boolean contains(short move)
+    {
+        for (int i = 0; i < m_size; i++) {
+            if (m_moves[i] == move) return true;  // =====>
+        }
+        return false;
+    }
+
+    public final short[] toArray()
+    {
+        short[] moves = new short[m_size];
+        System.arraycopy(m_moves, 0, moves, 0, m_size);
+        return moves;
+    }
+
+    /*================================================================================*/
+
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append('{');
+        for (int i = 0; i < m_size; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(Move.getString(m_moves[i]));
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+}
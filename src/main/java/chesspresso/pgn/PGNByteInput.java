@@ -0,0 +1,398 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.pgn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Byte input of the {@link PGNReader}, reading from a memory-mapped file, a
+ * stream through a buffer or a given buffer.
+ *
+ * <p>Bytes are decoded as UTF-8; bytes which are not part of a valid UTF-8
+ * sequence are taken as ISO-8859-1, the character set of the PGN standard.
+ * Line numbers are not tracked while reading, the line ends are only counted
+ * when the line number is requested, e.g. to report an error, or before the
+ * buffer is refilled.
+ *
+ * @author Andreas Rudolph
+ */
+final class PGNByteInput
+{
+    /**
+     * The initial size of the heap buffer used for streams of unknown origin.
+     */
+    static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The size of the direct buffer used for gzipped files.
+     */
+    static final int FILE_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The size of the windows by which large files are mapped.
+     */
+    static final int MAP_WINDOW_SIZE = 1 << 28;
+
+    private final FileChannel m_file;               // mapped file, or null
+    private final ReadableByteChannel m_channel;    // stream, or null
+    private final long m_end;                       // end of the mapped file
+    private final int m_windowSize;
+    private ByteBuffer m_buf;
+    private long m_bufOffset;                       // input offset of buffer index 0
+
+    private int m_lineNumber;                       // line ends before m_lineIndex
+    private int m_lineIndex;
+    private boolean m_afterCR;
+
+    private int m_lowSurrogate = -1;
+    private int m_mark = -1;                        // buffer index of the mark
+
+    /*================================================================================*/
+
+    /**
+     * Reads the given buffer from its position to its limit.
+     *
+     *@param buf the buffer
+     *@param offset the input offset of the position of the buffer
+     *@param lineNumber the number of lines before the position of the buffer
+     */
+    PGNByteInput(ByteBuffer buf, long offset, int lineNumber)
+    {
+        m_file = null;
+        m_channel = null;
+        m_end = 0L;
+        m_windowSize = 0;
+        m_buf = buf.slice();
+        m_bufOffset = offset;
+        m_lineNumber = lineNumber;
+    }
+
+    /**
+     * Maps a file, in windows of {@link #MAP_WINDOW_SIZE} bytes if it is larger.
+     * The channel is closed at once if the file fits into one window, otherwise
+     * it is kept open for {@link #seek(long, int)} until {@link #close()}.
+     *
+     *@param file the file
+     */
+    PGNByteInput(FileChannel file) throws IOException
+    {
+        this(file, MAP_WINDOW_SIZE);
+    }
+
+    /**
+     * Maps a file in windows of the given size.
+     *
+     *@param file the file
+     *@param windowSize the maximum number of bytes mapped at once
+     */
+    PGNByteInput(FileChannel file, int windowSize) throws IOException
+    {
+        m_channel = null;
+        m_end = file.size();
+        m_windowSize = windowSize;
+        m_buf = file.map(FileChannel.MapMode.READ_ONLY, 0L, Math.min(m_end, windowSize));
+        if (m_end <= windowSize) {
+            file.close();
+            m_file = null;
+        } else {
+            m_file = file;
+        }
+    }
+
+    /**
+     * Reads a stream through a heap buffer of initially {@link #STREAM_BUFFER_SIZE}
+     * bytes. Since the reader may be one of many, e.g. one per request of a server,
+     * no direct memory is allocated.
+     *
+     *@param in the stream
+     */
+    PGNByteInput(InputStream in)
+    {
+        this(in, STREAM_BUFFER_SIZE, false);
+    }
+
+    /**
+     * Reads a stream through a heap buffer, which grows if marked bytes fill it.
+     *
+     *@param in the stream
+     *@param bufferSize the initial size of the buffer
+     */
+    PGNByteInput(InputStream in, int bufferSize)
+    {
+        this(in, bufferSize, false);
+    }
+
+    /**
+     * Reads a stream through a buffer, which grows if marked bytes fill it.
+     *
+     *@param in the stream
+     *@param bufferSize the initial size of the buffer
+     *@param direct whether to allocate a direct buffer, used for large inputs like
+     *              gzipped files
+     */
+    PGNByteInput(InputStream in, int bufferSize, boolean direct)
+    {
+        m_file = null;
+        m_channel = Channels.newChannel(in);
+        m_end = 0L;
+        m_windowSize = 0;
+        m_buf = (direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize));
+        m_buf.limit(0);
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Refills the buffer, keeping the bytes not read yet and the bytes from the mark.
+     *
+     *@return whether bytes have been added
+     */
+    private boolean fill() throws IOException
+    {
+        int position = m_buf.position();
+        int remaining = m_buf.remaining();
+        int keep = (m_mark >= 0 ? m_mark : position);
+        countLines(position);
+        if (m_channel != null) {
+            if (keep == 0 && m_buf.limit() == m_buf.capacity()) {
+                // the marked bytes fill the buffer
+                int capacity = 2 * m_buf.capacity();
+                ByteBuffer buf = (m_buf.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity));
+                m_buf.position(0);
+                buf.put(m_buf);
+                m_buf = buf;
+            } else {
+                m_buf.position(keep);
+                m_buf.compact();
+            }
+            while (m_buf.hasRemaining()) {
+                if (m_channel.read(m_buf) < 0) break;
+            }
+            m_buf.flip();
+        } else if (m_file != null && m_bufOffset + m_buf.limit() < m_end) {
+            long offset = m_bufOffset + keep;
+            // the window must take the rest of a split UTF-8 sequence
+            int size = Math.max(m_windowSize, m_buf.limit() - keep + 4);
+            m_buf = m_file.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(m_end - offset, size));
+        } else {
+            return false;  // =====>
+        }
+        m_buf.position(position - keep);
+        m_bufOffset += keep;
+        m_lineIndex = position - keep;
+        if (m_mark >= 0) m_mark = 0;
+        return m_buf.remaining() > remaining;
+    }
+
+    private void countLines(int to)
+    {
+        ByteBuffer buf = m_buf;
+        int lineNumber = m_lineNumber;
+        boolean afterCR = m_afterCR;
+        for (int index = m_lineIndex; index < to; index++) {
+            byte b = buf.get(index);
+            if (b == '\n') {
+                if (!afterCR) lineNumber++;
+                afterCR = false;
+            } else if (b == '\r') {
+                lineNumber++;
+                afterCR = true;
+            } else {
+                afterCR = false;
+            }
+        }
+        m_lineNumber = lineNumber;
+        m_afterCR = afterCR;
+        m_lineIndex = Math.max(m_lineIndex, to);
+    }
+
+    /**
+     * Returns the number of line ends before the next byte to read, like
+     * {@link java.io.LineNumberReader#getLineNumber()}. A line ends with
+     * '\n', '\r' or "\r\n".
+     */
+    int getLineNumber()
+    {
+        countLines(m_buf.position());
+        return m_lineNumber;
+    }
+
+    /**
+     * Returns the input offset of the next byte to read.
+     */
+    long getOffset()
+    {
+        return m_bufOffset + m_buf.position();
+    }
+
+    /**
+     * Continues reading at the given input offset. Line ends are counted from
+     * there on, starting with the given line number.
+     *
+     *@param offset the input offset, within the buffer or the mapped file
+     *@param lineNumber the number of lines before the offset
+     *@throws IOException if the input is a stream
+     *@throws IllegalArgumentException if the offset is outside of the input
+     */
+    void seek(long offset, int lineNumber) throws IOException
+    {
+        if (m_channel != null) throw new IOException("Cannot seek in a stream");
+        long end = (m_file != null ? m_end : m_bufOffset + m_buf.limit());
+        if (offset < 0L || offset > end || (m_file == null && offset < m_bufOffset)) {
+            throw new IllegalArgumentException("Offset " + offset + " outside of the input");
+        }
+
+        if (offset < m_bufOffset || offset > m_bufOffset + m_buf.limit()) {
+            m_buf = m_file.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(m_end - offset, m_windowSize));
+            m_bufOffset = offset;
+        } else {
+            m_buf.position((int)(offset - m_bufOffset));
+        }
+        m_lineNumber = lineNumber;
+        m_lineIndex = m_buf.position();
+        m_afterCR = false;
+        m_lowSurrogate = -1;
+        m_mark = -1;
+    }
+
+    /**
+     * Marks the next byte to read, the bytes from there on are kept until
+     * {@link #getMarked(int)} is called.
+     */
+    void mark()
+    {
+        m_mark = m_buf.position();
+    }
+
+    /**
+     * Returns the first bytes from the mark and removes the mark.
+     *
+     *@param length the number of bytes, at most up to the next byte to read
+     */
+    byte[] getMarked(int length)
+    {
+        byte[] bytes = new byte[length];
+        ByteBuffer buf = m_buf.duplicate();
+        buf.position(m_mark);
+        buf.get(bytes);
+        m_mark = -1;
+        return bytes;
+    }
+
+    /**
+     * Closes the underlying channel.
+     */
+    void close() throws IOException
+    {
+        if (m_file != null) m_file.close();
+        if (m_channel != null) m_channel.close();
+        m_buf.limit(m_buf.position());
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Returns the next character, -1 at the end of the input.
+     */
+    int read() throws IOException
+    {
+        if (m_lowSurrogate >= 0) {
+            int ch = m_lowSurrogate;
+            m_lowSurrogate = -1;
+            return ch;  // =====>
+        }
+        if (!m_buf.hasRemaining() && !fill()) return -1;  // =====>
+        int b = m_buf.get() & 0xFF;
+        return (b < 0x80 ? b : decode(b));
+    }
+
+    /**
+     * Returns the next byte without reading it, -1 at the end of the input.
+     */
+    int peek() throws IOException
+    {
+        if (!m_buf.hasRemaining() && !fill()) return -1;  // =====>
+        return m_buf.get(m_buf.position()) & 0xFF;
+    }
+
+    /**
+     * Skips the next byte, which must have been returned by {@link #peek()}.
+     */
+    void skip()
+    {
+        m_buf.position(m_buf.position() + 1);
+    }
+
+    /**
+     * Appends the following characters of an identifier, i.e. ASCII characters which
+     * are not tokens of the given table, and neither a PGN escape nor a line comment.
+     *
+     *@param dest the array to append to
+     *@param length the number of characters already in the array
+     *@param isToken the token table of the reader
+     *@return the new number of characters, at most the length of the array
+     */
+    int readIdentifier(char[] dest, int length, boolean[] isToken)
+    {
+        if (m_lowSurrogate >= 0) return length;  // =====>
+        ByteBuffer buf = m_buf;
+        int position = buf.position();
+        int limit = Math.min(buf.limit(), position + dest.length - length);
+        while (position < limit) {
+            int b = buf.get(position);
+            if (b <= 0 || isToken[b] || b == PGN.TOK_PGN_ESCAPE || b == PGN.TOK_LINE_COMMENT) break;
+            dest[length++] = (char)b;
+            position++;
+        }
+        buf.position(position);
+        return length;
+    }
+
+    private int decode(int b) throws IOException
+    {
+        int num;
+        int cp;
+        if (b >= 0xC2 && b <= 0xDF) {
+            num = 1; cp = b & 0x1F;
+        } else if (b >= 0xE0 && b <= 0xEF) {
+            num = 2; cp = b & 0x0F;
+        } else if (b >= 0xF0 && b <= 0xF4) {
+            num = 3; cp = b & 0x07;
+        } else {
+            return b;  // =====>
+        }
+        if (m_buf.remaining() < num) fill();
+        if (m_buf.remaining() < num) return b;  // =====>
+
+        int position = m_buf.position();
+        for (int i = 0; i < num; i++) {
+            int next = m_buf.get(position + i) & 0xFF;
+            if ((next & 0xC0) != 0x80) return b;  // =====>
+            cp = (cp << 6) | (next & 0x3F);
+        }
+        if ((num == 2 && (cp < 0x800 || (cp >= 0xD800 && cp <= 0xDFFF))) || (num == 3 && (cp < 0x10000 || cp > 0x10FFFF))) {
+            return b;  // =====>
+        }
+        m_buf.position(position + num);
+        if (num < 3) return cp;  // =====>
+        m_lowSurrogate = Character.lowSurrogate(cp);
+        return Character.highSurrogate(cp);
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.pgn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import chesspresso.game.GameHeaderModel;
+
+/**
+ * An index of the games of a PGN file, kept in a sidecar file next to it to
+ * read any game without parsing the games before, see
+ * {@link PGNReader#seekGame(PGNIndex, int)}.
+ *
+ * <p>The index file starts with a header of {@link #HEADER_SIZE} bytes, followed
+ * by one record of {@link #RECORD_SIZE} bytes per game, all values big-endian.
+ * A record holds the byte offset, length and line number of the game, the
+ * offset and length of its movetext and some header fields: the date, the
+ * result, the Elo ratings, the ECO code and hash codes of the players and
+ * the event. The index file is memory-mapped.
+ *
+ * <p>{@link #open(File)} builds the index file if there is none, and updates it
+ * if the PGN file has changed. If the PGN file has only grown, e.g. games have
+ * been appended, only the last indexed game and the games after it are scanned,
+ * otherwise the index is rebuilt.
+ *
+ * @author Andreas Rudolph
+ */
+public final class PGNIndex
+{
+    /**
+     * The suffix of the index file appended to the name of the PGN file.
+     */
+    public static final String SUFFIX = ".idx";
+
+    /**
+     * The size of the header of the index file.
+     */
+    public static final int HEADER_SIZE = 64;
+
+    /**
+     * The size of the record of a game in the index file.
+     */
+    public static final int RECORD_SIZE = 48;
+
+    private static final long MAGIC = 0x50474E494E444558L;  // "PGNINDEX"
+    private static final int VERSION = 1;
+
+    // header: magic, version, record size, number of games, indexed length of
+    // the PGN file and the fingerprint of its indexed bytes
+    private static final int
+        H_MAGIC = 0, H_VERSION = 8, H_RECORD_SIZE = 12, H_NUM_OF_GAMES = 16,
+        H_PGN_LENGTH = 24, H_FINGERPRINT = 32;
+
+    // record: offsets relative to the start of the record
+    private static final int
+        R_OFFSET = 0, R_LENGTH = 8, R_MOVETEXT_OFFSET = 12, R_MOVETEXT_LENGTH = 16,
+        R_LINE_NUMBER = 20, R_DATE = 24, R_WHITE_ELO = 28, R_BLACK_ELO = 30,
+        R_RESULT = 32, R_ECO = 34, R_WHITE = 36, R_BLACK = 40, R_EVENT = 44;
+
+    // bytes at the start and the end of the indexed part of the PGN file taken
+    // for the fingerprint
+    private static final int FINGERPRINT_SIZE = 4096;
+
+    private static final int MAX_NUM_OF_GAMES = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    private final ByteBuffer m_records;
+    private final int m_numOfGames;
+    private final long m_pgnLength;
+    private final int m_numOfScannedGames;
+
+    /*================================================================================*/
+
+    private PGNIndex(ByteBuffer records, int numOfGames, long pgnLength, int numOfScannedGames)
+    {
+        m_records = records;
+        m_numOfGames = numOfGames;
+        m_pgnLength = pgnLength;
+        m_numOfScannedGames = numOfScannedGames;
+    }
+
+    /**
+     * Returns the index file of a PGN file, the PGN file name followed by {@link #SUFFIX}.
+     *
+     *@param pgnFile the PGN file
+     */
+    public static File getIndexFile(File pgnFile)
+    {
+        return new File(pgnFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Opens the index of a PGN file in its {@link #getIndexFile(File) index file},
+     * which is built or updated first if necessary.
+     *
+     *@param pgnFile the PGN file, not gzipped
+     */
+    public static PGNIndex open(File pgnFile) throws IOException
+    {
+        return open(pgnFile, getIndexFile(pgnFile));
+    }
+
+    /**
+     * Opens the index of a PGN file in the given index file, which is built or
+     * updated first if necessary.
+     *
+     *@param pgnFile the PGN file, not gzipped
+     *@param indexFile the index file
+     */
+    public static PGNIndex open(File pgnFile, File indexFile) throws IOException
+    {
+        if (pgnFile.getName().toLowerCase().endsWith(".gz")) {
+            throw new IOException("Cannot index gzipped file " + pgnFile);
+        }
+
+        RandomAccessFile pgn = new RandomAccessFile(pgnFile, "r");
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        try {
+            int numOfScannedGames = update(pgnFile, pgn.getChannel(), index.getChannel());
+            FileChannel channel = index.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            int numOfGames = buf.getInt(H_NUM_OF_GAMES);
+            long pgnLength = buf.getLong(H_PGN_LENGTH);
+            buf.position(HEADER_SIZE);
+            return new PGNIndex(buf.slice(), numOfGames, pgnLength, numOfScannedGames);
+        } finally {
+            index.close();
+            pgn.close();
+        }
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Brings the index file up to date with the PGN file.
+     *
+     *@return the number of games scanned
+     */
+    private static int update(File pgnFile, FileChannel pgn, FileChannel index) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        int numOfGames = 0;
+        long offset = 0L;
+        int lineNumber = 0;
+        if (readFully(index, header, 0L) && isValid(header, index.size())) {
+            long pgnLength = header.getLong(H_PGN_LENGTH);
+            if (pgnLength <= pgn.size() && header.getLong(H_FINGERPRINT) == getFingerprint(pgn, pgnLength)) {
+                if (pgnLength == pgn.size()) return 0;  // =====>
+
+                // the file has grown, the last game may have been incomplete
+                numOfGames = Math.max(header.getInt(H_NUM_OF_GAMES) - 1, 0);
+                if (header.getInt(H_NUM_OF_GAMES) > 0) {
+                    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+                    readFully(index, record, HEADER_SIZE + (long)numOfGames * RECORD_SIZE);
+                    offset = record.getLong(R_OFFSET);
+                    lineNumber = record.getInt(R_LINE_NUMBER);
+                }
+            }
+        }
+
+        // invalidate the index until it is complete
+        header.clear();
+        header.putLong(H_MAGIC, MAGIC);
+        header.putInt(H_VERSION, VERSION);
+        header.putInt(H_RECORD_SIZE, RECORD_SIZE);
+        header.putInt(H_NUM_OF_GAMES, -1);
+        index.write(header, 0L);
+        index.truncate(HEADER_SIZE + (long)numOfGames * RECORD_SIZE);
+
+        PGNReader reader = new PGNReader(pgnFile);
+        int numOfScannedGames = 0;
+        try {
+            reader.seek(offset, lineNumber);
+            ByteBuffer records = ByteBuffer.allocate(1024 * RECORD_SIZE);
+            long position = HEADER_SIZE + (long)numOfGames * RECORD_SIZE;
+            for (;;) {
+                GameHeaderModel game = reader.parseGameHeader();
+                if (game == null) break;
+                if (numOfGames >= MAX_NUM_OF_GAMES) throw new IOException("Too many games in " + pgnFile);
+                if (!records.hasRemaining()) {
+                    position += write(index, records, position);
+                }
+                putRecord(records, game, reader.getGameLineNumber(), reader.getOffset());
+                numOfGames++;
+                numOfScannedGames++;
+            }
+            write(index, records, position);
+
+            long pgnLength = reader.getOffset();
+            header.clear();
+            header.putInt(H_NUM_OF_GAMES, numOfGames);
+            header.putLong(H_PGN_LENGTH, pgnLength);
+            header.putLong(H_FINGERPRINT, getFingerprint(pgn, pgnLength));
+            index.write(header, 0L);
+        } catch (PGNSyntaxError ex) {
+            throw new IOException(ex);  // not thrown, syntax errors in headers are only logged
+        } finally {
+            reader.close();
+        }
+        return numOfScannedGames;
+    }
+
+    private static boolean isValid(ByteBuffer header, long size)
+    {
+        int numOfGames = header.getInt(H_NUM_OF_GAMES);
+        return header.getLong(H_MAGIC) == MAGIC
+            && header.getInt(H_VERSION) == VERSION
+            && header.getInt(H_RECORD_SIZE) == RECORD_SIZE
+            && numOfGames >= 0
+            && size == HEADER_SIZE + (long)numOfGames * RECORD_SIZE;
+    }
+
+    /**
+     * Returns a checksum of the first and the last bytes of the indexed part of
+     * the PGN file, to notice if the file has been changed instead of grown.
+     */
+    private static long getFingerprint(FileChannel pgn, long length) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate((int)Math.min(length, FINGERPRINT_SIZE));
+        readFully(pgn, buf, 0L);
+        crc.update(buf.array(), 0, buf.limit());
+        buf.clear();
+        readFully(pgn, buf, length - buf.capacity());
+        crc.update(buf.array(), 0, buf.limit());
+        return (length << 32) ^ crc.getValue();
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException
+    {
+        while (buf.hasRemaining()) {
+            int num = channel.read(buf, position);
+            if (num < 0) return false;  // =====>
+            position += num;
+        }
+        buf.flip();
+        return true;
+    }
+
+    private static int write(FileChannel channel, ByteBuffer buf, long position) throws IOException
+    {
+        buf.flip();
+        int num = buf.remaining();
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+        buf.clear();
+        return num;
+    }
+
+    private static void putRecord(ByteBuffer buf, GameHeaderModel game, int lineNumber, long end)
+    {
+        long offset = game.getLong();
+        long movetextOffset = game.getMovetextOffset();
+        if (movetextOffset >= 0L) end = movetextOffset + game.getMovetextLength();
+
+        buf.putLong(offset);
+        buf.putInt((int)(end - offset));
+        buf.putInt(movetextOffset >= 0L ? (int)(movetextOffset - offset) : -1);
+        buf.putInt(game.getMovetextLength());
+        buf.putInt(lineNumber);
+        buf.putInt(getDate(game.getDate()));
+        buf.putShort((short)Math.min(Math.max(game.getWhiteElo(), 0), Short.MAX_VALUE));
+        buf.putShort((short)Math.min(Math.max(game.getBlackElo(), 0), Short.MAX_VALUE));
+        buf.put((byte)game.getResult());
+        buf.put((byte)0);
+        buf.putShort(getECO(game.getECO()));
+        buf.putInt(game.getWhite().hashCode());
+        buf.putInt(game.getBlack().hashCode());
+        buf.putInt(game.getEvent().hashCode());
+    }
+
+    /**
+     * Returns a date of the form yyyy.mm.dd as yyyymmdd, unknown parts as 0.
+     */
+    private static int getDate(String date)
+    {
+        String[] parts = date.split("\\.");
+        int value = 0;
+        for (int i = 0; i < 3; i++) {
+            int part = 0;
+            if (i < parts.length) {
+                try {
+                    part = Integer.parseInt(parts[i].trim());
+                } catch (NumberFormatException ex) {
+                    // unknown, e.g. ??
+                }
+            }
+            value = 100 * value + (i == 0 ? Math.min(Math.max(part, 0), 9999) : Math.min(Math.max(part, 0), 99));
+        }
+        return value;
+    }
+
+    /**
+     * Returns an ECO code A00 to E99 as 0 to 499, -1 for other codes.
+     */
+    private static short getECO(String eco)
+    {
+        if (eco == null) return -1;  // =====>
+        eco = eco.trim();
+        if (eco.length() != 3) return -1;  // =====>
+        char letter = eco.charAt(0), tens = eco.charAt(1), ones = eco.charAt(2);
+        if (letter < 'A' || letter > 'E' || tens < '0' || tens > '9' || ones < '0' || ones > '9') return -1;  // =====>
+        return (short)(100 * (letter - 'A') + 10 * (tens - '0') + (ones - '0'));
+    }
+
+    /*================================================================================*/
+
+    private int getIndex(int game)
+    {
+        if (game < 0 || game >= m_numOfGames) {
+            throw new IndexOutOfBoundsException("Game " + game + " of " + m_numOfGames);
+        }
+        return game * RECORD_SIZE;
+    }
+
+    /**
+     * Returns the number of games in the index.
+     */
+    public int getNumOfGames()
+    {
+        return m_numOfGames;
+    }
+
+    /**
+     * Returns the number of bytes of the PGN file covered by the index.
+     */
+    public long getPGNLength()
+    {
+        return m_pgnLength;
+    }
+
+    /**
+     * Returns the number of games scanned when the index was opened, 0 if the
+     * index was up to date.
+     */
+    int getNumOfScannedGames()
+    {
+        return m_numOfScannedGames;
+    }
+
+    /**
+     * Returns the byte offset of the game, see {@link GameHeaderModel#getLong()}.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public long getOffset(int game)
+    {
+        return m_records.getLong(getIndex(game) + R_OFFSET);
+    }
+
+    /**
+     * Returns the number of bytes of the game up to the end of its movetext.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public int getLength(int game)
+    {
+        return m_records.getInt(getIndex(game) + R_LENGTH);
+    }
+
+    /**
+     * Returns the byte offset of the movetext of the game, -1 if the header of
+     * the game could not be parsed.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public long getMovetextOffset(int game)
+    {
+        int index = getIndex(game);
+        int offset = m_records.getInt(index + R_MOVETEXT_OFFSET);
+        return offset >= 0 ? m_records.getLong(index + R_OFFSET) + offset : -1L;
+    }
+
+    /**
+     * Returns the number of bytes of the movetext of the game, -1 if the header
+     * of the game could not be parsed.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public int getMovetextLength(int game)
+    {
+        return m_records.getInt(getIndex(game) + R_MOVETEXT_LENGTH);
+    }
+
+    /**
+     * Returns the number of lines before the game.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public int getLineNumber(int game)
+    {
+        return m_records.getInt(getIndex(game) + R_LINE_NUMBER);
+    }
+
+    /**
+     * Returns the date of the game as yyyymmdd, unknown parts are 0.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public int getDate(int game)
+    {
+        return m_records.getInt(getIndex(game) + R_DATE);
+    }
+
+    /**
+     * Returns the result of the game, see {@link GameHeaderModel#getResult()}.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public int getResult(int game)
+    {
+        return m_records.get(getIndex(game) + R_RESULT);
+    }
+
+    /**
+     * Returns the Elo rating of the white player, 0 if unknown.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public int getWhiteElo(int game)
+    {
+        return m_records.getShort(getIndex(game) + R_WHITE_ELO);
+    }
+
+    /**
+     * Returns the Elo rating of the black player, 0 if unknown.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public int getBlackElo(int game)
+    {
+        return m_records.getShort(getIndex(game) + R_BLACK_ELO);
+    }
+
+    /**
+     * Returns the ECO code of the game, null if none or not of the form A00 to E99.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public String getECO(int game)
+    {
+        int eco = m_records.getShort(getIndex(game) + R_ECO);
+        if (eco < 0) return null;  // =====>
+        return String.valueOf((char)('A' + eco / 100)) + (eco / 10 % 10) + (eco % 10);
+    }
+
+    /**
+     * Returns the hash code of the name of the white player as by
+     * {@link String#hashCode()} of {@link GameHeaderModel#getWhite()}, e.g. to
+     * select the games of a player before parsing them.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public int getWhiteHashCode(int game)
+    {
+        return m_records.getInt(getIndex(game) + R_WHITE);
+    }
+
+    /**
+     * Returns the hash code of the name of the black player, see {@link #getWhiteHashCode(int)}.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public int getBlackHashCode(int game)
+    {
+        return m_records.getInt(getIndex(game) + R_BLACK);
+    }
+
+    /**
+     * Returns the hash code of the event, see {@link #getWhiteHashCode(int)}.
+     *
+     *@param game the number of the game, starting with 0
+     */
+    public int getEventHashCode(int game)
+    {
+        return m_records.getInt(getIndex(game) + R_EVENT);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.pgn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import chesspresso.game.Game;
+import chesspresso.game.GameHeaderModel;
+import chesspresso.game.GameModel;
+import chesspresso.game.GameMoveModel;
+
+/**
+ * Keeps the raw movetext of a game read by a {@link PGNReader} and parses it
+ * into the move model on first access, see {@link PGNReader#setLazyMovetext(boolean)}.
+ *
+ * @author Andreas Rudolph
+ */
+final class PGNMovetextDecoder implements GameMoveModel.Decoder
+{
+    private final byte[] m_movetext;
+    private final GameHeaderModel m_header;
+    private final long m_offset;
+    private final int m_lineNumber;
+    private final String m_filename;
+    private final PGNErrorHandler m_errorHandler;
+
+    /*================================================================================*/
+
+    /**
+     *@param movetext the bytes of the movetext section
+     *@param header the header of the game, for the start position
+     *@param offset the input offset of the movetext
+     *@param lineNumber the number of lines before the movetext
+     *@param filename the name used in error messages
+     *@param errorHandler the error handler, or null
+     */
+    PGNMovetextDecoder(byte[] movetext, GameHeaderModel header, long offset, int lineNumber,
+                       String filename, PGNErrorHandler errorHandler)
+    {
+        m_movetext = movetext;
+        m_header = header;
+        m_offset = offset;
+        m_lineNumber = lineNumber;
+        m_filename = filename;
+        m_errorHandler = errorHandler;
+    }
+
+    /*================================================================================*/
+
+    public void decode(GameMoveModel model)
+    {
+        PGNReader reader = new PGNReader(new PGNByteInput(ByteBuffer.wrap(m_movetext), m_offset, m_lineNumber), m_filename);
+        reader.setErrorHandler(m_errorHandler);
+        try {
+            reader.parseMovetext(new Game(new GameModel(m_header, model)));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot read movetext from memory", ex);  // cannot happen
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.pgn;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chesspresso.game.Game;
+
+/**
+ * Reader for PGN files parsing games with several threads.
+ *
+ * <p>The input is split into chunks of about {@link #setChunkSize(int) chunk size}
+ * bytes at game boundaries, i.e. at a tag begin <code>[</code> at the begin of a
+ * line following movetext. Comments, escaped lines and line comments are skipped
+ * while searching boundaries. Each chunk is parsed by a worker thread with its own
+ * {@link PGNReader}, so games of different chunks are parsed in parallel. Up to two
+ * chunks per thread are parsed ahead of the caller.
+ *
+ * <p>Games are returned by {@link #parseGame()} either in the order of the input,
+ * or in the order their chunks are parsed for maximum throughput. Errors and
+ * warnings are passed to the {@link #setErrorHandler(PGNErrorHandler) error handler}
+ * in the calling thread, right before the game they occurred in, with the file name
+ * and line number of the input. Hence in input order the games and errors are the
+ * same as those of a {@link PGNReader}, except for malformed games running into the
+ * next game, e.g. if the result is missing.
+ *
+ * <p>The worker threads are stopped and the file is closed as soon as
+ * {@link #parseGame()} returns null. A caller stopping earlier, also because of an
+ * exception, must call {@link #close()}.
+ *
+ * @author Andreas Rudolph
+ */
+public final class PGNParallelReader
+{
+    /**
+     * The default number of bytes per chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 22;
+
+    // the number of bytes scanned at once beyond the chunk size
+    private static final int SCAN_SIZE = 1 << 16;
+
+    private static final AtomicInteger s_threadNumber = new AtomicInteger();
+
+    /*================================================================================*/
+
+    private final FileChannel m_file;       // mapped file, or null
+    private final ByteBuffer m_bytes;       // buffer, or null
+    private final long m_length;
+    private final String m_name;
+    private final boolean m_ordered;
+    private final int m_maxPending;
+    private final ExecutorService m_executor;
+    private final CompletionService<Chunk> m_completion;
+    private final Deque<Future<Chunk>> m_pending;
+    private int m_numPending;
+    private int m_chunkSize;
+    private PGNErrorHandler m_errorHandler;
+
+    private Chunk m_chunk;
+    private int m_index;
+
+    // state of the splitter at m_offset
+    private long m_offset;
+    private int m_lineNumber;
+    private boolean m_afterCR;
+    private boolean m_lineStart;
+    private boolean m_skipLine;
+    private boolean m_inComment;
+    private boolean m_afterMovetext;
+
+    /*================================================================================*/
+
+    /**
+     * Creates a reader for a PGN file, which is memory-mapped. Compressed files
+     * cannot be split and must be read by a {@link PGNReader}.
+     *
+     *@param file the file
+     *@param parallelism the number of worker threads
+     *@param ordered whether to return the games in the order of the file
+     */
+    public PGNParallelReader(File file, int parallelism, boolean ordered) throws IOException
+    {
+        this(open(file, parallelism), null, file.getPath(), parallelism, ordered);
+    }
+
+    private static FileChannel open(File file, int parallelism) throws IOException
+    {
+        checkParallelism(parallelism);  // before the file is opened
+        return new FileInputStream(file).getChannel();
+    }
+
+    private static void checkParallelism(int parallelism)
+    {
+        if (parallelism < 1) throw new IllegalArgumentException("Illegal parallelism: " + parallelism);
+    }
+
+    /**
+     * Creates a reader for the bytes of a buffer from its position to its limit.
+     *
+     *@param buf the buffer, it is not modified
+     *@param name the name used in error messages
+     *@param parallelism the number of worker threads
+     *@param ordered whether to return the games in the order of the buffer
+     */
+    public PGNParallelReader(ByteBuffer buf, String name, int parallelism, boolean ordered) throws IOException
+    {
+        this(null, buf.slice(), name, parallelism, ordered);
+    }
+
+    private PGNParallelReader(FileChannel file, ByteBuffer bytes, String name, int parallelism, boolean ordered) throws IOException
+    {
+        checkParallelism(parallelism);
+        m_file = file;
+        m_bytes = bytes;
+        m_length = (file != null ? file.size() : bytes.limit());
+        m_name = name;
+        m_ordered = ordered;
+        m_maxPending = 2 * parallelism;
+        m_executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PGNParallelReader-" + s_threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_completion = new ExecutorCompletionService<Chunk>(m_executor);
+        m_pending = new ArrayDeque<Future<Chunk>>();
+        m_chunkSize = DEFAULT_CHUNK_SIZE;
+        m_lineStart = true;
+    }
+
+    /*================================================================================*/
+
+    public void setErrorHandler(PGNErrorHandler handler)
+    {
+        m_errorHandler = handler;
+    }
+
+    /**
+     * Sets the minimum number of bytes per chunk, except for the last chunk.
+     * Chunks read already are not changed.
+     *
+     *@param chunkSize the number of bytes
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        if (chunkSize < 1) throw new IllegalArgumentException("Illegal chunk size: " + chunkSize);
+        m_chunkSize = chunkSize;
+    }
+
+    /**
+     * Stops the worker threads and closes the file. This is done automatically
+     * when {@link #parseGame()} returns null, calling it again has no effect.
+     */
+    public void close() throws IOException
+    {
+        m_executor.shutdownNow();
+        m_pending.clear();
+        m_numPending = 0;
+        m_chunk = null;
+        m_offset = m_length;
+        if (m_file != null) m_file.close();
+    }
+
+    // package-private for the tests
+    boolean isClosed()
+    {
+        return m_executor.isShutdown() && (m_file == null || !m_file.isOpen());
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Returns the next game. Errors and warnings of the game are passed to the
+     * error handler before. At the end, the reader is {@link #close() closed}.
+     *
+     *@return the next game, null if there are no more games
+     */
+    public Game parseGame() throws PGNSyntaxError, IOException
+    {
+        for (;;) {
+            if (m_chunk != null) {
+                while (m_index < m_chunk.m_results.size()) {
+                    Object result = m_chunk.m_results.get(m_index++);
+                    if (result instanceof Game) {
+                        return (Game)result;  // =====>
+                    } else if (result instanceof PGNSyntaxError) {
+                        report((PGNSyntaxError)result);
+                    } else {
+                        rethrow(((ExecutionException)result).getCause());
+                    }
+                }
+                m_chunk = null;
+            }
+            submitChunks();
+            if (m_numPending == 0) {
+                close();
+                return null;  // =====>
+            }
+            m_chunk = takeChunk();
+            m_index = 0;
+        }
+    }
+
+    private void report(PGNSyntaxError error)
+    {
+        if (m_errorHandler == null) return;  // =====>
+        if (error.getSeverity() == PGNSyntaxError.ERROR) {
+            m_errorHandler.handleError(error);
+        } else {
+            m_errorHandler.handleWarning(error);
+        }
+    }
+
+    private static void rethrow(Throwable ex) throws PGNSyntaxError, IOException
+    {
+        if (ex instanceof PGNSyntaxError) throw (PGNSyntaxError)ex;
+        if (ex instanceof IOException) throw (IOException)ex;
+        if (ex instanceof RuntimeException) throw (RuntimeException)ex;
+        if (ex instanceof Error) throw (Error)ex;
+        throw new IOException(ex);
+    }
+
+    private Chunk takeChunk() throws PGNSyntaxError, IOException
+    {
+        try {
+            Future<Chunk> future = (m_ordered ? m_pending.removeFirst() : m_completion.take());
+            m_numPending--;
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing " + m_name);
+        } catch (ExecutionException ex) {
+            rethrow(ex.getCause());
+            return null;
+        }
+    }
+
+    private void submitChunks() throws IOException
+    {
+        while (m_numPending < m_maxPending && m_offset < m_length) {
+            final long start = m_offset;
+            final int lineNumber = m_lineNumber;
+            long end = findBoundary(start + m_chunkSize);
+            final ByteBuffer buf = getRegion(start, (int)(end - start));
+            Callable<Chunk> task = new Callable<Chunk>() {
+                public Chunk call() throws Exception {return parseChunk(buf, start, lineNumber);}
+            };
+            if (m_ordered) {
+                m_pending.addLast(m_executor.submit(task));
+            } else {
+                m_completion.submit(task);
+            }
+            m_numPending++;
+        }
+    }
+
+    private ByteBuffer getRegion(long offset, int length) throws IOException
+    {
+        if (m_file != null) return m_file.map(FileChannel.MapMode.READ_ONLY, offset, length);  // =====>
+
+        ByteBuffer buf = m_bytes.duplicate();
+        buf.position((int)offset);
+        buf.limit((int)offset + length);
+        return buf.slice();
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Scans from the current offset to the first game boundary at or after
+     * <code>minEnd</code>.
+     *
+     *@return the offset of the boundary, the length of the input if there is none
+     */
+    private long findBoundary(long minEnd) throws IOException
+    {
+        while (m_offset < m_length) {
+            int size = (int)Math.min(m_length - m_offset, Math.max(minEnd - m_offset, 0L) + SCAN_SIZE);
+            if (scan(getRegion(m_offset, size), minEnd)) return m_offset;  // =====>
+        }
+        return m_length;
+    }
+
+    /**
+     * Scans a buffer starting at the current offset and advances the offset.
+     *
+     *@return whether a boundary at or after <code>minEnd</code> has been found
+     */
+    private boolean scan(ByteBuffer buf, long minEnd)
+    {
+        int lineNumber = m_lineNumber;
+        boolean afterCR = m_afterCR, lineStart = m_lineStart, skipLine = m_skipLine;
+        boolean inComment = m_inComment, afterMovetext = m_afterMovetext;
+
+        boolean found = false;
+        int limit = buf.limit();
+        int index = 0;
+        for (; index < limit; index++) {
+            byte b = buf.get(index);
+            if (b == '\n' || b == '\r') {
+                if (b == '\r' || !afterCR) lineNumber++;
+                afterCR = (b == '\r');
+                lineStart = true;
+                skipLine = false;
+                continue;
+            }
+            afterCR = false;
+            if (b == ' ' || b == '\t') continue;
+
+            if (lineStart && !inComment) {
+                if (b == PGN.TOK_TAG_BEGIN) {
+                    if (afterMovetext && m_offset + index >= minEnd) {
+                        found = true;
+                        break;
+                    }
+                    afterMovetext = false;
+                    skipLine = true;  // tag pair, no movetext
+                }
+            }
+            lineStart = false;
+            if (skipLine) continue;
+
+            if (inComment) {
+                if (b == PGN.TOK_COMMENT_END) inComment = false;
+            } else if (b == PGN.TOK_COMMENT_BEGIN) {
+                inComment = true;
+                afterMovetext = true;
+            } else if (b == PGN.TOK_LINE_COMMENT || b == PGN.TOK_PGN_ESCAPE) {
+                skipLine = true;
+            } else {
+                afterMovetext = true;
+            }
+        }
+
+        m_offset += index;
+        m_lineNumber = lineNumber;
+        m_afterCR = afterCR;
+        m_lineStart = lineStart;
+        m_skipLine = skipLine;
+        m_inComment = inComment;
+        m_afterMovetext = afterMovetext;
+        return found;
+    }
+
+    /*================================================================================*/
+
+    private Chunk parseChunk(ByteBuffer buf, long offset, int lineNumber)
+    {
+        final Chunk chunk = new Chunk();
+        PGNReader reader = new PGNReader(new PGNByteInput(buf, offset, lineNumber), m_name);
+        reader.setErrorHandler(new PGNErrorHandler() {
+            public void handleError(PGNSyntaxError error)     {chunk.m_results.add(error);}
+            public void handleWarning(PGNSyntaxError warning) {chunk.m_results.add(warning);}
+        });
+        for (;;) {
+            long before = reader.getOffset();
+            try {
+                Game game = reader.parseGame();
+                if (game == null) break;
+                chunk.m_results.add(game);
+            } catch (IOException ex) {
+                chunk.m_results.add(new ExecutionException(ex));
+                break;
+            } catch (Exception ex) {
+                // like a sequential reader, continue with the next game if possible
+                chunk.m_results.add(new ExecutionException(ex));
+                if (reader.getOffset() == before) break;
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * The results of a chunk in the order of the input: games, errors and
+     * warnings to report and exceptions to throw, wrapped into an
+     * {@link ExecutionException}.
+     */
+    private static final class Chunk
+    {
+        final List<Object> m_results = new ArrayList<Object>();
+    }
+}
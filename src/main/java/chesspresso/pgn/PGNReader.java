@@ -17,7 +17,6 @@ package chesspresso.pgn;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -25,12 +24,17 @@ import java.io.LineNumberReader;
 import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
 import chesspresso.Chess;
 import chesspresso.game.Game;
+import chesspresso.game.GameHeaderModel;
+import chesspresso.game.GameModel;
+import chesspresso.game.GameMoveModel;
 import chesspresso.move.IllegalMoveException;
 import chesspresso.move.Move;
 import chesspresso.position.NAG;
@@ -110,10 +114,11 @@ public final class PGNReader extends PGN {
     // ======================================================================
 
     private LineNumberReader m_in;
-    // 1.4 private CharBuffer m_charBuf;
+    private PGNByteInput m_bytes;
     private String m_filename;
 
     private Game m_curGame;
+    private GameHeaderModel m_curHeader;    // header only, without game
     private int m_lastChar;
     private int m_lastToken;
     private boolean m_pushedBack;
@@ -124,27 +129,72 @@ public final class PGNReader extends PGN {
 
     private boolean parsingMoveText;
 
+    private boolean m_lazyMovetext;
+    private byte[] m_movetext;
+    private int m_movetextLineNumber;
+    private int m_gameLineNumber;
+
     // ======================================================================
 
+    /**
+     * Creates a reader for a stream, which is read through a heap buffer.
+     * The stream is decoded as UTF-8, bytes not forming valid UTF-8 as ISO-8859-1.
+     *
+     * @param in the stream
+     * @param name the name used in error messages
+     */
     public PGNReader(InputStream in, String name) {
         init();
-        setInput(new InputStreamReader(in), name);
+        setInput(new PGNByteInput(in), name);
     }
 
     /**
-     * @deprecated
+     * Creates a reader for a file. PGN files are memory-mapped, gzipped files are
+     * read as stream. The file is decoded as UTF-8, bytes not forming valid UTF-8
+     * as ISO-8859-1.
+     *
+     * @param file the file
      */
-    @Deprecated
-	public PGNReader(String filename) throws IOException {
+    public PGNReader(File file) throws IOException {
         init();
-        if (filename.toLowerCase().endsWith(".gz")) {
-            setInput(new InputStreamReader(new GZIPInputStream(
-                    new FileInputStream(filename))), filename);
+        if (file.getName().toLowerCase().endsWith(".gz")) {
+            setInput(new PGNByteInput(new GZIPInputStream(new FileInputStream(file)), PGNByteInput.FILE_BUFFER_SIZE, true), file.getPath());
         } else {
-            setInput(new FileReader(filename), filename);
+            setInput(new PGNByteInput(new FileInputStream(file).getChannel()), file.getPath());
         }
     }
 
+    /**
+     * Creates a reader for the bytes of a buffer from its position to its limit,
+     * e.g. a memory-mapped part of a file.
+     *
+     * @param buf the buffer, it is not modified
+     * @param name the name used in error messages
+     */
+    public PGNReader(ByteBuffer buf, String name) {
+        init();
+        setInput(new PGNByteInput(buf, 0L, 0), name);
+    }
+
+    /**
+     * Creates a reader for a part of a larger input.
+     *
+     * @param bytes the input
+     * @param name the name used in error messages
+     */
+    PGNReader(PGNByteInput bytes, String name) {
+        init();
+        setInput(bytes, name);
+    }
+
+    /**
+     * @deprecated
+     */
+    @Deprecated
+	public PGNReader(String filename) throws IOException {
+        this(new File(filename));
+    }
+
     /**
      * @deprecated
      */
@@ -167,13 +217,6 @@ public final class PGNReader extends PGN {
         setInput(reader, name);
     }
 
-    // 1.4
-    // public PGNReader(CharBuffer buf)
-    // {
-    // this();
-    // m_charBuf = buf;
-    // }
-
     private void init() {
         m_buf = new char[MAX_TOKEN_SIZE];
         m_filename = null;
@@ -190,13 +233,103 @@ public final class PGNReader extends PGN {
         } else {
             m_in = new LineNumberReader(reader);
         }
+        m_bytes = null;
         m_filename = name;
     }
 
+    private void setInput(PGNByteInput bytes, String name) {
+        m_in = null;
+        m_bytes = bytes;
+        m_filename = name;
+    }
+
+    /**
+     * Returns the input offset of the next byte to read, -1 if the reader reads
+     * characters.
+     */
+    long getOffset() {
+        return m_bytes != null ? m_bytes.getOffset() : -1L;
+    }
+
+    /**
+     * Closes the input of the reader.
+     */
+    public void close() throws IOException {
+        if (m_bytes != null) {
+            m_bytes.close();
+        } else if (m_in != null) {
+            m_in.close();
+        }
+    }
+
+    /**
+     * Continues reading at a byte offset of the input, which should be the
+     * start of a game or of the whitespace before it. Line numbers in error
+     * messages are counted from the offset on, see {@link #seek(long, int)}.
+     *
+     * @param offset the byte offset
+     * @throws IOException if the reader reads a stream or characters
+     */
+    public void seek(long offset) throws IOException {
+        seek(offset, 0);
+    }
+
+    /**
+     * Continues reading at a byte offset of the input, e.g. the
+     * {@link GameHeaderModel#getLong() offset of a game} found before.
+     * Seeking is supported by readers for PGN files and buffers, not by
+     * readers for streams, gzipped files or characters.
+     *
+     * @param offset the byte offset
+     * @param lineNumber the number of lines before the offset
+     * @throws IOException if the reader reads a stream or characters
+     * @throws IllegalArgumentException if the offset is outside of the input
+     */
+    public void seek(long offset, int lineNumber) throws IOException {
+        if (m_bytes == null)
+            throw new IOException("Cannot seek in " + m_filename);
+        m_bytes.seek(offset, lineNumber);
+        m_pushedBack = false;
+        m_lastToken = TOK_EOL;
+        m_movetext = null;
+        m_curGame = null;
+        m_curHeader = null;
+    }
+
+    /**
+     * Continues reading at the given game of an index of the input.
+     *
+     * @param index the index of the input
+     * @param game the number of the game, starting with 0
+     * @throws IOException if the reader reads a stream or characters
+     * @throws IndexOutOfBoundsException if the index has no such game
+     */
+    public void seekGame(PGNIndex index, int game) throws IOException {
+        seek(index.getOffset(game), index.getLineNumber(game));
+    }
+
     public void setErrorHandler(PGNErrorHandler handler) {
         m_errorHandler = handler;
     }
 
+    /**
+     * Sets whether {@link #parseGame()} keeps the movetext of a game and parses
+     * it only on the first access to the moves, comments or lines of the game.
+     * Until then only the header is parsed, as by {@link #parseGameHeader()},
+     * and the game is at its start position instead of its end.
+     * The movetext is parsed with the error handler set when the game was read;
+     * syntax errors are reported then and do not mark the game as
+     * {@link Game#hasError() erroneous}.
+     *
+     * <p>Only readers reading bytes parse lazily, i.e. not readers created for a
+     * {@link Reader}.
+     *
+     * @param lazy whether to parse the movetext lazily
+     */
+    public void setLazyMovetext(boolean lazy) {
+        m_lazyMovetext = lazy;
+    }
+
     // ======================================================================
 
     final static int TOK_EOF = -1, TOK_EOL = -2, TOK_IDENT = -3,
@@ -209,6 +342,8 @@ public final class PGNReader extends PGN {
      * @return the current line number
      */
     private int getLineNumber() {
+        if (m_bytes != null)
+            return m_bytes.getLineNumber() + 1;
         return m_in != null ? m_in.getLineNumber() + 1 : 0;
     }
 
@@ -250,9 +385,7 @@ public final class PGNReader extends PGN {
     // ======================================================================
 
     private final int get() throws IOException {
-        return m_in.read();
-        // 1.4 return m_in != null ? m_in.read() : (m_charBuf.hasRemaining() ?
-        // m_charBuf.get() : TOK_EOF);
+        return m_bytes != null ? m_bytes.read() : m_in.read();
     }
 
     private final int getChar() throws IOException {
@@ -336,6 +469,8 @@ public final class PGNReader extends PGN {
                 if (m_lastTokenLength >= MAX_TOKEN_SIZE)
                     syntaxError("Token too long");
                 m_buf[m_lastTokenLength++] = (char) ch;
+                if (m_bytes != null)
+                    m_lastTokenLength = m_bytes.readIdentifier(m_buf, m_lastTokenLength, s_isToken);
                 ch = getChar();
                 if (ch < 0)
                     break;
@@ -419,7 +554,11 @@ public final class PGNReader extends PGN {
             }
 
             try {
-                m_curGame.setTag(tagName, tagValue.trim());
+                if (m_curGame != null) {
+                    m_curGame.setTag(tagName, tagValue.trim());
+                } else {
+                    m_curHeader.setTag(tagName, tagValue.trim());
+                }
             } catch (Exception ex) {
                 syntaxError(ex.getMessage());
             }
@@ -439,6 +578,90 @@ public final class PGNReader extends PGN {
             getNextToken();
     }
 
+    /**
+     * Skips white spaces, escaped lines and line comments after a tag pair.
+     *
+     * @return whether another tag pair follows
+     */
+    private boolean isNextTag() throws IOException {
+        PGNByteInput in = m_bytes;
+        for (;;) {
+            int b = in.peek();
+            if (b == TOK_PGN_ESCAPE || b == TOK_LINE_COMMENT) {
+                do {
+                    in.skip();
+                    b = in.peek();
+                } while (b != '\n' && b != '\r' && b >= 0);
+            } else if (b >= 0 && b <= ' ') {
+                in.skip();
+            } else {
+                return b == TOK_TAG_BEGIN; // =====>
+            }
+        }
+    }
+
+    /**
+     * Skips a movetext section without parsing it, up to and including the
+     * result, or up to a tag begin at the begin of a line if the result is
+     * missing. Comments, strings, escaped lines and line comments are skipped
+     * as a whole.
+     *
+     * @return the offset after the last byte of the movetext
+     */
+    private long skipMovetextSection() throws PGNSyntaxError, IOException {
+        PGNByteInput in = m_bytes;
+        long end = in.getOffset();
+        boolean lineStart = false;
+        for (;;) {
+            int b = in.peek();
+            if (b < 0) {
+                return end; // =====>
+            } else if (b == '\n' || b == '\r') {
+                lineStart = true;
+                in.skip();
+            } else if (b <= ' ') {
+                in.skip();
+            } else if (b == TOK_TAG_BEGIN && lineStart) {
+                return end; // =====>
+            } else if (b == TOK_COMMENT_BEGIN || b == TOK_QUOTE) {
+                int close = (b == TOK_COMMENT_BEGIN ? TOK_COMMENT_END : TOK_QUOTE);
+                do {
+                    in.skip();
+                    b = in.peek();
+                } while (b != close && b >= 0);
+                if (b >= 0)
+                    in.skip();
+                end = in.getOffset();
+                lineStart = false;
+            } else if (b == TOK_PGN_ESCAPE || b == TOK_LINE_COMMENT) {
+                do {
+                    in.skip();
+                    b = in.peek();
+                } while (b != '\n' && b != '\r' && b >= 0);
+            } else if (b < s_isToken.length && s_isToken[b]) {
+                in.skip();
+                end = in.getOffset();
+                if (b == TOK_ASTERISK)
+                    return end; // =====>
+                lineStart = false;
+            } else {
+                m_lastTokenLength = 0;
+                do {
+                    if (m_lastTokenLength < m_buf.length)
+                        m_buf[m_lastTokenLength++] = (char) b;
+                    in.skip();
+                    b = in.peek();
+                } while (b > ' ' && (b >= s_isToken.length || !s_isToken[b])
+                        && b != TOK_PGN_ESCAPE && b != TOK_LINE_COMMENT);
+                end = in.getOffset();
+                m_lastToken = TOK_IDENT;
+                if (isLastTokenResult())
+                    return end; // =====>
+                lineStart = false;
+            }
+        }
+    }
+
     // ======================================================================
     // routines for parsing movetext sections
 
@@ -752,8 +975,10 @@ public final class PGNReader extends PGN {
     public Game parseGame() throws PGNSyntaxError, IOException {
         if (DEBUG)
             LOGGER.debug("===> new game");
-        if (m_in == null)
+        if (m_in == null && m_bytes == null)
             return null;
+        if (m_lazyMovetext && m_bytes != null)
+            return parseLazyGame(); // =====>
         try {
             m_curGame = null;
             if (!findNextGameStart()) {
@@ -781,6 +1006,138 @@ public final class PGNReader extends PGN {
         return m_curGame;
     }
 
+    /**
+     * Returns the header of the next game in the current pgn file, without
+     * parsing its movetext. The offset of the game in the input is stored as
+     * {@link GameHeaderModel#getLong()}, the offset and length of the movetext
+     * including the result as {@link GameHeaderModel#setMovetext(long, int)}.
+     *
+     * <p>The movetext is only skipped if the reader reads bytes, i.e. it has
+     * not been created for a {@link Reader}. Otherwise the game is parsed
+     * completely and the offsets are not set.
+     *
+     * @return the header of the next game
+     */
+    public GameHeaderModel parseGameHeader() throws PGNSyntaxError, IOException {
+        if (m_bytes == null) {
+            Game game = parseGame();
+            return game != null ? game.getModel().getHeaderModel() : null; // =====>
+        }
+        return parseHeader(false);
+    }
+
+    /**
+     * Parses the tag pair section and skips the movetext section.
+     *
+     * @param keepMovetext whether to keep the movetext in m_movetext
+     */
+    private GameHeaderModel parseHeader(boolean keepMovetext) throws IOException {
+        m_movetext = null;
+        try {
+            m_curGame = null;
+            m_curHeader = null;
+            if (!findNextGameStart()) {
+                return null;
+            }
+            m_curHeader = new GameHeaderModel();
+            m_curHeader.setLong(m_bytes.getOffset() - 1);
+            m_gameLineNumber = m_bytes.getLineNumber();
+            initForHeader();
+            while (parseTag() && isNextTag())
+                getNextToken();
+            long start = m_bytes.getOffset();
+            if (keepMovetext) {
+                m_movetextLineNumber = m_bytes.getLineNumber();
+                m_bytes.mark();
+            }
+            int length = (int) (skipMovetextSection() - start);
+            m_curHeader.setMovetext(start, length);
+            if (keepMovetext)
+                m_movetext = m_bytes.getMarked(length);
+            m_lastToken = TOK_NO_TOKEN;
+        } catch (PGNSyntaxError ex) {
+            LOGGER.error( "PGN syntax error" );
+            LOGGER.error( "> " + ex.getLocalizedMessage(), ex );
+        }
+        return m_curHeader;
+    }
+
+    /**
+     * Returns the number of lines before the last game returned by
+     * {@link #parseGameHeader()}, see {@link PGNIndex}.
+     */
+    int getGameLineNumber() {
+        return m_gameLineNumber;
+    }
+
+    /**
+     * Returns the next game with the movetext to be parsed on first access.
+     */
+    private Game parseLazyGame() throws PGNSyntaxError, IOException {
+        GameHeaderModel header = parseHeader(true);
+        if (header == null)
+            return null; // =====>
+
+        String fen = header.getTag(TAG_FEN);
+        if (fen != null && fen.trim().split(" ").length == 4) {
+            // support broken FENs by Shredder, see Game.setTag
+            header.setTag(TAG_FEN, fen.trim() + " 0 1");
+        }
+        GameMoveModel moves;
+        if (m_movetext != null) {
+            moves = new GameMoveModel(new PGNMovetextDecoder(m_movetext, header,
+                    header.getMovetextOffset(), m_movetextLineNumber, m_filename, m_errorHandler));
+        } else {
+            moves = new GameMoveModel();
+        }
+        Game game;
+        try {
+            game = new Game(new GameModel(header, moves));
+        } catch (IllegalArgumentException ex) {
+            // like parseGame, return the game without the FEN and moves
+            game = new Game();
+            for (String tag : header.getTags())
+                if (!TAG_FEN.equals(tag))
+                    game.setTag(tag, header.getTag(tag));
+            game.setError(true);
+            try {
+                syntaxError(ex.getMessage());
+            } catch (PGNSyntaxError error) {
+                // reported to the error handler
+            }
+        }
+        if (m_movetext == null)
+            game.setError(true);
+        m_movetext = null;
+        return game;
+    }
+
+    /**
+     * Parses a movetext section into a game, see {@link PGNMovetextDecoder}.
+     *
+     * @param game the game to add the moves to
+     */
+    void parseMovetext(Game game) throws IOException {
+        m_curGame = game;
+        m_curGame.setAlwaysAddLine(true);
+        try {
+            initForMovetext();
+            getNextToken();
+            parseMovetextSection();
+            m_curGame.pack();
+        } catch (PGNSyntaxError ex) {
+            LOGGER.error( "PGN syntax error" );
+            LOGGER.error( "> " + ex.getLocalizedMessage(), ex );
+
+            if (ex.getSeverity()==PGNSyntaxError.ERROR && !ex.getLastToken().equals("EOF")) {
+                m_curGame.setError(true);
+                m_curGame.addPostMoveComment("-error");
+                m_curGame.pack();
+            }
+        }
+        m_curGame = null;
+    }
+
     // ======================================================================
 
     private static void usage() {
@@ -822,7 +1179,7 @@ public final class PGNReader extends PGN {
             for (; index < args.length; index++) {
                 int numOfGames = 0;
                 int numOfGamesWithResult = 0;
-                PGNReader reader = new PGNReader(args[index]);
+                PGNReader reader = new PGNReader(new File(args[index]));
                 reader.setErrorHandler(new PGNSimpleErrorHandler(System.out));
                 if (mode == SHOW_CHARS) {
                     do {
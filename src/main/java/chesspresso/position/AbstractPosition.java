@@ -163,6 +163,11 @@ public abstract class AbstractPosition implements ImmutablePosition
         return hashCode;
     }
 
+    public long getZobristKey()
+    {
+        return Zobrist.getKey(this);
+    }
+
     public final int hashCode()
     {
         return (int)getHashCode();
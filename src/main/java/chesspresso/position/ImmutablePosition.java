@@ -122,6 +122,15 @@ public interface ImmutablePosition
      */
     public long getHashCode();
 
+    /**
+     * Returns a 64bit Zobrist key of the current position. Unlike
+     * {@link #getHashCode()}, all bits depend on the position, including the player
+     * to move. See {@link Zobrist} for the layout of the random numbers.
+     *
+     *@return a 64bit Zobrist key
+     */
+    public long getZobristKey();
+
     /**
      * Returns a 32bit hash code of the current position.
      * 32 bit is not enough to distinguish positions reliably, use only if
@@ -0,0 +1,204 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.position;
+
+import chesspresso.Chess;
+import chesspresso.move.Move;
+
+
+/**
+ * Staged move generator for searches.
+ *
+ * <p>The legal moves of a position are returned in the order a search most likely
+ * wants to try them:
+ * <ol>
+ *   <li>the hash move,</li>
+ *   <li>captures, most valuable victim first and least valuable attacker first
+ *       among equal victims (MVV/LVA),</li>
+ *   <li>the killer moves,</li>
+ *   <li>the remaining non-capturing moves.</li>
+ * </ol>
+ * Each stage is generated only when the previous one is exhausted, so a search which
+ * cuts off after the hash move or a capture never generates the quiet moves. Moves
+ * are generated pseudo-legally and checked for legality only when they are returned
+ * by {@link #next()}. The hash move and the killers are verified against the
+ * position, so they may stem from other positions.
+ *
+ * <p>A search needs one picker per ply. The position must not be changed between
+ * {@link #init(short, short, short)} and the last call of {@link #next()}, except
+ * for moves which are undone before <code>next()</code> is called again.
+ *
+ * @author Andreas Rudolph
+ */
+public class MovePicker
+{
+    private static final int
+        STAGE_HASH          = 0,
+        STAGE_CAPTURES_INIT = 1,
+        STAGE_CAPTURES      = 2,
+        STAGE_KILLER_1      = 3,
+        STAGE_KILLER_2      = 4,
+        STAGE_QUIETS_INIT   = 5,
+        STAGE_QUIETS        = 6,
+        STAGE_DONE          = 7;
+
+    // order of the pieces by value, indexed by piece
+    private static final int[] PIECE_ORDER = new int[Chess.MAX_PIECE + 1];
+
+    static {
+        PIECE_ORDER[Chess.NO_PIECE] = 0;
+        PIECE_ORDER[Chess.PAWN]     = 1;
+        PIECE_ORDER[Chess.KNIGHT]   = 2;
+        PIECE_ORDER[Chess.BISHOP]   = 3;
+        PIECE_ORDER[Chess.ROOK]     = 4;
+        PIECE_ORDER[Chess.QUEEN]    = 5;
+        PIECE_ORDER[Chess.KING]     = 6;
+    }
+
+    private final Position m_position;
+    private final short[] m_moves = new short[Position.MAX_NUM_OF_MOVES];
+    private final int[] m_scores = new int[Position.MAX_NUM_OF_MOVES];
+    private int m_index;
+    private int m_numOfMoves;
+    private int m_stage;
+
+    private short m_hashMove;
+    private short m_killer1;
+    private short m_killer2;
+
+    /*================================================================================*/
+
+    public MovePicker(Position position)
+    {
+        m_position = position;
+        m_stage = STAGE_DONE;
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Starts picking the moves of the current position.
+     *
+     *@param hashMove the move to try first, <code>Move.NO_MOVE</code> if none
+     *@param killer1 the first killer move, <code>Move.NO_MOVE</code> if none
+     *@param killer2 the second killer move, <code>Move.NO_MOVE</code> if none
+     */
+    public void init(short hashMove, short killer1, short killer2)
+    {
+        m_hashMove = hashMove;
+        m_killer1 = killer1;
+        m_killer2 = killer2;
+        m_index = 0;
+        m_numOfMoves = 0;
+        m_stage = STAGE_HASH;
+    }
+
+    /**
+     * Returns the next legal move.
+     *
+     *@return the next legal move, <code>Move.NO_MOVE</code> if all moves have been returned
+     */
+    public short next()
+    {
+        for (;;) {
+            switch (m_stage) {
+                case STAGE_HASH:
+                    m_stage = STAGE_CAPTURES_INIT;
+                    if (m_hashMove != Move.NO_MOVE && m_position.isLegalMove(m_hashMove)) return m_hashMove;  // =====>
+                    m_hashMove = Move.NO_MOVE;
+                    break;
+
+                case STAGE_CAPTURES_INIT:
+                    m_stage = STAGE_CAPTURES;
+                    m_numOfMoves = m_position.generatePseudoLegalMoves(m_moves, 0, Position.CAPTURING_MOVES);
+                    m_index = 0;
+                    scoreCaptures();
+                    break;
+
+                case STAGE_CAPTURES:
+                    while (m_index < m_numOfMoves) {
+                        short move = pickBestCapture();
+                        if (move != m_hashMove && m_position.isPseudoLegalMoveLegal(move)) return move;  // =====>
+                    }
+                    m_stage = STAGE_KILLER_1;
+                    break;
+
+                case STAGE_KILLER_1:
+                    m_stage = STAGE_KILLER_2;
+                    if (isGoodKiller(m_killer1)) return m_killer1;  // =====>
+                    break;
+
+                case STAGE_KILLER_2:
+                    m_stage = STAGE_QUIETS_INIT;
+                    if (m_killer2 != m_killer1 && isGoodKiller(m_killer2)) return m_killer2;  // =====>
+                    break;
+
+                case STAGE_QUIETS_INIT:
+                    m_stage = STAGE_QUIETS;
+                    m_numOfMoves = m_position.generatePseudoLegalMoves(m_moves, 0, Position.NON_CAPTURING_MOVES);
+                    m_index = 0;
+                    break;
+
+                case STAGE_QUIETS:
+                    while (m_index < m_numOfMoves) {
+                        short move = m_moves[m_index++];
+                        if (move != m_hashMove && move != m_killer1 && move != m_killer2 &&
+                            m_position.isPseudoLegalMoveLegal(move)) {
+                            return move;  // =====>
+                        }
+                    }
+                    m_stage = STAGE_DONE;
+                    break;
+
+                default:
+                    return Move.NO_MOVE;  // =====>
+            }
+        }
+    }
+
+    /*================================================================================*/
+
+    private boolean isGoodKiller(short killer)
+    {
+        return killer != Move.NO_MOVE && killer != m_hashMove && !Move.isCapturing(killer) &&
+               m_position.isLegalMove(killer);
+    }
+
+    private void scoreCaptures()
+    {
+        for (int i = 0; i < m_numOfMoves; i++) {
+            short move = m_moves[i];
+            int victim = (Move.isEPMove(move) ? Chess.PAWN : m_position.getPiece(Move.getToSqi(move)));
+            int attacker = m_position.getPiece(Move.getFromSqi(move));
+            int score = 8 * PIECE_ORDER[victim] - PIECE_ORDER[attacker];
+            if (Move.isPromotion(move)) score += PIECE_ORDER[Move.getPromotionPiece(move)];
+            m_scores[i] = score;
+        }
+    }
+
+    private short pickBestCapture()
+    {
+        // selection sort step: only the captures actually tried are sorted
+        int best = m_index;
+        for (int i = m_index + 1; i < m_numOfMoves; i++) {
+            if (m_scores[i] > m_scores[best]) best = i;
+        }
+        short move = m_moves[best];
+        m_moves[best] = m_moves[m_index];
+        m_scores[best] = m_scores[m_index];
+        m_index++;
+        return move;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.position;
+
+import chesspresso.move.IllegalMoveException;
+import chesspresso.move.Move;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Performance test (perft) for the move generator of {@link Position}.
+ *
+ * <p>Perft counts all leaf nodes of the legal move tree up to a given depth. The
+ * numbers are well known for many positions, so perft is used both to verify the
+ * correctness of the move generator and to measure the throughput of
+ * <code>doMove</code>, <code>undoMove</code> and move generation.
+ *
+ * <p>The root moves are split across a fork/join pool, every worker uses its own
+ * copy of the position. Optionally, the counts of sub trees can be cached in a
+ * table keyed by the hash code of the position. Since hash codes may collide, the
+ * cache should not be used when verifying the move generator.
+ *
+ * @author Andreas Rudolph
+ */
+public class Perft
+{
+    private final static Logger LOGGER = LoggerFactory.getLogger( Perft.class );
+
+    private final int m_parallelism;
+    private final long[] m_cacheKeys;
+    private final long[] m_cacheNodes;
+    private final int m_cacheMask;
+    private ForkJoinPool m_pool;
+
+    private long m_nodes;
+    private long m_nanos;
+
+    /*================================================================================*/
+
+    /**
+     * Creates a perft using all available processors and no cache.
+     */
+    public Perft()
+    {
+        this(Runtime.getRuntime().availableProcessors(), 0);
+    }
+
+    /**
+     * Creates a perft.
+     *
+     *@param parallelism the number of worker threads, 1 to run in the calling thread
+     *@param cacheBits the cache holds <code>2^cacheBits</code> entries, 0 for no cache
+     */
+    public Perft(int parallelism, int cacheBits)
+    {
+        if (parallelism < 1) throw new IllegalArgumentException("Illegal parallelism: " + parallelism);
+        if (cacheBits < 0 || cacheBits > 30) throw new IllegalArgumentException("Illegal cache bits: " + cacheBits);
+
+        m_parallelism = parallelism;
+        if (cacheBits > 0) {
+            m_cacheKeys = new long[1 << cacheBits];
+            m_cacheNodes = new long[1 << cacheBits];
+            m_cacheMask = (1 << cacheBits) - 1;
+        } else {
+            m_cacheKeys = null;
+            m_cacheNodes = null;
+            m_cacheMask = 0;
+        }
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Returns the number of leaf nodes of the legal move tree of the given depth.
+     *
+     *@param position the root position, it is not changed
+     *@param depth the depth in plies
+     *@return the number of leaf nodes
+     */
+    public long perft(ImmutablePosition position, int depth)
+    {
+        if (depth <= 0) {
+            m_nodes = 1;
+            m_nanos = 0;
+            return 1;  // =====>
+        }
+        long nodes = 0;
+        for (Long num : divide(position, depth).values()) nodes += num.longValue();
+        return nodes;
+    }
+
+    /**
+     * Returns the number of leaf nodes below each of the legal moves of the given position.
+     *
+     *@param position the root position, it is not changed
+     *@param depth the depth in plies including the root moves, must be at least 1
+     *@return the number of leaf nodes per root move, in the order of the generated moves
+     */
+    public Map<Short, Long> divide(ImmutablePosition position, int depth)
+    {
+        if (depth < 1) throw new IllegalArgumentException("Illegal depth: " + depth);
+
+        long start = System.nanoTime();
+
+        short[] moves = new Position(position).getAllMoves();
+        List<RootTask> tasks = new ArrayList<RootTask>(moves.length);
+        for (short move : moves) {
+            tasks.add(new RootTask(position, move, depth - 1));
+        }
+
+        if (m_parallelism > 1) {
+            ForkJoinPool pool = getPool();
+            for (RootTask task : tasks) pool.execute(task);
+        } else {
+            for (RootTask task : tasks) task.invoke();
+        }
+
+        Map<Short, Long> result = new LinkedHashMap<Short, Long>();
+        long nodes = 0;
+        for (RootTask task : tasks) {
+            long num = task.join().longValue();
+            result.put(Short.valueOf(task.m_move), Long.valueOf(num));
+            nodes += num;
+        }
+
+        m_nodes = nodes;
+        m_nanos = System.nanoTime() - start;
+        if (LOGGER.isDebugEnabled()) LOGGER.debug("perft(" + depth + ") = " + nodes + ", " + getNodesPerSecond() + " nodes/s");
+        return result;
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Returns the number of leaf nodes counted by the last call of
+     * {@link #perft(ImmutablePosition, int)} or {@link #divide(ImmutablePosition, int)}.
+     */
+    public long getNodes() {return m_nodes;}
+
+    /**
+     * Returns the time the last run took in nanoseconds.
+     */
+    public long getNanos() {return m_nanos;}
+
+    /**
+     * Returns the number of leaf nodes per second of the last run.
+     */
+    public long getNodesPerSecond()
+    {
+        return (m_nanos == 0 ? 0 : (long)(m_nodes * 1000000000.0 / m_nanos));
+    }
+
+    /*================================================================================*/
+
+    private synchronized ForkJoinPool getPool()
+    {
+        if (m_pool == null) m_pool = new ForkJoinPool(m_parallelism);
+        return m_pool;
+    }
+
+    /**
+     * Terminates the worker threads. The perft can still be used afterwards,
+     * a new pool is created on demand.
+     */
+    public synchronized void shutdown()
+    {
+        if (m_pool != null) {
+            m_pool.shutdown();
+            m_pool = null;
+        }
+    }
+
+    /*================================================================================*/
+    // cache
+    //
+    // keys are stored xor'ed with the node count, such that an entry that was
+    // written concurrently by two workers is detected (lockless hashing)
+
+    private static long getCacheKey(long hashCode, int depth)
+    {
+        return hashCode ^ (depth * 0x9E3779B97F4A7C15L);
+    }
+
+    private long probe(long key)
+    {
+        int index = (int)key & m_cacheMask;
+        long nodes = m_cacheNodes[index];
+        return ((m_cacheKeys[index] ^ nodes) == key ? nodes : -1L);
+    }
+
+    private void store(long key, long nodes)
+    {
+        int index = (int)key & m_cacheMask;
+        m_cacheNodes[index] = nodes;
+        m_cacheKeys[index] = key ^ nodes;
+    }
+
+    /*================================================================================*/
+
+    private final class RootTask extends RecursiveTask<Long>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final ImmutablePosition m_root;
+        private final short m_move;
+        private final int m_depth;
+
+        RootTask(ImmutablePosition root, short move, int depth)
+        {
+            m_root = root;
+            m_move = move;
+            m_depth = depth;
+        }
+
+        @Override
+        protected Long compute()
+        {
+            Position position = PositionPool.acquire(m_root);
+            short[][] moves = new short[m_depth + 1][Position.MAX_NUM_OF_MOVES];
+            try {
+                position.doMove(m_move);
+                return Long.valueOf(perft(position, m_depth, moves));
+            } catch (IllegalMoveException ex) {
+                throw new RuntimeException(ex.getMessage(), ex);
+            } finally {
+                PositionPool.release(position);
+            }
+        }
+
+        private long perft(Position position, int depth, short[][] moves)
+        {
+            if (depth == 0) return 1;  // =====>
+
+            short[] buffer = moves[depth];
+            int num = position.generateMoves(buffer, 0, Position.ALL_MOVES);
+            if (depth == 1) return num;  // =====>  bulk counting
+
+            long key = 0L;
+            if (m_cacheKeys != null) {
+                key = getCacheKey(position.getHashCode(), depth);
+                long nodes = probe(key);
+                if (nodes >= 0) return nodes;  // =====>
+            }
+
+            long nodes = 0;
+            for (int i = 0; i < num; i++) {
+                try {
+                    position.doMove(buffer[i]);
+                } catch (IllegalMoveException ex) {
+                    throw new RuntimeException("Generated illegal move " + Move.getString(buffer[i]) + " in " + position, ex);
+                }
+                nodes += perft(position, depth - 1, moves);
+                position.undoMove();
+            }
+
+            if (m_cacheKeys != null) store(key, nodes);
+            return nodes;
+        }
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Runs a perft from the command line.
+     *
+     * <pre>Perft depth [fen] [threads] [cacheBits]</pre>
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1) {
+            System.out.println("Usage: Perft depth [fen] [threads] [cacheBits]");
+            return;  // =====>
+        }
+        int depth = Integer.parseInt(args[0]);
+        String fen = (args.length > 1 ? args[1] : FEN.START_POSITION);
+        int threads = (args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+        int cacheBits = (args.length > 3 ? Integer.parseInt(args[3]) : 0);
+
+        Perft perft = new Perft(threads, cacheBits);
+        Position position = new Position(fen);
+        for (Map.Entry<Short, Long> entry : perft.divide(position, depth).entrySet()) {
+            System.out.println(Move.getString(entry.getKey().shortValue()) + ": " + entry.getValue());
+        }
+        System.out.println("nodes: " + perft.getNodes());
+        System.out.println("time:  " + (perft.getNanos() / 1000000L) + " ms");
+        System.out.println("speed: " + perft.getNodesPerSecond() + " nodes/s");
+        perft.shutdown();
+    }
+}
@@ -20,6 +20,7 @@ import java.text.DecimalFormat;
 import chesspresso.Chess;
 import chesspresso.move.IllegalMoveException;
 import chesspresso.move.Move;
+import chesspresso.move.MoveList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,22 +33,6 @@ public final class Position extends AbstractMoveablePosition
 {
     private final static Logger LOGGER = LoggerFactory.getLogger( Position.class );
     private final static boolean DEBUG = false;
-    private final static boolean PROFILE = false;
-
-    private static long m_numIsAttacked = 0;
-    private static long m_numDirectAttackers = 0;
-    private static long m_numGetAllAttackers = 0;
-    private static long m_numIsCheck = 0;
-    private static long m_numIsMate = 0;
-    private static long m_numIsStaleMate = 0;
-    private static long m_numGetAllMoves = 0;
-    private static long m_numPositions = 0;
-    private static long m_numGetPinnedDirection = 0;
-    private static long m_numDoMove = 0;
-    private static long m_numLongsBackuped = 0;
-    private static long m_numUndoMove = 0;
-    private static long m_numSet = 0;
-    private static long m_numGetSquare = 0;
 
     private static DecimalFormat df = new DecimalFormat("#");
 
@@ -57,26 +42,20 @@ public final class Position extends AbstractMoveablePosition
         return res.substring(res.length() - 12);
     }
 
+    /**
+     * Logs the counters of {@link PositionMetrics}, if enabled.
+     */
     public static void printProfile()
     {
-        if (!PROFILE) return;  // =====>
+        if (!PositionMetrics.isEnabled()) return;  // =====>
 
         LOGGER.info("Instances created:");
-        LOGGER.info("  ChPosition:         " + format(m_numPositions));
+        LOGGER.info("  ChPosition:         " + format(PositionMetrics.getCount(PositionMetrics.POSITIONS)));
         LOGGER.info("Methods called:");
-        LOGGER.info("  isAttacked:         " + format(m_numIsAttacked));
-        LOGGER.info("  directAttackers:    " + format(m_numDirectAttackers));
-        LOGGER.info("  getAllAttackers:    " + format(m_numGetAllAttackers));
-        LOGGER.info("  isCheck:            " + format(m_numIsCheck));
-        LOGGER.info("  isMate:             " + format(m_numIsMate));
-        LOGGER.info("  isStaleMate:        " + format(m_numIsStaleMate));
-        LOGGER.info("  getAllMoves:        " + format(m_numGetAllMoves));
-        LOGGER.info("  getPinnedDirection: " + format(m_numGetPinnedDirection));
-        LOGGER.info("  doMove:             " + format(m_numDoMove));
-        LOGGER.info("    longs backuped    " + format(m_numLongsBackuped) + "  " + ((double)m_numLongsBackuped / m_numDoMove) + " per move");
-        LOGGER.info("  undoMove:           " + format(m_numUndoMove));
-        LOGGER.info("  set:                " + format(m_numSet));
-        LOGGER.info("  getSquare:          " + format(m_numGetSquare));
+        for (int counter = PositionMetrics.POSITIONS + 1; counter < PositionMetrics.NUM_OF_COUNTERS; counter++) {
+            String name = PositionMetrics.getCounterName(counter) + ":                    ";
+            LOGGER.info("  " + name.substring(0, 20) + format(PositionMetrics.getCount(counter)));
+        }
     }
 
     /*================================================================================*/
@@ -137,6 +116,7 @@ public final class Position extends AbstractMoveablePosition
     private static final int[][] DIR;
     private static final long[][] RAY;
     private static final long[][] SQUARES_BETWEEN;
+    private static final long[][] LINE;  // the full line through both squares, 0 if they are not on a line
 
     static {
         /*---------- RIM_BOARD ----------*/
@@ -150,10 +130,11 @@ public final class Position extends AbstractMoveablePosition
         RIM_BOARD[NE] = RIM_BOARD[N] | RIM_BOARD[E];
         RIM_BOARD[NW] = RIM_BOARD[N] | RIM_BOARD[W];
 
-        /*---------- DIR, RAY, SQUARES_BETWEEN ----------*/
+        /*---------- DIR, RAY, SQUARES_BETWEEN, LINE ----------*/
         DIR = new int[Chess.NUM_OF_SQUARES][];
         RAY = new long[Chess.NUM_OF_SQUARES][];
         SQUARES_BETWEEN = new long[Chess.NUM_OF_SQUARES][];
+        LINE = new long[Chess.NUM_OF_SQUARES][];
         for (int from = Chess.A1; from <= Chess.H8; from++) {
             DIR[from] = new int[Chess.NUM_OF_SQUARES];
             SQUARES_BETWEEN[from] = new long[Chess.NUM_OF_SQUARES];
@@ -176,6 +157,13 @@ public final class Position extends AbstractMoveablePosition
                 }
                 RAY[from][dir] &= ~ofSquare(from);
             }
+            LINE[from] = new long[Chess.NUM_OF_SQUARES];
+            for (int to = Chess.A1; to <= Chess.H8; to++) {
+                int dir = DIR[from][to];
+                if (dir != NO_DIR) {
+                    LINE[from][to] = RAY[from][dir] | RAY[from][dir ^ 4] | ofSquare(from);
+                }
+            }
         }
     }
 
@@ -221,6 +209,8 @@ public final class Position extends AbstractMoveablePosition
     private static final long[] WHITE_PAWN_ATTACKS   = new long[Chess.NUM_OF_SQUARES];
     private static final long[] BLACK_PAWN_ATTACKS   = new long[Chess.NUM_OF_SQUARES];
 
+    private static final long LIGHT_SQUARES = 0x55AA55AA55AA55AAL;
+
     private static final long WHITE_SHORT_CASTLE_EMPTY_MASK =
         ofSquare(Chess.F1) | ofSquare(Chess.G1);
     private static final long WHITE_LONG_CASTLE_EMPTY_MASK =
@@ -230,6 +220,16 @@ public final class Position extends AbstractMoveablePosition
     private static final long BLACK_LONG_CASTLE_EMPTY_MASK =
         ofSquare(Chess.D8) | ofSquare(Chess.C8) | ofSquare(Chess.B8);
 
+    // squares the king passes or moves to, they must not be attacked
+    private static final long WHITE_SHORT_CASTLE_PASS_MASK =
+        ofSquare(Chess.F1) | ofSquare(Chess.G1);
+    private static final long WHITE_LONG_CASTLE_PASS_MASK =
+        ofSquare(Chess.D1) | ofSquare(Chess.C1);
+    private static final long BLACK_SHORT_CASTLE_PASS_MASK =
+        ofSquare(Chess.F8) | ofSquare(Chess.G8);
+    private static final long BLACK_LONG_CASTLE_PASS_MASK =
+        ofSquare(Chess.D8) | ofSquare(Chess.C8);
+
     static {
         for (int from = Chess.A1; from <= Chess.H8; from++) {
             KNIGHT_ATTACKS[from] = 0L;
@@ -268,6 +268,133 @@ public final class Position extends AbstractMoveablePosition
         }
     }
 
+    /*================================================================================*/
+    // magic bit boards for sliding pieces
+    //
+    // the attacks of a slider on sqi only depend on the pieces on its relevant squares
+    // (the rays without the rim square at their end). Multiplying those occupied squares
+    // with a magic number maps every possible occupancy onto a unique index into a table
+    // of precomputed attack sets, so the attacks of a slider are a single table lookup.
+    //
+    // the magics below have been found by a random search over sparse candidates, the
+    // tables are filled from them when the class is loaded
+
+    private static final long[] BISHOP_MAGIC = {
+        0x10102002004A1420L, 0x8020040400584008L, 0x10510800811201C8L, 0x5204042080000088L,
+        0x2204106880000002L, 0x1401042004000000L, 0x0400880410042004L, 0x0028208200A02020L,
+        0x1500241990010E00L, 0x8001200182020A40L, 0x40004101030B0000L, 0x8002041042000100L,
+        0x4010011041020038L, 0x0000010421044000L, 0x1500210808020A00L, 0x8000088400880520L,
+        0x0405004010040100L, 0x1005823210040108L, 0x2708008102040011L, 0x4048200404009100L,
+        0x0018104101400024L, 0x0003000601190101L, 0x8004803108491000L, 0x8014241200820800L,
+        0x0006E080100C3040L, 0x0501044A11041800L, 0x9020300008004045L, 0x0894080000220040L,
+        0x1001010083104000L, 0x5004030040900080L, 0x000400422C012400L, 0x0002128698404812L,
+        0x1010108404900440L, 0x0928021182084100L, 0x2006080409020024L, 0x1010202020180080L,
+        0xA010008200202200L, 0x2098015100019004L, 0x0002041440810811L, 0x802A02020000B098L,
+        0x0009015090004060L, 0x4000821082081001L, 0x0100210040420800L, 0x0800004010488A00L,
+        0x2000081104004040L, 0x4C8E029015000082L, 0x0420340322224842L, 0x1298260043400210L,
+        0x0000822802400008L, 0x00008A0101600000L, 0x3040003412080021L, 0x3040290220884800L,
+        0x4A1500401041004AL, 0x8010200282020781L, 0x0020203142209091L, 0x0070300600902110L,
+        0x0040808800B62048L, 0x0000810400C44420L, 0x00080400440C0441L, 0x8340080020840411L,
+        0x0000000104208200L, 0x0000800810D00080L, 0x0400530411080200L, 0x4040702400932244L
+    };
+
+    private static final long[] ROOK_MAGIC = {
+        0x1080004008801020L, 0x0840092002C03000L, 0x1900200010400900L, 0x0880100008000480L,
+        0x4200100420080200L, 0x8100020100080400L, 0x0200040110886200L, 0x0200008040220411L,
+        0x0404800084400220L, 0x0000401000402000L, 0x0086001081220440L, 0x0408800800100280L,
+        0x000A001201040820L, 0x8848800200840080L, 0x4001000100040200L, 0x0442000102105084L,
+        0x9080010020804100L, 0x0040404000201009L, 0x0000808010002009L, 0x2200090021D00100L,
+        0x0008008008040080L, 0x0004004002010040L, 0x0011040008015042L, 0x00000A0001768104L,
+        0x0000800080204009L, 0x2010004140002001L, 0x9800200280100080L, 0x1000100080080080L,
+        0x0442000A00049020L, 0x2100040080020080L, 0x0800120400900148L, 0x0010040A00128541L,
+        0x2800804000800030L, 0x1010002000400041L, 0x4000200011004100L, 0x0610008410800800L,
+        0x0400802402800800L, 0xC100020080800400L, 0x0002000802000401L, 0x0182085882000401L,
+        0x0220204000808000L, 0x2860100040024022L, 0x0001002004110040L, 0x99101042000A0020L,
+        0x0004080004008080L, 0x0010040002008080L, 0x2012004881020004L, 0x8300842444820011L,
+        0x0088403882010200L, 0x0820400080210100L, 0x0110910040A00300L, 0x0801100280080480L,
+        0x0242009008200600L, 0x1002000489500200L, 0x0040800200010080L, 0x0091800041000080L,
+        0x0000209300488001L, 0x04C1002414824001L, 0x020020000B001041L, 0x7000100004200901L,
+        0x8002002004100802L, 0x30010002084C0007L, 0x0888221800813004L, 0x4000002840840112L
+    };
+
+    private static final long[] BISHOP_MASK   = new long[Chess.NUM_OF_SQUARES];
+    private static final int[]  BISHOP_SHIFT  = new int[Chess.NUM_OF_SQUARES];
+    private static final int[]  BISHOP_OFFSET = new int[Chess.NUM_OF_SQUARES];
+    private static final long[] BISHOP_TABLE;
+
+    private static final long[] ROOK_MASK     = new long[Chess.NUM_OF_SQUARES];
+    private static final int[]  ROOK_SHIFT    = new int[Chess.NUM_OF_SQUARES];
+    private static final int[]  ROOK_OFFSET   = new int[Chess.NUM_OF_SQUARES];
+    private static final long[] ROOK_TABLE;
+
+    static {
+        BISHOP_TABLE = initMagics(BISHOP_MASK, BISHOP_MAGIC, BISHOP_SHIFT, BISHOP_OFFSET, SW);
+        ROOK_TABLE   = initMagics(ROOK_MASK, ROOK_MAGIC, ROOK_SHIFT, ROOK_OFFSET, S);
+    }
+
+    private static final long bishopAttacks(int sqi, long bbOccupied)
+    {
+        return BISHOP_TABLE[BISHOP_OFFSET[sqi] + (int)(((bbOccupied & BISHOP_MASK[sqi]) * BISHOP_MAGIC[sqi]) >>> BISHOP_SHIFT[sqi])];
+    }
+
+    private static final long rookAttacks(int sqi, long bbOccupied)
+    {
+        return ROOK_TABLE[ROOK_OFFSET[sqi] + (int)(((bbOccupied & ROOK_MASK[sqi]) * ROOK_MAGIC[sqi]) >>> ROOK_SHIFT[sqi])];
+    }
+
+    private static final long queenAttacks(int sqi, long bbOccupied)
+    {
+        return bishopAttacks(sqi, bbOccupied) | rookAttacks(sqi, bbOccupied);
+    }
+
+    private static final long getSlidingAttacks(int sqi, long bbOccupied, int startDir)
+    {
+        // used to generate the magic tables, walks the rays square by square
+        long attacks = 0L;
+        for (int dir = startDir; dir < NUM_OF_DIRS; dir += 2) {
+            long bb = ofSquare(sqi);
+            while ((bb & RIM_BOARD[dir]) == 0L) {
+                if (DIR_SHIFT[dir] < 0) bb >>>= -DIR_SHIFT[dir]; else bb <<= DIR_SHIFT[dir];
+                attacks |= bb;
+                if ((bb & bbOccupied) != 0L) break;
+            }
+        }
+        return attacks;
+    }
+
+    private static final long[] initMagics(long[] masks, long[] magics, int[] shifts, int[] offsets, int startDir)
+    {
+        /*---------- relevant squares ----------*/
+        int size = 0;
+        for (int sqi = Chess.A1; sqi <= Chess.H8; sqi++) {
+            masks[sqi] = 0L;
+            for (int dir = startDir; dir < NUM_OF_DIRS; dir += 2) {
+                masks[sqi] |= RAY[sqi][dir] & ~RIM_BOARD[dir];
+            }
+            shifts[sqi] = Chess.NUM_OF_SQUARES - Long.bitCount(masks[sqi]);
+            offsets[sqi] = size;
+            size += 1 << Long.bitCount(masks[sqi]);
+        }
+
+        /*---------- fill attack tables ----------*/
+        long[] table = new long[size];
+        for (int sqi = Chess.A1; sqi <= Chess.H8; sqi++) {
+            // enumerate all subsets of the relevant squares (carry rippler)
+            long bb = 0L;
+            do {
+                int index = offsets[sqi] + (int)((bb * magics[sqi]) >>> shifts[sqi]);
+                long attacks = getSlidingAttacks(sqi, bb, startDir);
+                // no attack set can be empty, so a filled entry is recognized by being non-zero
+                if (table[index] != 0L && table[index] != attacks) {
+                    throw new RuntimeException("Illegal magic for square " + Chess.sqiToStr(sqi));
+                }
+                table[index] = attacks;
+                bb = (bb - masks[sqi]) & masks[sqi];
+            } while (bb != 0L);
+        }
+        return table;
+    }
+
     /*================================================================================*/
     // settings for information flags in m_flags
 
@@ -275,7 +402,8 @@ public final class Position extends AbstractMoveablePosition
         FLAG_YES              =   1,
         FLAG_NO               =   2,
         FLAG_MASK             = 0x3;
-    private final static int
+    // package-private for PositionSnapshot
+    final static int
         TO_PLAY_SHIFT         =  0,   TO_PLAY_MASK          = 0x01,
         CASTLES_SHIFT         =  1,   CASTLES_MASK          = 0x0F,
         SQI_EP_SHIFT          =  5,   SQI_EP_MASK           = 0x7F,
@@ -290,39 +418,104 @@ public final class Position extends AbstractMoveablePosition
 
         // can use up to 47 bits (64 bits - 2 * 6 to store king squares - 5 for change mask)
 
+    private final static int
+        ATTACKS_WHITE         = 1,
+        ATTACKS_BLACK         = 2;
+
+    /*================================================================================*/
+    // kinds of moves for generateMoves
+
+    public static final int
+        ALL_MOVES             = 0,
+        CAPTURING_MOVES       = 1,
+        NON_CAPTURING_MOVES   = 2;
+    private static final int
+        RECAPTURING_MOVES     = 3;
+
+    /**
+     * The maximum number of legal moves in any position is 218, buffers passed
+     * to {@link #generateMoves(short[], int, int)} must hold at least this many moves.
+     */
+    public static final int MAX_NUM_OF_MOVES = 256;
 
     /*================================================================================*/
 
     private long m_bbWhites, m_bbBlacks, m_bbPawns, m_bbKnights, m_bbBishops, m_bbRooks;
+    private final byte[] m_stones = new byte[Chess.NUM_OF_SQUARES];  // mailbox, kept in sync with the bit boards
     private int m_whiteKing, m_blackKing;  // actually only a short (6 bit)
     private long m_flags;
     private long m_hashCode;
+    private long m_zobristKey = Zobrist.s_whiteToPlayMod;  // empty position, white to play
 
     private long[] m_bakStack;
     private int m_bakIndex;
     private short[] m_moveStack;
     private int m_moveStackIndex;
+    private long[] m_keyStack;  // Zobrist keys of the positions before the moves in m_moveStack
+
+    private short[] m_moves;   // buffer for getAllMoves, allocated on first use
+
+    // only valid during move generation, see initPinsAndCheckers
+    private long m_bbPinned;    // pieces of the side to move pinned in front of their king
+    private long m_bbCheckers;  // pieces giving check to the king of the side to move
+
+    // squares attacked by each side, computed on demand, see getAttackedSquares
+    private long m_bbWhiteAttacks, m_bbBlackAttacks;
+    private int m_attacksValid;  // ATTACKS_WHITE | ATTACKS_BLACK if the respective map is valid
 
-    private short[] m_moves = new short[256];   // buffer for getAllMoves, allocated once for efficiency
+    private final int[] m_seeGain = new int[Chess.NUM_OF_SQUARES / 2];  // buffer for see, at most 32 pieces take part in an exchange
 
     /*================================================================================*/
 
+    // the initial position, parsed once and copied by createInitialPosition
+    private static final class StartPosition
+    {
+        static final PositionSnapshot SNAPSHOT;
+
+        static {
+            Position position = new Position();
+            FEN.initFromFEN(position, FEN.START_POSITION, true);
+            SNAPSHOT = position.snapshot();
+        }
+    }
+
+    private static final long[] NO_BACKUPS = new long[0];
+    private static final short[] NO_MOVES = new short[0];
+    private static final int MIN_BUFFER_LENGTH = 16;  // the number of moves the stacks hold when first allocated
+
     public static Position createInitialPosition()
     {
-        return new Position (FEN.START_POSITION, true);
+        return new Position(StartPosition.SNAPSHOT);
     }
 
+    /**
+     * Creates an empty position. The stacks for undo and redo are allocated with
+     * the first move.
+     */
     public Position()
     {
-        this(60);  // make room for 120 plies
+        this(0);
     }
 
+    /**
+     * Creates an empty position with room for the given number of moves before
+     * the stacks for undo and redo need to grow.
+     *
+     *@param bufferLength the number of moves, 0 to allocate the stacks with the first move
+     */
     public Position(int bufferLength)
     {
-        if (PROFILE) m_numPositions++;
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.POSITIONS);
 
-        m_bakStack = new long[4 * bufferLength];  //on average, we need about 3.75 longs to backup a position
-        m_moveStack = new short[bufferLength];
+        if (bufferLength > 0) {
+            m_bakStack = new long[5 * bufferLength];  //on average, we need about 4.75 longs to backup a position
+            m_moveStack = new short[bufferLength];
+            m_keyStack = new long[bufferLength];
+        } else {
+            m_bakStack = NO_BACKUPS;
+            m_moveStack = NO_MOVES;
+            m_keyStack = NO_BACKUPS;
+        }
         clear();
     }
 
@@ -332,6 +525,12 @@ public final class Position extends AbstractMoveablePosition
         set(pos);
     }
 
+    public Position(PositionSnapshot snapshot)
+    {
+        this();
+        set(snapshot);
+    }
+
     public Position(String fen) throws IllegalArgumentException
     {
         this(fen, true);
@@ -340,7 +539,11 @@ public final class Position extends AbstractMoveablePosition
     public Position(String fen, boolean strict) throws IllegalArgumentException
     {
         this();
-        FEN.initFromFEN(this, fen, strict);
+        if (FEN.START_POSITION.equals(fen)) {
+            set(StartPosition.SNAPSHOT);
+        } else {
+            FEN.initFromFEN(this, fen, strict);
+        }
     }
 
     @Override
@@ -349,6 +552,34 @@ public final class Position extends AbstractMoveablePosition
         super.clear();
     }
 
+    private final void discardMoves()
+    {
+        m_bakIndex = 0;
+        if (m_bakStack.length > 0) m_bakStack[0] = 0L;
+        m_moveStackIndex = 0;
+    }
+
+    static PositionSnapshot getStartSnapshot()
+    {
+        return StartPosition.SNAPSHOT;
+    }
+
+    /**
+     * Prepares the position to be handed out again by {@link PositionPool}: discards
+     * the moves and removes all listeners and custom piece-square tables.
+     */
+    final void recycle()
+    {
+        discardMoves();
+        m_listeners = null;
+        m_changeListeners = null;
+        m_notifyListeners = true;
+        m_notifyPositionChanged = true;
+        if (m_pstMiddleGameTable != NO_PIECE_SQUARE_TABLE || m_pstEndGameTable != NO_PIECE_SQUARE_TABLE) {
+            setPieceSquareTables(null, null);
+        }
+    }
+
     @Override
 	public final int getToPlay()                {return      ((m_flags >> TO_PLAY_SHIFT) & TO_PLAY_MASK) == 0 ? Chess.WHITE : Chess.BLACK;}
     private final int getNotToPlay()            {return      ((m_flags >> TO_PLAY_SHIFT) & TO_PLAY_MASK) != 0 ? Chess.WHITE : Chess.BLACK;}
@@ -365,12 +596,21 @@ public final class Position extends AbstractMoveablePosition
 	public final int getPlyNumber()             {return (int) (m_flags >> PLY_NUMBER_SHIFT) & PLY_NUMBER_MASK;}
     @Override
 	public final long getHashCode()             {return m_hashCode;}
+    @Override
+	public final long getZobristKey()           {return m_zobristKey;}
 
     @Override
 	public final int getStone(int sqi)
     {
-        if (PROFILE) m_numGetSquare++;
+        return m_stones[sqi];
+    }
 
+    /**
+     * Returns the stone on a square as stored in the bit boards, used to update
+     * the mailbox.
+     */
+    private final int decodeStone(int sqi)
+    {
         long bbSqi = ofSquare(sqi);
         if ((m_bbWhites & bbSqi) != 0L) {
             if ((m_bbPawns & bbSqi) != 0L) return Chess.WHITE_PAWN;
@@ -391,26 +631,26 @@ public final class Position extends AbstractMoveablePosition
         }
     }
 
+    private final void updateStones(long bbSquares)
+    {
+        while (bbSquares != 0L) {
+            int sqi = getFirstSqi(bbSquares);
+            removeScore(sqi, m_stones[sqi]);
+            m_stones[sqi] = (byte)decodeStone(sqi);
+            addScore(sqi, m_stones[sqi]);
+            bbSquares &= bbSquares - 1;
+        }
+    }
+
     @Override
 	public final int getPiece(int sqi)
     {
-        if (PROFILE) m_numGetSquare++; // TODO
-
-        long bbSqi = ofSquare(sqi);
-        if ((m_bbPawns & bbSqi) != 0L) return Chess.PAWN;
-        if ((m_bbKnights & bbSqi) != 0L) return Chess.KNIGHT;
-        if ((m_bbBishops & bbSqi) != 0L)
-            return ((m_bbRooks & bbSqi) != 0L ? Chess.QUEEN : Chess.BISHOP);
-        if ((m_bbRooks & bbSqi) != 0L) return Chess.ROOK;
-        if (sqi == m_whiteKing || sqi == m_blackKing) return Chess.KING;
-        return Chess.NO_PIECE;
+        return Chess.stoneToPiece(m_stones[sqi]);
     }
 
     @Override
 	public final int getColor(int sqi)
     {
-        if (PROFILE) m_numGetSquare++; // TODO
-
         long bbSqi = ofSquare(sqi);
         if ((m_bbWhites & bbSqi) != 0L) return Chess.WHITE;
         if ((m_bbBlacks & bbSqi) != 0L) return Chess.BLACK;
@@ -441,7 +681,7 @@ public final class Position extends AbstractMoveablePosition
     @Override
 	public final void setStone(int sqi, int stone)
     {
-        if (PROFILE) m_numSet++;
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.SET);
 
         if (DEBUG) LOGGER.debug("Set " + Chess.stoneToChar(stone) + " to " + Chess.sqiToStr(sqi));
 
@@ -485,6 +725,11 @@ public final class Position extends AbstractMoveablePosition
 
             if (old != Chess.NO_STONE)   m_hashCode ^= s_hashMod[sqi][old   - Chess.MIN_STONE];
             if (stone != Chess.NO_STONE) m_hashCode ^= s_hashMod[sqi][stone - Chess.MIN_STONE];
+            m_zobristKey ^= Zobrist.s_stoneMod[sqi][old - Chess.MIN_STONE] ^ Zobrist.s_stoneMod[sqi][stone - Chess.MIN_STONE];
+            m_stones[sqi] = (byte)stone;
+            m_attacksValid = 0;
+            removeScore(sqi, old);
+            addScore(sqi, stone);
 
             if (m_notifyListeners && m_listeners != null) fireSquareChanged(sqi);
         }
@@ -532,6 +777,7 @@ public final class Position extends AbstractMoveablePosition
             m_flags |= castles << CASTLES_SHIFT;
             m_hashCode ^= s_hashCastleMod[oldCastles];
             m_hashCode ^= s_hashCastleMod[castles];
+            m_zobristKey ^= Zobrist.s_castleMod[oldCastles] ^ Zobrist.s_castleMod[castles];
 
             if (m_notifyListeners && m_listeners != null) fireCastlesChanged();
         }
@@ -547,7 +793,10 @@ public final class Position extends AbstractMoveablePosition
 
             /*---------- hash value ----------*/
             int hashColEP = getHashColEP();
-            if (hashColEP != Chess.NO_SQUARE) m_hashCode ^= s_hashEPMod[hashColEP];
+            if (hashColEP != Chess.NO_SQUARE) {
+                m_hashCode ^= s_hashEPMod[hashColEP];
+                m_zobristKey ^= Zobrist.s_epMod[hashColEP];
+            }
 
             hashColEP = (sqiEP == Chess.NO_COL ? Chess.NO_COL : Chess.sqiToCol(sqiEP));
             // ignore ep square for hashing if there is no opponent pawn to actually capture the pawn ep
@@ -563,7 +812,10 @@ public final class Position extends AbstractMoveablePosition
                         hashColEP = Chess.NO_COL;
                     }
                 }
-                if (hashColEP != Chess.NO_COL) m_hashCode ^= s_hashEPMod[hashColEP];
+                if (hashColEP != Chess.NO_COL) {
+                    m_hashCode ^= s_hashEPMod[hashColEP];
+                    m_zobristKey ^= Zobrist.s_epMod[hashColEP];
+                }
             }
             m_flags &= ~(HASH_COL_EP_MASK << HASH_COL_EP_SHIFT);
             // encode column of ep square in hash code (NO_SQUARE if no ep)
@@ -588,53 +840,278 @@ public final class Position extends AbstractMoveablePosition
         if (DEBUG) LOGGER.debug("toggleToPlay");
         m_flags ^= (TO_PLAY_MASK << TO_PLAY_SHIFT);
         m_hashCode ^= HASH_TOPLAY_MULT;
+        m_zobristKey ^= Zobrist.s_whiteToPlayMod;
         if (m_notifyListeners && m_listeners != null) fireToPlayChanged();
     }
 
+    /*================================================================================*/
+    // snapshots
+
+    /**
+     * Returns an immutable copy of the current position.
+     *
+     *@return the snapshot
+     */
+    public final PositionSnapshot snapshot()
+    {
+        return new PositionSnapshot(m_bbWhites, m_bbPawns, m_bbKnights, m_bbBishops, m_bbRooks,
+                                    getSnapshotFlags(), m_hashCode, m_zobristKey);
+    }
+
+    /**
+     * Writes a snapshot of the current position to {@link PositionSnapshot#NUM_OF_LONGS}
+     * consecutive longs of an array, without creating a {@link PositionSnapshot}.
+     *
+     *@param dest the array to write to
+     *@param offset the index of the first long to write
+     */
+    public final void snapshot(long[] dest, int offset)
+    {
+        dest[offset]     = m_bbWhites;
+        dest[offset + 1] = m_bbPawns;
+        dest[offset + 2] = m_bbKnights;
+        dest[offset + 3] = m_bbBishops;
+        dest[offset + 4] = m_bbRooks;
+        dest[offset + 5] = getSnapshotFlags();
+        dest[offset + 6] = m_hashCode;
+        dest[offset + 7] = m_zobristKey;
+    }
+
+    /**
+     * Sets the position to a snapshot. The bit boards are copied directly, the moves
+     * played so far are discarded and cannot be undone.
+     *
+     *@param snapshot the snapshot
+     */
+    public final void set(PositionSnapshot snapshot)
+    {
+        set(snapshot.getBBWhites(), snapshot.getBBPawns(), snapshot.getBBKnights(), snapshot.getBBBishops(),
+            snapshot.getBBRooks(), snapshot.getFlags(), snapshot.getHashCode(), snapshot.getZobristKey());
+    }
+
+    /**
+     * Sets the position to a snapshot written by {@link #snapshot(long[], int)} or
+     * {@link PositionSnapshot#write(long[], int)}. The moves played so far are discarded
+     * and cannot be undone.
+     *
+     *@param src the array to read from
+     *@param offset the index of the first long of the snapshot
+     */
+    public final void set(long[] src, int offset)
+    {
+        set(src[offset], src[offset + 1], src[offset + 2], src[offset + 3],
+            src[offset + 4], src[offset + 5], src[offset + 6], src[offset + 7]);
+    }
+
+    private long getSnapshotFlags()
+    {
+        long flags = m_flags & ~((CHECK_MASK << CHECK_SHIFT) | (CAN_MOVE_MASK << CAN_MOVE_SHIFT));
+        return flags | ((long)(m_whiteKing - Chess.NO_SQUARE) << PositionSnapshot.WHITE_KING_SHIFT)
+                     | ((long)(m_blackKing - Chess.NO_SQUARE) << PositionSnapshot.BLACK_KING_SHIFT);
+    }
+
+    private final void set(long bbWhites, long bbPawns, long bbKnights, long bbBishops, long bbRooks,
+                           long flags, long hashCode, long zobristKey)
+    {
+        // unlike for moves, stones may change without changing color
+        long squaresChanged = (m_bbPawns ^ bbPawns) | (m_bbKnights ^ bbKnights) | (m_bbBishops ^ bbBishops)
+                            | (m_bbRooks ^ bbRooks) | (m_bbWhites ^ bbWhites);
+        long oldBlacks = m_bbBlacks;
+        int sqiEP = getSqiEP();
+        int castles = getCastles();
+
+        m_bbWhites   = bbWhites;
+        m_bbPawns    = bbPawns;
+        m_bbKnights  = bbKnights;
+        m_bbBishops  = bbBishops;
+        m_bbRooks    = bbRooks;
+        m_whiteKing  = PositionSnapshot.getWhiteKing(flags);
+        m_blackKing  = PositionSnapshot.getBlackKing(flags);
+        m_flags      = flags & ~(-1L << PositionSnapshot.WHITE_KING_SHIFT);
+        m_hashCode   = hashCode;
+        m_zobristKey = zobristKey;
+        long bbBlackKing = (m_blackKing != Chess.NO_SQUARE ? ofSquare(m_blackKing) : 0L);
+        m_bbBlacks   = (bbBlackKing | m_bbPawns | m_bbKnights | m_bbBishops | m_bbRooks) & (~m_bbWhites);
+        squaresChanged |= oldBlacks ^ m_bbBlacks;
+        updateStones(squaresChanged);
+        m_attacksValid = 0;
+
+        /*---------- discard the moves ----------*/
+        discardMoves();
+
+        if (DEBUG) LOGGER.debug("I set a snapshot");
+
+        /*---------- notify listeners ----------*/
+        if (m_notifyListeners) {
+            if (m_listeners != null) {
+                while (squaresChanged != 0L) {
+                    int sqi = getFirstSqi(squaresChanged);
+                    fireSquareChanged(sqi);
+                    squaresChanged &= squaresChanged - 1;
+                }
+                if (getSqiEP() != sqiEP) fireSqiEPChanged();
+                if (getCastles() != castles) fireCastlesChanged();
+                fireHalfMoveClockChanged();
+                firePlyNumberChanged();
+                fireToPlayChanged();
+            }
+            firePositionChanged();
+        }
+    }
+
+    /*================================================================================*/
+    // replay
+
+    /**
+     * Plays a sequence of moves and records the hash code of the position before the
+     * first move and after each move. The moves remain on the undo stack.
+     *
+     *@param moves the moves, e.g. the main line of a game model
+     *@param from the index of the first move to play
+     *@param to the index after the last move to play
+     *@param hashesOut receives the <code>to - from + 1</code> hash codes, may be <code>null</code>
+     *@return the number of positions recorded, <code>to - from + 1</code>
+     *@throws IllegalMoveException if a move is illegal, the moves before remain played
+     *@see #replay(short[], int, int, long[], long[])
+     */
+    public int replay(short[] moves, int from, int to, long[] hashesOut) throws IllegalMoveException
+    {
+        return replay(moves, from, to, hashesOut, null);
+    }
+
+    /**
+     * Plays a sequence of moves and records the hash code and optionally a snapshot
+     * of the position before the first move and after each move. The moves remain on
+     * the undo stack.
+     *
+     * <p>No listener is notified per move and nothing is allocated per move. Once all
+     * moves are played, position listeners are notified of the changes between the
+     * initial and the final position and change listeners of a changed position, but
+     * not of the moves. Therefore the position of a {@link chesspresso.game.Game}
+     * must not be replayed, use a copy instead.
+     *
+     *@param moves the moves, e.g. the main line of a game model
+     *@param from the index of the first move to play
+     *@param to the index after the last move to play
+     *@param hashesOut receives the <code>to - from + 1</code> hash codes, may be <code>null</code>
+     *@param snapshotsOut receives the <code>to - from + 1</code> snapshots,
+     *                    {@link PositionSnapshot#NUM_OF_LONGS} longs each, see
+     *                    {@link PositionSnapshot#read(long[], int)}, may be <code>null</code>
+     *@return the number of positions recorded, <code>to - from + 1</code>
+     *@throws IllegalMoveException if a move is illegal, the moves before remain played
+     */
+    public int replay(short[] moves, int from, int to, long[] hashesOut, long[] snapshotsOut) throws IllegalMoveException
+    {
+        int num = to - from + 1;
+        if (from < 0 || to > moves.length || num < 1) throw new IllegalArgumentException("Illegal range of moves: " + from + " to " + to);
+        if (hashesOut != null && hashesOut.length < num) throw new IllegalArgumentException("Hash array too short: " + hashesOut.length + " < " + num);
+        if (snapshotsOut != null && snapshotsOut.length < num * PositionSnapshot.NUM_OF_LONGS) throw new IllegalArgumentException("Snapshot array too short: " + snapshotsOut.length + " < " + num * PositionSnapshot.NUM_OF_LONGS);
+
+        long bbWhites = m_bbWhites, bbBlacks = m_bbBlacks;
+        long bbPawns = m_bbPawns, bbKnights = m_bbKnights, bbBishops = m_bbBishops, bbRooks = m_bbRooks;
+        int sqiEP = getSqiEP();
+        int castles = getCastles();
+        boolean notifyListeners = m_notifyListeners;
+        boolean notifyPositionChanged = m_notifyPositionChanged;
+        m_notifyListeners = false;
+        m_notifyPositionChanged = false;
+
+        int index = from;
+        try {
+            for (;;) {
+                int ply = index - from;
+                if (hashesOut != null) hashesOut[ply] = m_hashCode;
+                if (snapshotsOut != null) snapshot(snapshotsOut, ply * PositionSnapshot.NUM_OF_LONGS);
+                if (index == to) break;
+                doMoveNoMoveListeners(moves[index]);
+                index++;
+            }
+        } finally {
+            m_notifyListeners = notifyListeners;
+            m_notifyPositionChanged = notifyPositionChanged;
+
+            /*---------- notify listeners ----------*/
+            if (m_notifyListeners && index > from) {
+                if (m_listeners != null) {
+                    long squaresChanged = (bbWhites ^ m_bbWhites) | (bbBlacks ^ m_bbBlacks) | (bbPawns ^ m_bbPawns)
+                                        | (bbKnights ^ m_bbKnights) | (bbBishops ^ m_bbBishops) | (bbRooks ^ m_bbRooks);
+                    while (squaresChanged != 0L) {
+                        int sqi = getFirstSqi(squaresChanged);
+                        fireSquareChanged(sqi);
+                        squaresChanged &= squaresChanged - 1;
+                    }
+                    if (getSqiEP() != sqiEP) fireSqiEPChanged();
+                    if (getCastles() != castles) fireCastlesChanged();
+                    fireHalfMoveClockChanged();
+                    firePlyNumberChanged();
+                    fireToPlayChanged();
+                }
+                firePositionChanged();
+            }
+        }
+        return num;
+    }
+
     private final void setMove(short move)
     {
         boolean increaseHalfMoveClock = true;
         int sqiEP = Chess.NO_SQUARE;
         long squaresChanged = 0L;
+        boolean isWhiteMove = (getToPlay() == Chess.WHITE);
+
+        // listeners are notified in one batch at the end
+        boolean notifyListeners = m_notifyListeners;
+        boolean notify = notifyListeners && m_listeners != null;
+        int oldSqiEP = getSqiEP();
+        int oldCastles = getCastles();
+        m_notifyListeners = false;
+        m_attacksValid = 0;
 
         /*---------- moves the pieces ----------*/
         if (Move.isNullMove(move)) {
             // ignore
         } else if (Move.isCastle(move)) {
-            if (getToPlay() == Chess.WHITE) {
+            int kingFrom, rookFrom, kingTo, rookTo;
+            if (isWhiteMove) {
+                kingFrom = m_whiteKing;
                 if (Move.isShortCastle(move)) {
-                	int kingPosition = m_whiteKing;
-                    int rookPosition = getShortCastleRookPosition(kingPosition);
-                	setStone(kingPosition, Chess.NO_STONE);
-                	setStone(rookPosition, Chess.NO_STONE);
-                    setStone(Chess.G1, Chess.WHITE_KING);
-                    setStone(Chess.F1, Chess.WHITE_ROOK);
+                    rookFrom = getShortCastleRookPosition(kingFrom); kingTo = Chess.G1; rookTo = Chess.F1;
                 } else {
-                    int kingPosition = m_whiteKing;
-                    int rookPosition = getLongCastleRookPosition(kingPosition);
-                	setStone(kingPosition, Chess.NO_STONE);
-                	setStone(rookPosition, Chess.NO_STONE);
-                    setStone(Chess.C1, Chess.WHITE_KING);
-                    setStone(Chess.D1, Chess.WHITE_ROOK);
+                    rookFrom = getLongCastleRookPosition(kingFrom);  kingTo = Chess.C1; rookTo = Chess.D1;
                 }
-                excludeCastles(WHITE_CASTLE);
             } else {
+                kingFrom = m_blackKing;
                 if (Move.isShortCastle(move)) {
-                	int kingPosition = m_blackKing;
-                    int rookPosition = getShortCastleRookPosition(kingPosition);
-                	setStone(kingPosition, Chess.NO_STONE);
-                	setStone(rookPosition, Chess.NO_STONE);
-                    setStone(Chess.G8, Chess.BLACK_KING);
-                    setStone(Chess.F8, Chess.BLACK_ROOK);
+                    rookFrom = getShortCastleRookPosition(kingFrom); kingTo = Chess.G8; rookTo = Chess.F8;
                 } else {
-                	int kingPosition = m_blackKing;
-                    int rookPosition = getLongCastleRookPosition(kingPosition);
-                	setStone(kingPosition, Chess.NO_STONE);
-                	setStone(rookPosition, Chess.NO_STONE);
-                    setStone(Chess.C8, Chess.BLACK_KING);
-                    setStone(Chess.D8, Chess.BLACK_ROOK);
+                    rookFrom = getLongCastleRookPosition(kingFrom);  kingTo = Chess.C8; rookTo = Chess.D8;
                 }
-                excludeCastles(BLACK_CASTLE);
+            }
+
+            // king and rook may stay on or move to each other's square in Chess960
+            long bbFrom = ofSquare(kingFrom) | ofSquare(rookFrom);
+            long bbTo = ofSquare(kingTo) | ofSquare(rookTo);
+            squaresChanged = bbFrom | bbTo;
+            m_bbRooks = (m_bbRooks & ~ofSquare(rookFrom)) | ofSquare(rookTo);
+            int king = (isWhiteMove ? Chess.WHITE_KING : Chess.BLACK_KING) - Chess.MIN_STONE;
+            int rook = (isWhiteMove ? Chess.WHITE_ROOK : Chess.BLACK_ROOK) - Chess.MIN_STONE;
+            m_hashCode ^= s_hashMod[kingFrom][king] ^ s_hashMod[kingTo][king] ^ s_hashMod[rookFrom][rook] ^ s_hashMod[rookTo][rook];
+            m_zobristKey ^= Zobrist.s_stoneMod[kingFrom][king] ^ Zobrist.s_stoneMod[kingTo][king]
+                          ^ Zobrist.s_stoneMod[rookFrom][rook] ^ Zobrist.s_stoneMod[rookTo][rook];
+            m_stones[kingFrom] = Chess.NO_STONE;
+            m_stones[rookFrom] = Chess.NO_STONE;
+            m_stones[kingTo] = (byte)(king + Chess.MIN_STONE);
+            m_stones[rookTo] = (byte)(rook + Chess.MIN_STONE);
+            removeScore(kingFrom, king + Chess.MIN_STONE); removeScore(rookFrom, rook + Chess.MIN_STONE);
+            addScore(kingTo, king + Chess.MIN_STONE);      addScore(rookTo, rook + Chess.MIN_STONE);
+            if (isWhiteMove) {
+                m_bbWhites = (m_bbWhites & ~bbFrom) | bbTo;
+                m_whiteKing = kingTo;
+                setCastles(oldCastles & ~WHITE_CASTLE);
+            } else {
+                m_bbBlacks = (m_bbBlacks & ~bbFrom) | bbTo;
+                m_blackKing = kingTo;
+                setCastles(oldCastles & ~BLACK_CASTLE);
             }
         } else {
             int sqiFrom = Move.getFromSqi(move);
@@ -652,111 +1129,129 @@ public final class Position extends AbstractMoveablePosition
 
                 long notBBTo;
                 if (Move.isEPMove(move)) {
-                    int pawnSqi = getSqiEP() + (getToPlay() == Chess.WHITE ? -Chess.NUM_OF_COLS : Chess.NUM_OF_COLS);
+                    int pawnSqi = getSqiEP() + (isWhiteMove ? -Chess.NUM_OF_COLS : Chess.NUM_OF_COLS);
                     notBBTo = ~ofSquare(pawnSqi);
                     squaresChanged |= ~notBBTo;
-                    m_hashCode ^= s_hashMod[pawnSqi][(getToPlay() == Chess.WHITE ? Chess.BLACK_PAWN : Chess.WHITE_PAWN) - Chess.MIN_STONE];
+                    m_hashCode ^= s_hashMod[pawnSqi][(isWhiteMove ? Chess.BLACK_PAWN : Chess.WHITE_PAWN) - Chess.MIN_STONE];
+                    m_zobristKey ^= Zobrist.s_stoneMod[pawnSqi][(isWhiteMove ? Chess.BLACK_PAWN : Chess.WHITE_PAWN) - Chess.MIN_STONE];
+                    m_stones[pawnSqi] = Chess.NO_STONE;
+                    removeScore(pawnSqi, isWhiteMove ? Chess.BLACK_PAWN : Chess.WHITE_PAWN);
                 } else {
                     notBBTo = ~bbTo;
-                    int capturedStone = getStone(Move.getToSqi(move));
+                    int capturedStone = m_stones[sqiTo];
+                    m_stones[sqiTo] = Chess.NO_STONE;
+                    removeScore(sqiTo, capturedStone);
                     m_hashCode ^= s_hashMod[sqiTo][capturedStone - Chess.MIN_STONE];
+                    m_zobristKey ^= Zobrist.s_stoneMod[sqiTo][capturedStone - Chess.MIN_STONE];
                 }
                 //TODO:  remove all bits -> faster than switching?
                 m_bbWhites &= notBBTo; m_bbBlacks &= notBBTo;
                 m_bbPawns  &= notBBTo; m_bbKnights &= notBBTo; m_bbBishops &= notBBTo; m_bbRooks &= notBBTo;
                 increaseHalfMoveClock = false;
             }
+
+            int stone = m_stones[sqiFrom];
+            int piece = Chess.stoneToPiece(stone);
+            if (piece != Chess.NO_PIECE) {
+                if (isWhiteMove) m_bbWhites ^= bbFromTo; else m_bbBlacks ^= bbFromTo;
+            }
+            m_stones[sqiFrom] = Chess.NO_STONE;
+            removeScore(sqiFrom, stone);
             if (Move.isPromotion(move)) {
-                int promotionStone = Chess.pieceToStone(Move.getPromotionPiece(move), getToPlay());
-                if (getToPlay() == Chess.WHITE) {
-                    m_bbWhites ^= bbFromTo; m_bbPawns ^= bbFrom;
-                    m_hashCode ^= s_hashMod[sqiFrom][Chess.WHITE_PAWN - Chess.MIN_STONE];
-                    switch(promotionStone) {
-                        case Chess.WHITE_KNIGHT: m_bbKnights ^= bbTo; break;
-                        case Chess.WHITE_BISHOP: m_bbBishops ^= bbTo; break;
-                        case Chess.WHITE_ROOK:   m_bbRooks   ^= bbTo; break;
-                        case Chess.WHITE_QUEEN:  m_bbBishops ^= bbTo; m_bbRooks ^= bbTo; break;
-                        default: throw new RuntimeException("Illegal promotion stone " + promotionStone + " " + Chess.stoneToChar(promotionStone));
-                    }
-                } else {
-                    m_bbBlacks ^= bbFromTo; m_bbPawns ^= bbFrom;
-                    m_hashCode ^= s_hashMod[sqiFrom][Chess.BLACK_PAWN - Chess.MIN_STONE];
-                    switch(promotionStone) {
-                        case Chess.BLACK_KNIGHT: m_bbKnights ^= bbTo; break;
-                        case Chess.BLACK_BISHOP: m_bbBishops ^= bbTo; break;
-                        case Chess.BLACK_ROOK:   m_bbRooks   ^= bbTo; break;
-                        case Chess.BLACK_QUEEN:  m_bbBishops ^= bbTo; m_bbRooks ^= bbTo; break;
-                        default: throw new RuntimeException("Illegal promotion stone " + promotionStone + " " + Chess.stoneToChar(promotionStone));
-                    }
+                int promotionPiece = Move.getPromotionPiece(move);
+                m_bbPawns ^= bbFrom;
+                switch(promotionPiece) {
+                    case Chess.KNIGHT: m_bbKnights ^= bbTo; break;
+                    case Chess.BISHOP: m_bbBishops ^= bbTo; break;
+                    case Chess.ROOK:   m_bbRooks   ^= bbTo; break;
+                    case Chess.QUEEN:  m_bbBishops ^= bbTo; m_bbRooks ^= bbTo; break;
+                    default: throw new RuntimeException("Illegal promotion piece " + promotionPiece + " " + Chess.pieceToChar(promotionPiece));
                 }
-                m_hashCode ^= s_hashMod[sqiTo][promotionStone - Chess.MIN_STONE];
+                int promotionStone = Chess.pieceToStone(promotionPiece, getToPlay());
+                m_hashCode ^= s_hashMod[sqiFrom][stone - Chess.MIN_STONE] ^ s_hashMod[sqiTo][promotionStone - Chess.MIN_STONE];
+                m_zobristKey ^= Zobrist.s_stoneMod[sqiFrom][stone - Chess.MIN_STONE] ^ Zobrist.s_stoneMod[sqiTo][promotionStone - Chess.MIN_STONE];
+                m_stones[sqiTo] = (byte)promotionStone;
+                addScore(sqiTo, promotionStone);
                 increaseHalfMoveClock = false;
             } else {
-                int stone = getStone(Move.getFromSqi(move));
-                switch(stone) {
-                    case Chess.NO_STONE:     break; //{LOGGER.debug(this); throw new RuntimeException("Moving stone is non-existent " + Move.getString(move));}
-                    case Chess.WHITE_KING:   m_bbWhites ^= bbFromTo; m_whiteKing = sqiTo; break;
-                    case Chess.WHITE_PAWN:   m_bbWhites ^= bbFromTo; m_bbPawns   ^= bbFromTo; increaseHalfMoveClock = false;
-                                             if (sqiTo - sqiFrom == 2 * Chess.NUM_OF_COLS) sqiEP = sqiTo - Chess.NUM_OF_COLS;
-                                             break;
-                    case Chess.WHITE_KNIGHT: m_bbWhites ^= bbFromTo; m_bbKnights ^= bbFromTo; break;
-                    case Chess.WHITE_BISHOP: m_bbWhites ^= bbFromTo; m_bbBishops ^= bbFromTo; break;
-                    case Chess.WHITE_ROOK:   m_bbWhites ^= bbFromTo; m_bbRooks   ^= bbFromTo; break;
-                    case Chess.WHITE_QUEEN:  m_bbWhites ^= bbFromTo; m_bbBishops ^= bbFromTo; m_bbRooks ^= bbFromTo; break;
-                    case Chess.BLACK_KING:   m_bbBlacks ^= bbFromTo; m_blackKing = sqiTo; break;
-                    case Chess.BLACK_PAWN:   m_bbBlacks ^= bbFromTo; m_bbPawns   ^= bbFromTo; increaseHalfMoveClock = false;
-                                             if (sqiFrom - sqiTo == 2 * Chess.NUM_OF_COLS) sqiEP = sqiTo + Chess.NUM_OF_COLS;
-                                             break;
-                    case Chess.BLACK_KNIGHT: m_bbBlacks ^= bbFromTo; m_bbKnights ^= bbFromTo; break;
-                    case Chess.BLACK_BISHOP: m_bbBlacks ^= bbFromTo; m_bbBishops ^= bbFromTo; break;
-                    case Chess.BLACK_ROOK:   m_bbBlacks ^= bbFromTo; m_bbRooks   ^= bbFromTo; break;
-                    case Chess.BLACK_QUEEN:  m_bbBlacks ^= bbFromTo; m_bbBishops ^= bbFromTo; m_bbRooks ^= bbFromTo; break;
+                switch(piece) {
+                    case Chess.NO_PIECE: break; //{LOGGER.debug(this); throw new RuntimeException("Moving stone is non-existent " + Move.getString(move));}
+                    case Chess.KING:     if (isWhiteMove) m_whiteKing = sqiTo; else m_blackKing = sqiTo; break;
+                    case Chess.PAWN:     m_bbPawns   ^= bbFromTo; increaseHalfMoveClock = false;
+                                         if (sqiTo - sqiFrom == 2 * Chess.NUM_OF_COLS) sqiEP = sqiTo - Chess.NUM_OF_COLS;
+                                         else if (sqiFrom - sqiTo == 2 * Chess.NUM_OF_COLS) sqiEP = sqiTo + Chess.NUM_OF_COLS;
+                                         break;
+                    case Chess.KNIGHT:   m_bbKnights ^= bbFromTo; break;
+                    case Chess.BISHOP:   m_bbBishops ^= bbFromTo; break;
+                    case Chess.ROOK:     m_bbRooks   ^= bbFromTo; break;
+                    case Chess.QUEEN:    m_bbBishops ^= bbFromTo; m_bbRooks ^= bbFromTo; break;
+                }
+                if (piece != Chess.NO_PIECE) {
+                    m_stones[sqiTo] = (byte)stone;
+                    addScore(sqiTo, stone);
+                    m_hashCode ^= s_hashMod[sqiFrom][stone - Chess.MIN_STONE] ^ s_hashMod[sqiTo][stone - Chess.MIN_STONE];
+                    m_zobristKey ^= Zobrist.s_stoneMod[sqiFrom][stone - Chess.MIN_STONE] ^ Zobrist.s_stoneMod[sqiTo][stone - Chess.MIN_STONE];
                 }
-                m_hashCode ^= s_hashMod[sqiFrom][stone - Chess.MIN_STONE];
-                m_hashCode ^= s_hashMod[sqiTo][stone - Chess.MIN_STONE];
             }
             updateCastles(sqiFrom, sqiTo);
         }
 
         /*---------- update toplay, ply number ----------*/
-        incPlyNumber();
-        toggleToPlay();
-
-        /*---------- notify listeners ----------*/
-        if (m_notifyListeners && m_listeners != null) {
-            while (squaresChanged != 0L) {
-                int sqi = getFirstSqi(squaresChanged);
-                fireSquareChanged(sqi);
-                squaresChanged &= squaresChanged - 1;
-            }
-        }
+        m_flags += 1L << PLY_NUMBER_SHIFT;
+        m_flags ^= (TO_PLAY_MASK << TO_PLAY_SHIFT);
+        m_hashCode ^= HASH_TOPLAY_MULT;
+        m_zobristKey ^= Zobrist.s_whiteToPlayMod;
 
         /*---------- update ep square ----------*/
         setSqiEP(sqiEP);
 
         /*---------- update half move clock ----------*/
-        if (increaseHalfMoveClock) incHalfMoveClock(); else resetHalfMoveClock();
+        if (!increaseHalfMoveClock) {
+            m_flags &= ~(HALF_MOVE_CLOCK_MASK << HALF_MOVE_CLOCK_SHIFT);
+        } else if (getHalfMoveClock() < HALF_MOVE_CLOCK_MASK) {
+            m_flags += 1L << HALF_MOVE_CLOCK_SHIFT;
+        }
 
         /*---------- store move in stack ----------*/
         int index = m_moveStackIndex;
         checkMoveStack();
         m_moveStack[index] = move;
         m_moveStackIndex++;
+
+        /*---------- notify listeners ----------*/
+        m_notifyListeners = notifyListeners;
+        if (notify) {
+            while (squaresChanged != 0L) {
+                int sqi = getFirstSqi(squaresChanged);
+                fireSquareChanged(sqi);
+                squaresChanged &= squaresChanged - 1;
+            }
+            if (getSqiEP() != oldSqiEP) fireSqiEPChanged();
+            if (getCastles() != oldCastles) fireCastlesChanged();
+            fireHalfMoveClockChanged();
+            firePlyNumberChanged();
+            fireToPlayChanged();
+        }
     }
 
 	private void updateCastles(int sqiFrom, int sqiTo) {
 		int castles = getCastles();
 		if (castles != NO_CASTLES) {
-		    if (sqiFrom == Chess.A1 || sqiTo == Chess.A1) {castles &= ~WHITE_LONG_CASTLE;}
-		    if (sqiFrom == Chess.H1 || sqiTo == Chess.H1) {castles &= ~WHITE_SHORT_CASTLE;}
-		    if (sqiFrom == Chess.A8 || sqiTo == Chess.A8) {castles &= ~BLACK_LONG_CASTLE;}
-		    if (sqiFrom == Chess.H8 || sqiTo == Chess.H8) {castles &= ~BLACK_SHORT_CASTLE;}
-		    if (sqiFrom == Chess.E1) {castles &= ~WHITE_CASTLE;}
-		    if (sqiFrom == Chess.E8) {castles &= ~BLACK_CASTLE;}
-		    setCastles(castles);
+		    setCastles(getCastlesAfter(castles, sqiFrom, sqiTo));
 		}
 	}
 
+    private static int getCastlesAfter(int castles, int sqiFrom, int sqiTo)
+    {
+        if (sqiFrom == Chess.A1 || sqiTo == Chess.A1) {castles &= ~WHITE_LONG_CASTLE;}
+        if (sqiFrom == Chess.H1 || sqiTo == Chess.H1) {castles &= ~WHITE_SHORT_CASTLE;}
+        if (sqiFrom == Chess.A8 || sqiTo == Chess.A8) {castles &= ~BLACK_LONG_CASTLE;}
+        if (sqiFrom == Chess.H8 || sqiTo == Chess.H8) {castles &= ~BLACK_SHORT_CASTLE;}
+        if (sqiFrom == Chess.E1) {castles &= ~WHITE_CASTLE;}
+        if (sqiFrom == Chess.E8) {castles &= ~BLACK_CASTLE;}
+        return castles;
+    }
+
     private int getLongCastleRookPosition(int kingPosition) {
     	int sqi = kingPosition - 1;
     	while (getPiece(sqi) != Chess.ROOK && sqi > 0) {
@@ -776,17 +1271,20 @@ public final class Position extends AbstractMoveablePosition
 	private void checkMoveStack()
     {
         if (m_moveStackIndex >= m_moveStack.length) {
-            short[] newMoveStack = new short[m_moveStack.length * 2];
+            short[] newMoveStack = new short[Math.max(m_moveStack.length * 2, MIN_BUFFER_LENGTH)];
             System.arraycopy(m_moveStack, 0, newMoveStack, 0, m_moveStack.length);
             m_moveStack = newMoveStack;
+            long[] newKeyStack = new long[newMoveStack.length];
+            System.arraycopy(m_keyStack, 0, newKeyStack, 0, m_keyStack.length);
+            m_keyStack = newKeyStack;
         }
     }
 
     private void checkBackupStack()
     {
-        if (m_bakIndex + 7 >= m_bakStack.length) {
+        if (m_bakIndex + 8 >= m_bakStack.length) {
             long[] oldBak = m_bakStack;
-            m_bakStack = new long[2 * oldBak.length];
+            m_bakStack = new long[Math.max(2 * oldBak.length, 5 * MIN_BUFFER_LENGTH)];
             System.arraycopy(oldBak, 0, m_bakStack, 0, oldBak.length);
         }
     }
@@ -802,6 +1300,7 @@ public final class Position extends AbstractMoveablePosition
         checkBackupStack();
 
         m_bakStack[m_bakIndex++] = m_hashCode;
+        m_bakStack[m_bakIndex++] = m_zobristKey;
         m_bakStack[m_bakIndex++] = m_bbWhites;
         m_bakStack[m_bakIndex++] = m_bbPawns;
         m_bakStack[m_bakIndex++] = m_bbKnights;
@@ -814,19 +1313,22 @@ public final class Position extends AbstractMoveablePosition
         m_bakStack[m_bakIndex] = 0L;  // prevent redos
 
         checkMoveStack();
+        m_keyStack[m_moveStackIndex] = 0L;  // not a position of the game
         m_moveStack[m_moveStackIndex++] = OTHER_CHANGE_MOVE;
     }
 
     @Override
 	public void doMove(short move) throws IllegalMoveException
     {
+        long start = (PositionMetrics.s_enabled ? PositionMetrics.startTimer() : 0L);
         doMoveNoMoveListeners(move);
+        if (start != 0L) PositionMetrics.stopTimer(PositionMetrics.TIMER_DO_MOVE, start);
         if (m_notifyListeners && m_changeListeners != null) fireMoveDone(move);
     }
 
     private final void doMoveNoMoveListeners(short move) throws IllegalMoveException
     {
-        if (PROFILE) m_numDoMove++;
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.DO_MOVE);
 
         boolean notify = m_notifyPositionChanged;
         m_notifyPositionChanged = false;
@@ -843,7 +1345,9 @@ public final class Position extends AbstractMoveablePosition
         long bakBishops  = m_bbBishops;
         long bakRooks    = m_bbRooks;
         long bakFlags    = (((m_flags << 6) | m_whiteKing) << 6) | m_blackKing;  //       (((((long)m_whiteKing) << 6) | m_blackKing) << 47) | m_flags;
+        long bakZobristKey = m_zobristKey;
         m_bakStack[m_bakIndex++] = m_hashCode;
+        m_bakStack[m_bakIndex++] = bakZobristKey;
 
         /*---------- delete position properties in m_flags ----------*/
         m_flags &= ~(CHECK_MASK << CHECK_SHIFT);        // delete isCheck info
@@ -851,11 +1355,12 @@ public final class Position extends AbstractMoveablePosition
 
         /*---------- move pieces ----------*/
         setMove(move);
+        m_keyStack[m_moveStackIndex - 1] = bakZobristKey;
 
         /*---------- compare state and push changes ----------*/
         // only push data that have actually changed
-        // on average, we need about 3.75 longs per position (instead of 7 if we back up all)
-        // (hashCode, flags, 1/2 whites, 1 piece bb, plus sometimes another piece bb for captures, promotions, castles)
+        // on average, we need about 4.75 longs per position (instead of 8 if we back up all)
+        // (hashCode, zobristKey, flags, 1/2 whites, 1 piece bb, plus sometimes another piece bb for captures, promotions, castles)
         int changeMask = 0;
         if (bakWhites  != m_bbWhites)  {m_bakStack[m_bakIndex++] = bakWhites;  changeMask++;} changeMask <<= 1;
         if (bakPawns   != m_bbPawns)   {m_bakStack[m_bakIndex++] = bakPawns;   changeMask++;} changeMask <<= 1;
@@ -867,7 +1372,7 @@ public final class Position extends AbstractMoveablePosition
 
         m_notifyPositionChanged = notify;
 
-        if (PROFILE) m_numLongsBackuped += numOfBitsSet(changeMask) + 2;
+        if (PositionMetrics.s_enabled) PositionMetrics.add(PositionMetrics.LONGS_BACKUPED, numOfBitsSet(changeMask) + 3);
 
         if (DEBUG) LOGGER.debug("I did a move " + Move.getString(move));
     }
@@ -881,20 +1386,23 @@ public final class Position extends AbstractMoveablePosition
     @Override
 	public boolean undoMove()
     {
+        long start = (PositionMetrics.s_enabled ? PositionMetrics.startTimer() : 0L);
         boolean res = undoMoveNoMoveListeners();
+        if (start != 0L) PositionMetrics.stopTimer(PositionMetrics.TIMER_UNDO_MOVE, start);
         if (m_notifyListeners && m_changeListeners != null) fireMoveUndone();
         return res;
     }
 
     private boolean undoMoveNoMoveListeners()
     {
-        if (PROFILE) m_numUndoMove++;
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.UNDO_MOVE);
 
         boolean notify = m_notifyPositionChanged;
         m_notifyPositionChanged = false;
 
         if (m_bakIndex > 0) {
             long bbWhites = m_bbWhites, bbBlacks = m_bbBlacks;
+            long bbPawns = m_bbPawns, bbKnights = m_bbKnights, bbBishops = m_bbBishops, bbRooks = m_bbRooks;
             int sqiEP = getSqiEP();
             int castles = getCastles();
 
@@ -908,6 +1416,7 @@ public final class Position extends AbstractMoveablePosition
             if ((changeMask & 1) != 0) {m_bakStack[m_bakIndex] = m_bbKnights; m_bbKnights = m_bakStack[--m_bakIndex]; newChangeMask++;} changeMask >>>= 1; newChangeMask <<= 1;
             if ((changeMask & 1) != 0) {m_bakStack[m_bakIndex] = m_bbPawns;   m_bbPawns   = m_bakStack[--m_bakIndex]; newChangeMask++;} changeMask >>>= 1; newChangeMask <<= 1;
             if ((changeMask & 1) != 0) {m_bakStack[m_bakIndex] = m_bbWhites;  m_bbWhites  = m_bakStack[--m_bakIndex]; newChangeMask++;}
+            m_bakStack[m_bakIndex] = m_zobristKey; m_zobristKey = m_bakStack[--m_bakIndex];
             m_bakStack[m_bakIndex] = m_hashCode; m_hashCode = m_bakStack[--m_bakIndex];
             m_bakStack[m_bakIndex] = getAllFlags(newChangeMask);
 
@@ -916,6 +1425,12 @@ public final class Position extends AbstractMoveablePosition
             m_flags        =       allFlags;
             m_bbBlacks = ((1L << m_blackKing) | m_bbPawns | m_bbKnights | m_bbBishops | m_bbRooks) & (~m_bbWhites);
 
+            // stones may change without changing color when castling in Chess960
+            long squaresChanged = (bbWhites ^ m_bbWhites) | (bbBlacks ^ m_bbBlacks) | (bbPawns ^ m_bbPawns)
+                                | (bbKnights ^ m_bbKnights) | (bbBishops ^ m_bbBishops) | (bbRooks ^ m_bbRooks);
+            updateStones(squaresChanged);
+            m_attacksValid = 0;
+
             m_moveStackIndex--;
 
             if (DEBUG) LOGGER.debug("I undid the last move");
@@ -923,7 +1438,6 @@ public final class Position extends AbstractMoveablePosition
             //---------- notify listeners ----------
             if (m_notifyListeners) {
                 if (m_listeners != null) {
-                    long squaresChanged = (bbWhites ^ m_bbWhites) | (bbBlacks ^ m_bbBlacks);
                     while (squaresChanged != 0L) {
                         int sqi = getFirstSqi(squaresChanged);
                         fireSquareChanged(sqi);
@@ -932,6 +1446,7 @@ public final class Position extends AbstractMoveablePosition
                     if (getSqiEP() != sqiEP) fireSqiEPChanged();
                     if (getCastles() != castles) fireCastlesChanged();
                     fireHalfMoveClockChanged();
+                    firePlyNumberChanged();
                     fireToPlayChanged();
                 }
             }
@@ -966,6 +1481,7 @@ public final class Position extends AbstractMoveablePosition
 
         if (canRedoMove()) {
             long bbWhites = m_bbWhites, bbBlacks = m_bbBlacks;
+            long bbPawns = m_bbPawns, bbKnights = m_bbKnights, bbBishops = m_bbBishops, bbRooks = m_bbRooks;
             int sqiEP = getSqiEP();
             int castles = getCastles();
 
@@ -975,6 +1491,7 @@ public final class Position extends AbstractMoveablePosition
 
             int newChangeMask = 0;
             m_bakStack[m_bakIndex] = m_hashCode; m_hashCode = m_bakStack[++m_bakIndex];
+            m_bakStack[m_bakIndex] = m_zobristKey; m_zobristKey = m_bakStack[++m_bakIndex];
             if ((changeMask & 1) != 0) {m_bakStack[m_bakIndex] = m_bbWhites;  m_bbWhites  = m_bakStack[++m_bakIndex]; newChangeMask++;} changeMask >>>= 1; newChangeMask <<= 1;
             if ((changeMask & 1) != 0) {m_bakStack[m_bakIndex] = m_bbPawns;   m_bbPawns   = m_bakStack[++m_bakIndex]; newChangeMask++;} changeMask >>>= 1; newChangeMask <<= 1;
             if ((changeMask & 1) != 0) {m_bakStack[m_bakIndex] = m_bbKnights; m_bbKnights = m_bakStack[++m_bakIndex]; newChangeMask++;} changeMask >>>= 1; newChangeMask <<= 1;
@@ -987,6 +1504,12 @@ public final class Position extends AbstractMoveablePosition
             m_flags        =       allFlags;
             m_bbBlacks = ((1L << m_blackKing) | m_bbPawns | m_bbKnights | m_bbBishops | m_bbRooks) & (~m_bbWhites);
 
+            // stones may change without changing color when castling in Chess960
+            long squaresChanged = (bbWhites ^ m_bbWhites) | (bbBlacks ^ m_bbBlacks) | (bbPawns ^ m_bbPawns)
+                                | (bbKnights ^ m_bbKnights) | (bbBishops ^ m_bbBishops) | (bbRooks ^ m_bbRooks);
+            updateStones(squaresChanged);
+            m_attacksValid = 0;
+
             m_moveStackIndex++;
 
             if (DEBUG) LOGGER.debug("I redid the last move");
@@ -994,7 +1517,6 @@ public final class Position extends AbstractMoveablePosition
             /*---------- notify listeners ----------*/
             if (m_notifyListeners) {
                 if (m_listeners != null) {
-                    long squaresChanged = (bbWhites ^ m_bbWhites) | (bbBlacks ^ m_bbBlacks);
                     while (squaresChanged != 0L) {
                         int sqi = getFirstSqi(squaresChanged);
                         fireSquareChanged(sqi);
@@ -1003,6 +1525,7 @@ public final class Position extends AbstractMoveablePosition
                     if (getSqiEP() != sqiEP) fireSqiEPChanged();
                     if (getCastles() != castles) fireCastlesChanged();
                     fireHalfMoveClockChanged();
+                    firePlyNumberChanged();
                     fireToPlayChanged();
                 }
             }
@@ -1042,6 +1565,16 @@ public final class Position extends AbstractMoveablePosition
         if (isAttacked(kingSquare, getToPlay(), 0L))
             throw new IllegalPositionException("King of notToPlay is checked: " + Chess.sqiToStr(kingSquare));
 
+        for (int sqi = 0; sqi < Chess.NUM_OF_SQUARES; sqi++) {
+            if (m_stones[sqi] != decodeStone(sqi))
+                throw new IllegalPositionException("Mailbox out of sync at " + Chess.sqiToStr(sqi) + ": " + m_stones[sqi] + " should be " + decodeStone(sqi));
+        }
+
+        int material = m_material, phase = m_phase, pstMiddleGame = m_pstMiddleGame, pstEndGame = m_pstEndGame;
+        initScores();
+        if (material != m_material || phase != m_phase || pstMiddleGame != m_pstMiddleGame || pstEndGame != m_pstEndGame)
+            throw new IllegalPositionException("Evaluation out of sync: material " + material + " should be " + m_material + ", phase " + phase + " should be " + m_phase);
+
         if (super.getHashCode() != getHashCode()) {
             LOGGER.error("Wrong hash code " + getHashCode() + " should be " + super.getHashCode());
             long diff = getHashCode() - super.getHashCode();
@@ -1067,11 +1600,16 @@ public final class Position extends AbstractMoveablePosition
             LOGGER.error(FEN.getFEN(new LightWeightPosition(this)));
             throw new IllegalPositionException("Wrong hash code " + getHashCode() + " should be " + super.getHashCode() + " difference " + (getHashCode() - super.getHashCode()));
         }
+
+        if (super.getZobristKey() != getZobristKey()) {
+            LOGGER.error(FEN.getFEN(this));
+            throw new IllegalPositionException("Wrong zobrist key " + Long.toHexString(getZobristKey()) + " should be " + Long.toHexString(super.getZobristKey()));
+        }
     }
 
     public final boolean isCheck()
     {
-        if (PROFILE) m_numIsCheck++;
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.IS_CHECK);
 
         int cacheInfo = (int)(m_flags >> CHECK_SHIFT) & CHECK_MASK;
         if (cacheInfo == FLAG_YES) {
@@ -1081,9 +1619,9 @@ public final class Position extends AbstractMoveablePosition
         } else {
             boolean isCheck;
             if (getToPlay() == Chess.WHITE) {
-                isCheck = isAttacked(m_whiteKing, Chess.BLACK, 0L);
+                isCheck = ((m_attacksValid & ATTACKS_BLACK) != 0 ? (m_bbBlackAttacks & ofSquare(m_whiteKing)) != 0L : isAttacked(m_whiteKing, Chess.BLACK, 0L));
             } else {
-                isCheck = isAttacked(m_blackKing, Chess.WHITE, 0L);
+                isCheck = ((m_attacksValid & ATTACKS_WHITE) != 0 ? (m_bbWhiteAttacks & ofSquare(m_blackKing)) != 0L : isAttacked(m_blackKing, Chess.WHITE, 0L));
             }
             m_flags &= ~(CHECK_MASK << CHECK_SHIFT);
             m_flags |= (isCheck ? FLAG_YES : FLAG_NO) << CHECK_SHIFT;
@@ -1093,18 +1631,69 @@ public final class Position extends AbstractMoveablePosition
 
     public boolean isMate()
     {
-        if (PROFILE) m_numIsMate++;
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.IS_MATE);
 
         return isCheck() && !canMove();
     }
 
     public boolean isStaleMate()
     {
-        if (PROFILE) m_numIsStaleMate++;
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.IS_STALE_MATE);
 
         return !isCheck() && !canMove();
     }
 
+    /*================================================================================*/
+    // draws
+
+    /**
+     * Returns whether the current position has occurred at least <code>count</code>
+     * times, including the current occurrence, since the last capture or pawn move.
+     * Positions are compared by their Zobrist keys. Only positions reached by
+     * {@link #doMove(short)} since the last {@link #set(PositionSnapshot)} are known.
+     *
+     *@param count the number of occurrences, e.g. 3 for a draw by threefold repetition
+     *             or 2 to detect repetitions in searches
+     *@return whether the position has occurred at least <code>count</code> times
+     */
+    public boolean isRepetition(int count)
+    {
+        if (count <= 1) return true;  // =====>
+
+        long key = m_zobristKey;
+        int occurrences = 1;
+        int last = Math.max(m_moveStackIndex - getHalfMoveClock(), 0);
+        for (int i = m_moveStackIndex - 1; i >= last; i--) {
+            if (m_keyStack[i] == key) {
+                occurrences++;
+                if (occurrences >= count) return true;  // =====>
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a draw can be claimed by the fifty-move rule, i.e. no pawn has
+     * been moved and no piece has been captured during the last 50 moves of each
+     * player, and the last move did not mate.
+     */
+    public boolean isFiftyMoveDraw()
+    {
+        return getHalfMoveClock() >= 100 && !isMate();
+    }
+
+    /**
+     * Returns whether neither player has sufficient material to mate: only kings and
+     * at most one knight or bishop are left, or all remaining bishops stand on
+     * squares of the same color.
+     */
+    public boolean isInsufficientMaterial()
+    {
+        if ((m_bbPawns | m_bbRooks) != 0L) return false;  // =====>  rooks include queens
+        if (numOfBitsSet(m_bbKnights | m_bbBishops) <= 1) return true;  // =====>
+        return m_bbKnights == 0L && ((m_bbBishops & LIGHT_SQUARES) == 0L || (m_bbBishops & ~LIGHT_SQUARES) == 0L);
+    }
+
     @Override
 	public short getLastShortMove()
     {
@@ -1130,6 +1719,17 @@ public final class Position extends AbstractMoveablePosition
             if (piece == Chess.PAWN) {
                 if (isCapturing) colFrom = Chess.sqiToCol(from);
                 return new Move (move, Chess.PAWN, colFrom, rowFrom, isCheck(), isMate(), wasWhiteMove);
+            } else if (Move.isValid(move) && !Move.isNullMove(move)) {
+                // disambiguate with the position before the move, reconstructed from the
+                // current one: the moving piece still stood on from, and the opponent's
+                // pieces were the same, except for the captured piece on to
+                long bbOwn = (wasWhiteMove ? m_bbWhites : m_bbBlacks);
+                int kingSqi = (wasWhiteMove ? m_whiteKing : m_blackKing);
+                int stone = getStone(to);
+                long bbOthers = getBitBoard(stone) & ~ofSquare(to);
+                long bbOccupied = m_bbWhites | m_bbBlacks | ofSquare(from);
+                long bbCandidates = getOtherSANCandidates(piece, bbOthers, to, kingSqi, bbOccupied, ~bbOwn);
+                return createMove(move, piece, from, bbCandidates, isCheck(), isMate(), wasWhiteMove);
             } else {
                 try {
                     boolean notify = m_notifyListeners;
@@ -1145,46 +1745,234 @@ public final class Position extends AbstractMoveablePosition
         }
     }
 
-    private final int getFromSqi(int piece, int colFrom, int rowFrom, int to)
+    /**
+     * Returns the SAN of a legal move in the current position, e.g. Nbd7 or Qxf7#.
+     *
+     * <p>The position is not changed. Disambiguation and check are computed from
+     * the bit boards, only for checking moves the move is played on a scratch
+     * position to find out whether it mates.
+     *
+     *@param move the move, it must be legal in the current position
+     *@return the SAN of the move
+     */
+    public String getSAN(short move)
     {
-        long bb = getBitBoard(Chess.pieceToStone(piece, getToPlay()));
-        if (colFrom != Chess.NO_COL) {bb &= ofCol(colFrom);}
-        if (rowFrom != Chess.NO_ROW) {bb &= ofRow(rowFrom);}
+        return getMove(move).getSAN();
+    }
 
-        while (bb != 0L) {
-            int from = getFirstSqi(bb);
-            if (DEBUG) LOGGER.debug("  trying from: " + from);
-            int pinnedDir = getPinnedDirection(from, getToPlay());
-            if (attacks(from, to) && (pinnedDir == NO_DIR || areDirectionsParallel(pinnedDir, DIR[from][to]))) {
-                if (DEBUG) LOGGER.debug(" ok");
-                return from;
-            }
-            bb &= bb -1;
+    /**
+     * Returns the SANs of legal moves in the current position, see
+     * {@link #getSAN(short)}.
+     *
+     *@param moves the moves, e.g. as returned by {@link #getAllMoves()} or
+     *             {@link #generateMoves(short[], int, int)}
+     *@param offset the index of the first move
+     *@param num the number of moves
+     *@return the SANs, in the order of the moves
+     */
+    public String[] getSAN(short[] moves, int offset, int num)
+    {
+        String[] sans = new String[num];
+        for (int i = 0; i < num; i++) {
+            sans[i] = getMove(moves[offset + i]).getSAN();
         }
-        return Chess.NO_SQUARE;
+        return sans;
     }
 
-    public short getPawnMove(int colFrom, int to, int promoPiece)
+    private final Move getMove(short move)
     {
-//        if (getColor(from) != getToPlay()) throw new ChIllegalMoveException("Wrong color");
-        if (to == getSqiEP()) {
-            int from = Chess.coorToSqi(colFrom, getToPlay() == Chess.WHITE ? 4 : 3);
-            return Move.getEPMove(from, to);
-        } else if (colFrom == Chess.NO_COL) {
-            int delta = ((getToPlay() == Chess.WHITE) ? Chess.NUM_OF_COLS : -Chess.NUM_OF_COLS);
-            if (to - delta < 0 || to - delta >= 64) {
-                return Move.ILLEGAL_MOVE;
+        boolean isWhiteMove = (getToPlay() == Chess.WHITE);
+        if (Move.isNullMove(move)) {
+            return new Move(move, Chess.NO_PIECE, Chess.NO_COL, Chess.NO_ROW, false, false, isWhiteMove);  // =====>
+        }
+
+        boolean isCheck = givesCheck(move);
+        boolean isMate = false;
+        if (isCheck) {
+            // rare enough to afford a copy, moving on this position would discard the redo history
+            Position position = PositionPool.acquire(snapshot());
+            try {
+                position.doMoveNoMoveListeners(move);
+                isMate = !position.canMove();
+            } catch (IllegalMoveException ex) {
+                throw new RuntimeException("Illegal move " + Move.getString(move) + " in " + this, ex);
+            } finally {
+                PositionPool.release(position);
             }
-            int from = !isSquareEmpty(to - delta) ? to-delta : to-2*delta;
-            return Move.getPawnMove(from, to, false, promoPiece);
-        } else {
-            int from = Chess.coorToSqi(colFrom, Chess.sqiToRow(to) + (getToPlay() == Chess.WHITE ?  -1 : 1));
-            return Move.getPawnMove(from, to, true, promoPiece);
         }
-    }
 
-    public short getNullMove() {
-        return Move.NULL_MOVE;
+        if (Move.isCastle(move)) {
+            return Move.createCastle(move, isCheck, isMate, isWhiteMove);  // =====>
+        }
+
+        int from = Move.getFromSqi(move);
+        int to = Move.getToSqi(move);
+        int piece = getPiece(from);
+        if (piece == Chess.PAWN) {
+            int colFrom = (Move.isCapturing(move) ? Chess.sqiToCol(from) : Chess.NO_COL);
+            return new Move(move, Chess.PAWN, colFrom, Chess.NO_ROW, isCheck, isMate, isWhiteMove);  // =====>
+        }
+
+        long bbOwn = (isWhiteMove ? m_bbWhites : m_bbBlacks);
+        int kingSqi = (isWhiteMove ? m_whiteKing : m_blackKing);
+        long bbOthers = getBitBoard(getStone(from)) & ~ofSquare(from);
+        long bbCandidates = getOtherSANCandidates(piece, bbOthers, to, kingSqi, m_bbWhites | m_bbBlacks, ~bbOwn & ~ofSquare(to));
+        return createMove(move, piece, from, bbCandidates, isCheck, isMate, isWhiteMove);
+    }
+
+    private static Move createMove(short move, int piece, int from, long bbCandidates, boolean isCheck, boolean isMate, boolean isWhiteMove)
+    {
+        int colFrom = Chess.NO_COL;
+        int rowFrom = Chess.NO_ROW;
+        if (bbCandidates != 0L) {
+            if ((bbCandidates & ofCol(Chess.sqiToCol(from))) == 0L) {
+                colFrom = Chess.sqiToCol(from);
+            } else if ((bbCandidates & ofRow(Chess.sqiToRow(from))) == 0L) {
+                rowFrom = Chess.sqiToRow(from);
+            } else {
+                colFrom = Chess.sqiToCol(from);
+                rowFrom = Chess.sqiToRow(from);
+            }
+        }
+        return new Move(move, piece, colFrom, rowFrom, isCheck, isMate, isWhiteMove);
+    }
+
+    /**
+     * Returns the pieces among <code>bbOthers</code> which could legally move to
+     * <code>to</code> as well, i.e. the pieces from which a move must be
+     * distinguished in SAN.
+     *
+     *@param piece the moving piece
+     *@param bbOthers the other pieces of the same stone
+     *@param to the destination square
+     *@param kingSqi the king of the moving side
+     *@param bbOccupied the occupied squares before the move
+     *@param bbEnemies the pieces of the opponent which are not captured by the move
+     */
+    private final long getOtherSANCandidates(int piece, long bbOthers, int to, int kingSqi, long bbOccupied, long bbEnemies)
+    {
+        long bbCandidates;
+        switch (piece) {
+            case Chess.KNIGHT: bbCandidates = bbOthers & KNIGHT_ATTACKS[to];               break;
+            case Chess.BISHOP: bbCandidates = bbOthers & bishopAttacks(to, bbOccupied);    break;
+            case Chess.ROOK:   bbCandidates = bbOthers & rookAttacks(to, bbOccupied);      break;
+            case Chess.QUEEN:  bbCandidates = bbOthers & queenAttacks(to, bbOccupied);     break;
+            default:           return 0L;  // =====>
+        }
+        if (kingSqi == Chess.NO_SQUARE) return bbCandidates;  // =====>
+
+        // the move itself was legal, so a candidate can only be illegal because it is pinned
+        long bbTo = ofSquare(to);
+        for (long bb = bbCandidates; bb != 0L; bb &= bb - 1) {
+            int sqi = getFirstSqi(bb);
+            if ((LINE[kingSqi][sqi] & bbTo) != 0L) continue;  // moves along the pin line
+            long bbOccupiedAfter = (bbOccupied & ~ofSquare(sqi)) | bbTo;
+            if ((bishopAttacks(kingSqi, bbOccupiedAfter) & m_bbBishops & bbEnemies) != 0L ||
+                (rookAttacks(kingSqi, bbOccupiedAfter) & m_bbRooks & bbEnemies) != 0L) {
+                bbCandidates &= ~ofSquare(sqi);
+            }
+        }
+        return bbCandidates;
+    }
+
+    /**
+     * Returns whether a legal move gives check, without playing it.
+     */
+    private final boolean givesCheck(short move)
+    {
+        boolean isWhiteMove = (getToPlay() == Chess.WHITE);
+        int kingSqi = (isWhiteMove ? m_blackKing : m_whiteKing);
+        if (kingSqi == Chess.NO_SQUARE) return false;  // =====>
+
+        long bbOwn = (isWhiteMove ? m_bbWhites : m_bbBlacks);
+        long bbOccupied = m_bbWhites | m_bbBlacks;
+        long bbPawns    = m_bbPawns   & bbOwn;
+        long bbKnights  = m_bbKnights & bbOwn;
+        long bbBishops  = m_bbBishops & bbOwn;
+        long bbRooks    = m_bbRooks   & bbOwn;
+
+        if (Move.isCastle(move)) {
+            int kingFrom = (isWhiteMove ? m_whiteKing : m_blackKing);
+            int rookFrom, kingTo, rookTo;
+            if (Move.isShortCastle(move)) {
+                rookFrom = getShortCastleRookPosition(kingFrom);
+                kingTo = (isWhiteMove ? Chess.G1 : Chess.G8);
+                rookTo = (isWhiteMove ? Chess.F1 : Chess.F8);
+            } else {
+                rookFrom = getLongCastleRookPosition(kingFrom);
+                kingTo = (isWhiteMove ? Chess.C1 : Chess.C8);
+                rookTo = (isWhiteMove ? Chess.D1 : Chess.D8);
+            }
+            bbOccupied = (bbOccupied & ~ofSquare(kingFrom) & ~ofSquare(rookFrom)) | ofSquare(kingTo) | ofSquare(rookTo);
+            bbRooks = (bbRooks & ~ofSquare(rookFrom)) | ofSquare(rookTo);
+        } else {
+            int from = Move.getFromSqi(move);
+            int to = Move.getToSqi(move);
+            long bbFrom = ofSquare(from);
+            long bbTo = ofSquare(to);
+            int piece = (Move.isPromotion(move) ? Move.getPromotionPiece(move) : getPiece(from));
+
+            bbOccupied = (bbOccupied & ~bbFrom) | bbTo;
+            if (Move.isEPMove(move)) bbOccupied &= ~ofSquare(Chess.coorToSqi(Chess.sqiToCol(to), Chess.sqiToRow(from)));
+            bbPawns &= ~bbFrom; bbKnights &= ~bbFrom; bbBishops &= ~bbFrom; bbRooks &= ~bbFrom;
+            switch (piece) {
+                case Chess.PAWN:   bbPawns   |= bbTo; break;
+                case Chess.KNIGHT: bbKnights |= bbTo; break;
+                case Chess.BISHOP: bbBishops |= bbTo; break;
+                case Chess.ROOK:   bbRooks   |= bbTo; break;
+                case Chess.QUEEN:  bbBishops |= bbTo; bbRooks |= bbTo; break;
+                default: break;  // a king cannot give check itself
+            }
+        }
+
+        // inverse pawn attacks: the squares from which a pawn of the moving side attacks the king
+        long bbPawnAttacks = (isWhiteMove ? BLACK_PAWN_ATTACKS[kingSqi] : WHITE_PAWN_ATTACKS[kingSqi]);
+        return (bbPawnAttacks & bbPawns) != 0L ||
+               (KNIGHT_ATTACKS[kingSqi] & bbKnights) != 0L ||
+               (bishopAttacks(kingSqi, bbOccupied) & bbBishops) != 0L ||
+               (rookAttacks(kingSqi, bbOccupied) & bbRooks) != 0L;
+    }
+
+    private final int getFromSqi(int piece, int colFrom, int rowFrom, int to)
+    {
+        long bb = getBitBoard(Chess.pieceToStone(piece, getToPlay()));
+        if (colFrom != Chess.NO_COL) {bb &= ofCol(colFrom);}
+        if (rowFrom != Chess.NO_ROW) {bb &= ofRow(rowFrom);}
+
+        while (bb != 0L) {
+            int from = getFirstSqi(bb);
+            if (DEBUG) LOGGER.debug("  trying from: " + from);
+            int pinnedDir = getPinnedDirection(from, getToPlay());
+            if (attacks(from, to) && (pinnedDir == NO_DIR || areDirectionsParallel(pinnedDir, DIR[from][to]))) {
+                if (DEBUG) LOGGER.debug(" ok");
+                return from;
+            }
+            bb &= bb -1;
+        }
+        return Chess.NO_SQUARE;
+    }
+
+    public short getPawnMove(int colFrom, int to, int promoPiece)
+    {
+//        if (getColor(from) != getToPlay()) throw new ChIllegalMoveException("Wrong color");
+        if (to == getSqiEP()) {
+            int from = Chess.coorToSqi(colFrom, getToPlay() == Chess.WHITE ? 4 : 3);
+            return Move.getEPMove(from, to);
+        } else if (colFrom == Chess.NO_COL) {
+            int delta = ((getToPlay() == Chess.WHITE) ? Chess.NUM_OF_COLS : -Chess.NUM_OF_COLS);
+            if (to - delta < 0 || to - delta >= 64) {
+                return Move.ILLEGAL_MOVE;
+            }
+            int from = !isSquareEmpty(to - delta) ? to-delta : to-2*delta;
+            return Move.getPawnMove(from, to, false, promoPiece);
+        } else {
+            int from = Chess.coorToSqi(colFrom, Chess.sqiToRow(to) + (getToPlay() == Chess.WHITE ?  -1 : 1));
+            return Move.getPawnMove(from, to, true, promoPiece);
+        }
+    }
+
+    public short getNullMove() {
+        return Move.NULL_MOVE;
     }
 
     public short getPieceMove(int piece, int colFrom, int rowFrom, int to)
@@ -1248,7 +2036,7 @@ public final class Position extends AbstractMoveablePosition
      **/
     private int getPinnedDirection(int sqi, int color)
     {
-        if (PROFILE) m_numGetPinnedDirection++;
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.GET_PINNED_DIRECTION);
 
         int kingSqi = (color == Chess.WHITE ? m_whiteKing : m_blackKing);
         long bbSqi = ofSquare(sqi);
@@ -1259,26 +2047,16 @@ public final class Position extends AbstractMoveablePosition
         long kingDirRim = RIM_BOARD[kingDir];
         if ((kingDirRim & bbSqi) != 0L) return NO_DIR;  // =====>  nothing behind piece
 
+        // look through sqi from the king: the first piece behind sqi must be a slider of the opponent
+        long bbAllPieces = (m_bbWhites | m_bbBlacks) & ~bbSqi;
         long bbTarget;
         if (isDiagonal(kingDir)) {
-            bbTarget = BISHOP_ATTACKS[kingSqi] & m_bbBishops & (color == Chess.WHITE ? m_bbBlacks : m_bbWhites);
+            bbTarget = bishopAttacks(kingSqi, bbAllPieces) & m_bbBishops;
         } else {
-            bbTarget = ROOK_ATTACKS[kingSqi] & m_bbRooks & (color == Chess.WHITE ? m_bbBlacks : m_bbWhites);
+            bbTarget = rookAttacks(kingSqi, bbAllPieces) & m_bbRooks;
         }
-        if (bbTarget == 0L) return NO_DIR;  // =====>
-
-        long bbAllPieces = m_bbWhites | m_bbBlacks;
-        if ((SQUARES_BETWEEN[kingSqi][sqi] & bbAllPieces) != 0L) return NO_DIR;  // =====>
-
-        long bb = bbSqi;
-        int vector = DIR_SHIFT[kingDir];
-        do{
-            // bb not on rim checked above -> can increment without test
-            if (vector < 0) bb >>>= -vector; else bb <<= vector;
-            if ((bbTarget & bb) != 0L) return kingDir;  // =====>
-            if ((bbAllPieces & bb) != 0L) return NO_DIR;  // =====>
-        } while ((kingDirRim & bb) == 0L);
-        return NO_DIR;
+        bbTarget &= RAY[sqi][kingDir] & (color == Chess.WHITE ? m_bbBlacks : m_bbWhites);
+        return (bbTarget != 0L ? kingDir : NO_DIR);
     }
 
     private static final int sign(int i)
@@ -1303,24 +2081,17 @@ public final class Position extends AbstractMoveablePosition
             case Chess.BISHOP:
             case Chess.ROOK:
             case Chess.QUEEN:
-                if (piece == Chess.BISHOP && (BISHOP_ATTACKS[from] & bbTo) == 0) return false;  // =====>
-                if (piece == Chess.ROOK && (ROOK_ATTACKS[from] & bbTo) == 0) return false;  // =====>
-                if (piece == Chess.QUEEN && (QUEEN_ATTACKS[from] & bbTo) == 0) return false;  // =====>
-                long bbFrom = ofSquare(from);
-                int vector = DIR_SHIFT[DIR[from][to]];
-                if (vector < 0) bbFrom >>>= -vector; else bbFrom <<= vector;
-                while (bbFrom != bbTo) {
-                    if (((m_bbWhites | m_bbBlacks) & bbFrom) != 0) return false;  // =====>
-                    if (vector < 0) bbFrom >>>= -vector; else bbFrom <<= vector;
-                }
-                return true;  // =====>
+                long bbAllPieces = m_bbWhites | m_bbBlacks;
+                if (piece == Chess.BISHOP) return (bishopAttacks(from, bbAllPieces) & bbTo) != 0;  // =====>
+                if (piece == Chess.ROOK) return (rookAttacks(from, bbAllPieces) & bbTo) != 0;  // =====>
+                return (queenAttacks(from, bbAllPieces) & bbTo) != 0;  // =====>
                 default: throw new RuntimeException("Illegal piece: " + piece);
         }
     }
 
     private final boolean isAttacked(int sqi, int attacker, long bbExclude)
     {
-        if (PROFILE) m_numIsAttacked++;
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.IS_ATTACKED);
 
         // only to print sqi, otherwise not needed
         if (sqi < 0 || sqi >63) throw new IllegalArgumentException("Illegal sqi: " + sqi);
@@ -1332,12 +2103,8 @@ public final class Position extends AbstractMoveablePosition
         if ((KNIGHT_ATTACKS[sqi] & bbAttackerPieces & m_bbKnights) != 0) return true;  // =====>
 
         /*---------- sliding pieces ----------*/
-        long bbTargets = ((BISHOP_ATTACKS[sqi] & m_bbBishops) | (ROOK_ATTACKS[sqi] & m_bbRooks)) & bbAttackerPieces;
-        while (bbTargets != 0L) {
-            int from = getFirstSqi(bbTargets);
-            if ((SQUARES_BETWEEN[from][sqi] & bbAllPieces) == 0L) return true;  // =====>
-            bbTargets &= bbTargets -1;
-        }
+        if ((bishopAttacks(sqi, bbAllPieces) & m_bbBishops & bbAttackerPieces) != 0L) return true;  // =====>
+        if ((rookAttacks(sqi, bbAllPieces) & m_bbRooks & bbAttackerPieces) != 0L) return true;  // =====>
 
         /*---------- king & pawns ----------*/
         if (attacker == Chess.WHITE) {
@@ -1352,9 +2119,81 @@ public final class Position extends AbstractMoveablePosition
         return false;
     }
 
+    /**
+     * Returns all squares attacked by the pieces of the given color, whether empty or
+     * occupied by pieces of either color. Sliding pieces attack up to and including
+     * the first piece in their way. The squares are computed on the first call and
+     * cached until the position changes.
+     *
+     *@param color the color of the attacking pieces
+     *@return the attacked squares as bit board
+     */
+    public final long getAttackedSquares(int color)
+    {
+        if (color == Chess.WHITE) {
+            if ((m_attacksValid & ATTACKS_WHITE) == 0) {
+                long start = (PositionMetrics.s_enabled ? PositionMetrics.startTimer() : 0L);
+                m_bbWhiteAttacks = computeAttackedSquares(Chess.WHITE);
+                m_attacksValid |= ATTACKS_WHITE;
+                if (start != 0L) PositionMetrics.stopTimer(PositionMetrics.TIMER_ATTACKED_SQUARES, start);
+            }
+            return m_bbWhiteAttacks;
+        } else {
+            if ((m_attacksValid & ATTACKS_BLACK) == 0) {
+                long start = (PositionMetrics.s_enabled ? PositionMetrics.startTimer() : 0L);
+                m_bbBlackAttacks = computeAttackedSquares(Chess.BLACK);
+                m_attacksValid |= ATTACKS_BLACK;
+                if (start != 0L) PositionMetrics.stopTimer(PositionMetrics.TIMER_ATTACKED_SQUARES, start);
+            }
+            return m_bbBlackAttacks;
+        }
+    }
+
+    private final long computeAttackedSquares(int color)
+    {
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.ATTACKED_SQUARES);
+
+        long bbAttackerPieces = (color == Chess.WHITE ? m_bbWhites : m_bbBlacks);
+        long bbAllPieces = m_bbWhites | m_bbBlacks;
+        long attacks = 0L;
+
+        /*---------- knights ----------*/
+        long bbPieces = m_bbKnights & bbAttackerPieces;
+        while (bbPieces != 0L) {
+            attacks |= KNIGHT_ATTACKS[getFirstSqi(bbPieces)];
+            bbPieces &= bbPieces - 1;
+        }
+
+        /*---------- sliding pieces ----------*/
+        bbPieces = m_bbBishops & bbAttackerPieces;
+        while (bbPieces != 0L) {
+            attacks |= bishopAttacks(getFirstSqi(bbPieces), bbAllPieces);
+            bbPieces &= bbPieces - 1;
+        }
+        bbPieces = m_bbRooks & bbAttackerPieces;
+        while (bbPieces != 0L) {
+            attacks |= rookAttacks(getFirstSqi(bbPieces), bbAllPieces);
+            bbPieces &= bbPieces - 1;
+        }
+
+        /*---------- pawns & king ----------*/
+        long bbPawns = m_bbPawns & bbAttackerPieces;
+        int kingSqi;
+        if (color == Chess.WHITE) {
+            attacks |= ((bbPawns & ~ofCol(0)) << 7) | ((bbPawns & ~ofCol(Chess.NUM_OF_COLS - 1)) << 9);
+            kingSqi = m_whiteKing;
+        } else {
+            attacks |= ((bbPawns & ~ofCol(Chess.NUM_OF_COLS - 1)) >>> 7) | ((bbPawns & ~ofCol(0)) >>> 9);
+            kingSqi = m_blackKing;
+        }
+        if (kingSqi != Chess.NO_SQUARE) attacks |= KING_ATTACKS[kingSqi];
+
+        return attacks;
+    }
+
     private final long getDirectAttackers(int sqi, int color, boolean includeInbetweenSquares)
     {
-        if (PROFILE) m_numDirectAttackers++;
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.DIRECT_ATTACKERS);
 
         long attackers = 0L;
         long bbAttackerPieces = (color == Chess.WHITE ? m_bbWhites : m_bbBlacks);
@@ -1364,15 +2203,13 @@ public final class Position extends AbstractMoveablePosition
         attackers |= KNIGHT_ATTACKS[sqi] & bbAttackerPieces & m_bbKnights;
 
         /*---------- sliding pieces ----------*/
-        long bbTargets = ((BISHOP_ATTACKS[sqi] & m_bbBishops) | (ROOK_ATTACKS[sqi] & m_bbRooks)) & bbAttackerPieces;
-        while (bbTargets != 0L) {
-            int from = getFirstSqi(bbTargets);
-            long squaresInBetween = SQUARES_BETWEEN[from][sqi];
-            if ((squaresInBetween & bbAllPieces) == 0L) {
-                attackers |= ofSquare(from);
-                if (includeInbetweenSquares) attackers |= squaresInBetween;
+        long bbSliders = ((bishopAttacks(sqi, bbAllPieces) & m_bbBishops) | (rookAttacks(sqi, bbAllPieces) & m_bbRooks)) & bbAttackerPieces;
+        attackers |= bbSliders;
+        if (includeInbetweenSquares) {
+            while (bbSliders != 0L) {
+                attackers |= SQUARES_BETWEEN[getFirstSqi(bbSliders)][sqi];
+                bbSliders &= bbSliders - 1;
             }
-            bbTargets &= bbTargets -1;
         }
 
         /*---------- pawns & king ----------*/
@@ -1394,73 +2231,315 @@ public final class Position extends AbstractMoveablePosition
         return attackers;
     }
 
-    private final int getAllKnightMoves(int moveIndex, long bbTargets)
+    /**
+     * Returns all pieces of both colors attacking <code>sqi</code> if only the pieces in
+     * <code>bbOccupied</code> were on the board. Used to discover x-ray attackers behind
+     * pieces which are removed during an exchange.
+     */
+    private final long getAllAttackers(int sqi, long bbOccupied)
+    {
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.GET_ALL_ATTACKERS);
+
+        long attackers = KNIGHT_ATTACKS[sqi] & m_bbKnights;
+        attackers |= bishopAttacks(sqi, bbOccupied) & m_bbBishops;
+        attackers |= rookAttacks(sqi, bbOccupied) & m_bbRooks;
+        attackers |= BLACK_PAWN_ATTACKS[sqi] & m_bbPawns & m_bbWhites;
+        attackers |= WHITE_PAWN_ATTACKS[sqi] & m_bbPawns & m_bbBlacks;
+        attackers |= KING_ATTACKS[sqi] & (ofSquare(m_whiteKing) | ofSquare(m_blackKing));
+        return attackers & bbOccupied;
+    }
+
+    /*================================================================================*/
+    // static exchange evaluation
+
+    private static final int[] PIECE_VALUE = new int[Chess.MAX_PIECE + 1];
+
+    static {
+        PIECE_VALUE[Chess.NO_PIECE] = 0;
+        PIECE_VALUE[Chess.PAWN]     = 100;
+        PIECE_VALUE[Chess.KNIGHT]   = 300;
+        PIECE_VALUE[Chess.BISHOP]   = 325;
+        PIECE_VALUE[Chess.ROOK]     = 500;
+        PIECE_VALUE[Chess.QUEEN]    = 900;
+        PIECE_VALUE[Chess.KING]     = 20000;
+    }
+
+    /**
+     * Returns the least valuable piece among <code>bbAttackers</code>, which must all
+     * have the same color, as a single bit. Returns 0 if there is none.
+     */
+    private final long getLeastValuableAttacker(long bbAttackers)
+    {
+        long bb;
+        if ((bb = bbAttackers & m_bbPawns) != 0L) return bb & -bb;  // =====>
+        if ((bb = bbAttackers & m_bbKnights) != 0L) return bb & -bb;  // =====>
+        if ((bb = bbAttackers & m_bbBishops & ~m_bbRooks) != 0L) return bb & -bb;  // =====>
+        if ((bb = bbAttackers & m_bbRooks & ~m_bbBishops) != 0L) return bb & -bb;  // =====>
+        if ((bb = bbAttackers & m_bbBishops & m_bbRooks) != 0L) return bb & -bb;  // =====>
+        return bbAttackers & (ofSquare(m_whiteKing) | ofSquare(m_blackKing));
+    }
+
+    private final int getPieceValue(long bbSqi)
+    {
+        if ((bbSqi & m_bbPawns) != 0L) return PIECE_VALUE[Chess.PAWN];  // =====>
+        if ((bbSqi & m_bbKnights) != 0L) return PIECE_VALUE[Chess.KNIGHT];  // =====>
+        if ((bbSqi & m_bbBishops) != 0L) return PIECE_VALUE[(bbSqi & m_bbRooks) != 0L ? Chess.QUEEN : Chess.BISHOP];  // =====>
+        if ((bbSqi & m_bbRooks) != 0L) return PIECE_VALUE[Chess.ROOK];  // =====>
+        if ((bbSqi & (ofSquare(m_whiteKing) | ofSquare(m_blackKing))) != 0L) return PIECE_VALUE[Chess.KING];  // =====>
+        return 0;
+    }
+
+    /**
+     * Returns the material balance of the exchange on the destination square of a move,
+     * from the point of view of the player to move, assuming both players recapture with
+     * their least valuable piece as long as it pays off. Pieces which are uncovered by a
+     * capture (x-rays) take part in the exchange; pins are ignored. The position is not
+     * changed.
+     *
+     * <p>Pieces count 100 (pawn), 300 (knight), 325 (bishop), 500 (rook) and 900 (queen).
+     *
+     *@param move a legal move of the current position
+     *@return the expected gain of the move, 0 for castles and the null move
+     */
+    public int see(short move)
+    {
+        if (Move.isCastle(move) || Move.isNullMove(move)) return 0;  // =====>
+
+        int from = Move.getFromSqi(move);
+        int to = Move.getToSqi(move);
+        long bbFrom = ofSquare(from);
+        long bbOccupied = (m_bbWhites | m_bbBlacks) & ~bbFrom;
+
+        int[] gain = m_seeGain;
+        int attackerValue = getPieceValue(bbFrom);
+        if (Move.isEPMove(move)) {
+            gain[0] = PIECE_VALUE[Chess.PAWN];
+            bbOccupied &= ~ofSquare(to + (getToPlay() == Chess.WHITE ? -Chess.NUM_OF_COLS : Chess.NUM_OF_COLS));
+        } else {
+            gain[0] = getPieceValue(ofSquare(to));
+        }
+        if (Move.isPromotion(move)) {
+            attackerValue = PIECE_VALUE[Move.getPromotionPiece(move)];
+            gain[0] += attackerValue - PIECE_VALUE[Chess.PAWN];
+        }
+
+        long bbAttackers = getAllAttackers(to, bbOccupied);
+        int side = getNotToPlay();
+        int depth = 0;
+        for (;;) {
+            depth++;
+            gain[depth] = attackerValue - gain[depth - 1];  // speculative, if the piece is recaptured
+
+            long bbAttacker = getLeastValuableAttacker(bbAttackers & (side == Chess.WHITE ? m_bbWhites : m_bbBlacks));
+            if (bbAttacker == 0L) break;  // =====>
+
+            attackerValue = getPieceValue(bbAttacker);
+            bbOccupied &= ~bbAttacker;
+            // discover x-ray attackers behind the piece
+            if ((bbAttacker & (m_bbPawns | m_bbBishops)) != 0L) bbAttackers |= bishopAttacks(to, bbOccupied) & m_bbBishops;
+            if ((bbAttacker & m_bbRooks) != 0L) bbAttackers |= rookAttacks(to, bbOccupied) & m_bbRooks;
+            bbAttackers &= bbOccupied;
+            side = Chess.otherPlayer(side);
+        }
+        while (--depth > 0) {
+            gain[depth - 1] = -Math.max(-gain[depth - 1], gain[depth]);
+        }
+        return gain[0];
+    }
+
+    /**
+     * Returns whether the static exchange evaluation of a move is at least
+     * <code>threshold</code>. Faster than comparing the result of {@link #see(short)},
+     * since the exchange is only followed until the result is known.
+     *
+     *@param move a legal move of the current position
+     *@param threshold the minimum gain
+     *@return whether <code>see(move) >= threshold</code>
+     */
+    public boolean seeGE(short move, int threshold)
+    {
+        if (Move.isCastle(move) || Move.isNullMove(move)) return threshold <= 0;  // =====>
+        if (Move.isPromotion(move)) return see(move) >= threshold;  // =====>
+
+        int from = Move.getFromSqi(move);
+        int to = Move.getToSqi(move);
+        long bbFrom = ofSquare(from);
+        long bbOccupied = (m_bbWhites | m_bbBlacks) & ~bbFrom;
+
+        int swap;
+        if (Move.isEPMove(move)) {
+            swap = PIECE_VALUE[Chess.PAWN] - threshold;
+            bbOccupied &= ~ofSquare(to + (getToPlay() == Chess.WHITE ? -Chess.NUM_OF_COLS : Chess.NUM_OF_COLS));
+        } else {
+            swap = getPieceValue(ofSquare(to)) - threshold;
+        }
+        if (swap < 0) return false;  // =====>  even if the piece is not recaptured
+
+        swap = getPieceValue(bbFrom) - swap;
+        if (swap <= 0) return true;  // =====>  even if the piece is recaptured
+
+        // res tells whether the player to move reaches the threshold if the side which is
+        // to capture next gives up
+        long bbAttackers = getAllAttackers(to, bbOccupied);
+        int side = getToPlay();
+        int res = 1;
+        for (;;) {
+            side = Chess.otherPlayer(side);
+            long bbSide = (side == Chess.WHITE ? m_bbWhites : m_bbBlacks);
+            long bbAttacker = getLeastValuableAttacker(bbAttackers & bbSide);
+            if (bbAttacker == 0L) break;  // =====>
+
+            res ^= 1;
+            if ((bbAttacker & (ofSquare(m_whiteKing) | ofSquare(m_blackKing))) != 0L) {
+                // the king may only capture if the square is not defended any more
+                return ((bbAttackers & ~bbSide) != 0L ? res ^ 1 : res) != 0;  // =====>
+            }
+            swap = getPieceValue(bbAttacker) - swap;
+            if (swap < res) break;  // =====>
+
+            bbOccupied &= ~bbAttacker;
+            if ((bbAttacker & (m_bbPawns | m_bbBishops)) != 0L) bbAttackers |= bishopAttacks(to, bbOccupied) & m_bbBishops;
+            if ((bbAttacker & m_bbRooks) != 0L) bbAttackers |= rookAttacks(to, bbOccupied) & m_bbRooks;
+            bbAttackers &= bbOccupied;
+        }
+        return res != 0;
+    }
+
+    /**
+     * Returns whether an en passant capture does not leave the own king in check.
+     * Since two pawns leave their squares, the capturing pawn might not be pinned
+     * itself but still uncover the king, e.g. if both pawns are between the king and
+     * a rook on the same row.
+     */
+    private final boolean isEPMoveLegal(int from, int to)
+    {
+        int kingSqi, pawnSqi;
+        long bbOpponent;
+        if (getToPlay() == Chess.WHITE) {
+            kingSqi = m_whiteKing; pawnSqi = to - Chess.NUM_OF_COLS; bbOpponent = m_bbBlacks;
+        } else {
+            kingSqi = m_blackKing; pawnSqi = to + Chess.NUM_OF_COLS; bbOpponent = m_bbWhites;
+        }
+        long bbOccupied = ((m_bbWhites | m_bbBlacks) & ~ofSquare(from) & ~ofSquare(pawnSqi)) | ofSquare(to);
+        return (bishopAttacks(kingSqi, bbOccupied) & m_bbBishops & bbOpponent) == 0L &&
+               (rookAttacks(kingSqi, bbOccupied) & m_bbRooks & bbOpponent) == 0L;
+    }
+
+    /**
+     * Computes the pieces of the side to move which are pinned in front of their king
+     * and the pieces giving check. All piece generators need them, so they are computed
+     * once per move generation rather than once per piece. As a side effect, the check
+     * flag is cached.
+     */
+    private final void initPinsAndCheckers()
+    {
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.INIT_PINS_AND_CHECKERS);
+
+        int kingSqi;
+        long bbToPlay, bbNotToPlay;
+        if (getToPlay() == Chess.WHITE) {
+            kingSqi = m_whiteKing; bbToPlay = m_bbWhites; bbNotToPlay = m_bbBlacks;
+        } else {
+            kingSqi = m_blackKing; bbToPlay = m_bbBlacks; bbNotToPlay = m_bbWhites;
+        }
+        long bbAllPieces = m_bbWhites | m_bbBlacks;
+
+        // a piece is pinned if it is the only piece between the king and an opponent slider
+        // which would attack the king on an empty board
+        long bbPinned = 0L;
+        long bbSnipers = ((BISHOP_ATTACKS[kingSqi] & m_bbBishops) | (ROOK_ATTACKS[kingSqi] & m_bbRooks)) & bbNotToPlay;
+        while (bbSnipers != 0L) {
+            long bbBetween = SQUARES_BETWEEN[getFirstSqi(bbSnipers)][kingSqi] & bbAllPieces;
+            if (isExactlyOneBitSet(bbBetween)) bbPinned |= bbBetween & bbToPlay;
+            bbSnipers &= bbSnipers - 1;
+        }
+        m_bbPinned = bbPinned;
+        m_bbCheckers = getDirectAttackers(kingSqi, getNotToPlay(), false);
+
+        m_flags &= ~(CHECK_MASK << CHECK_SHIFT);
+        m_flags |= (m_bbCheckers != 0L ? FLAG_YES : FLAG_NO) << CHECK_SHIFT;
+    }
+
+    /**
+     * Computes only the pieces giving check for pseudo-legal move generation, no
+     * piece is taken as pinned. As a side effect, the check flag is cached.
+     */
+    private final void initCheckers()
+    {
+        int kingSqi = (getToPlay() == Chess.WHITE ? m_whiteKing : m_blackKing);
+        m_bbPinned = 0L;
+        m_bbCheckers = getDirectAttackers(kingSqi, getNotToPlay(), false);
+
+        m_flags &= ~(CHECK_MASK << CHECK_SHIFT);
+        m_flags |= (m_bbCheckers != 0L ? FLAG_YES : FLAG_NO) << CHECK_SHIFT;
+    }
+
+    /**
+     * Returns the squares a piece other than the king may move to in order to resolve a
+     * check: the checking piece and the squares between it and the king. Only valid after
+     * {@link #initPinsAndCheckers()} found exactly one checker.
+     */
+    private final long getCheckEvasionTargets()
+    {
+        int kingSqi = (getToPlay() == Chess.WHITE ? m_whiteKing : m_blackKing);
+        return m_bbCheckers | SQUARES_BETWEEN[getFirstSqi(m_bbCheckers)][kingSqi];
+    }
+
+    private final int getAllKnightMoves(short[] moves, int moveIndex, long bbTargets)
     {
         if (bbTargets == 0L) return moveIndex;
 
         long bbToPlay = (getToPlay() == Chess.WHITE ? m_bbWhites : m_bbBlacks);
 
         /*---------- knights moves ----------*/
-        long bbPieces = m_bbKnights & bbToPlay;
+        long bbPieces = m_bbKnights & bbToPlay & ~m_bbPinned;  // pinned knights can never move
         while (bbPieces != 0L) {
             int from = getFirstSqi(bbPieces);
-            if (getPinnedDirection(from, getToPlay()) == NO_DIR) {
-                long destSquares = KNIGHT_ATTACKS[from] & (~bbToPlay) & bbTargets;
-                while (destSquares != 0L) {
-                    if (moveIndex == -1) return 1;  // =====>
-                    int to = getFirstSqi(destSquares);
-                    m_moves[moveIndex++] = Move.getRegularMove(from, to, !isSquareEmpty(to));
-                    destSquares &= destSquares - 1;
-                }
+            long destSquares = KNIGHT_ATTACKS[from] & (~bbToPlay) & bbTargets;
+            while (destSquares != 0L) {
+                if (moveIndex == -1) return 1;  // =====>
+                int to = getFirstSqi(destSquares);
+                moves[moveIndex++] = Move.getRegularMove(from, to, !isSquareEmpty(to));
+                destSquares &= destSquares - 1;
             }
             bbPieces &= bbPieces - 1;
         }
         return moveIndex;
     }
 
-    private final int getAllSlidingMoves(int moveIndex, long bbTargets, long bbPieces, int piece)
+    private final int getAllSlidingMoves(short[] moves, int moveIndex, long bbTargets, long bbPieces, int piece)
     {
         if (bbTargets == 0L) return moveIndex;
 
         long bbToPlay = (getToPlay() == Chess.WHITE ? m_bbWhites : m_bbBlacks);
         long bbNotToPlay = (getToPlay() == Chess.WHITE ? m_bbBlacks : m_bbWhites);
-
-        int dirStep = (piece == Chess.QUEEN ? 1 : 2);
-        int startDir = (piece == Chess.ROOK ? S : SW);
+        long bbAllPieces = m_bbWhites | m_bbBlacks;
+        int kingSqi = (getToPlay() == Chess.WHITE ? m_whiteKing : m_blackKing);
 
         while (bbPieces != 0L) {
             int from = getFirstSqi(bbPieces);
-            int pinnedDir = getPinnedDirection(from, getToPlay());
-            for (int dir = startDir; dir < NUM_OF_DIRS; dir += dirStep) {
-                if ((RAY[from][dir] & bbTargets) != 0L) {
-                    if (pinnedDir == NO_DIR || areDirectionsParallel(dir, pinnedDir)) {
-                        int dirShift = DIR_SHIFT[dir];
-                        long bb = ofSquare(from);
-                        int to = from;
-                        long rimBoard = RIM_BOARD[dir];
-                        while ((bb & rimBoard) == 0L) {
-                            if (dirShift < 0) bb >>>= -dirShift; else bb <<= dirShift;
-                            to += dirShift;
-                            if ((bb & bbToPlay) != 0L) break;
-                            if ((bb & bbTargets) != 0L) {
-                                if (moveIndex == -1) return 1;  // =====>
-                                if ((bb & bbNotToPlay) == 0L) {
-                                    m_moves[moveIndex++] = Move.getRegularMove(from, to, false);
-                                } else {
-                                    m_moves[moveIndex++] = Move.getRegularMove(from, to, true);
-                                    break;
-                                }
-                            } else if ((bb & bbNotToPlay) != 0) break;
-                        }
-                    }
-                }
+            long destSquares;
+            switch (piece) {
+                case Chess.BISHOP: destSquares = bishopAttacks(from, bbAllPieces); break;
+                case Chess.ROOK:   destSquares = rookAttacks(from, bbAllPieces); break;
+                default:           destSquares = queenAttacks(from, bbAllPieces); break;
+            }
+            destSquares &= (~bbToPlay) & bbTargets;
+            if ((ofSquare(from) & m_bbPinned) != 0L) {
+                destSquares &= LINE[kingSqi][from];
+            }
+            while (destSquares != 0L) {
+                if (moveIndex == -1) return 1;  // =====>
+                int to = getFirstSqi(destSquares);
+                moves[moveIndex++] = Move.getRegularMove(from, to, (ofSquare(to) & bbNotToPlay) != 0L);
+                destSquares &= destSquares - 1;
             }
             bbPieces &= bbPieces - 1;
         }
         return moveIndex;
     }
 
-    private final int getAllKingMoves(int moveIndex, long bbTargets, boolean withCastles)
+    private final int getAllKingMoves(short[] moves, int moveIndex, long bbTargets, boolean withCastles)
     {
         if (bbTargets == 0L) return moveIndex;
 
@@ -1469,14 +2548,19 @@ public final class Position extends AbstractMoveablePosition
 
         /*---------- regular king moves ----------*/
         int from = (getToPlay() == Chess.WHITE ? m_whiteKing : m_blackKing);
-        long bbFrom = ofSquare(from);
         long destSquares = KING_ATTACKS[from] & (~bbToPlay) & bbTargets;
+        if (destSquares != 0L) destSquares &= ~getAttackedSquares(getNotToPlay());
+        // the king does not block a checking slider from the squares behind him
+        long bbSliders = m_bbCheckers & (m_bbBishops | m_bbRooks);
+        while (bbSliders != 0L) {
+            int sqi = getFirstSqi(bbSliders);
+            destSquares &= ~(LINE[sqi][from] & ~ofSquare(sqi));
+            bbSliders &= bbSliders - 1;
+        }
         while (destSquares != 0L) {
+            if (moveIndex == -1) return 1;  // =====>
             int to = getFirstSqi(destSquares);
-            if (!isAttacked(to, getNotToPlay(), bbFrom)) {
-                if (moveIndex == -1) return 1;  // =====>
-                m_moves[moveIndex++] = Move.getRegularMove(from, to, !isSquareEmpty(to));
-            }
+            moves[moveIndex++] = Move.getRegularMove(from, to, !isSquareEmpty(to));
             destSquares &= destSquares - 1;
         }
 
@@ -1484,42 +2568,43 @@ public final class Position extends AbstractMoveablePosition
         if (withCastles) {
             int castles = getCastles();
             if (getToPlay() == Chess.WHITE) {
-                // don't need to exclude anything for isAttack since other check would fail in those cases
-                if ((castles & WHITE_SHORT_CASTLE) != 0 && (ofSquare(Chess.G1) & bbTargets) != 0L && (bbAllPieces & WHITE_SHORT_CASTLE_EMPTY_MASK) == 0L && !isAttacked(Chess.F1, Chess.BLACK, 0L) && !isAttacked(Chess.G1, Chess.BLACK, 0L)) {
+                if ((castles & WHITE_SHORT_CASTLE) != 0 && (ofSquare(Chess.G1) & bbTargets) != 0L && (bbAllPieces & WHITE_SHORT_CASTLE_EMPTY_MASK) == 0L && (getAttackedSquares(Chess.BLACK) & WHITE_SHORT_CASTLE_PASS_MASK) == 0L) {
                     if (moveIndex == -1) return 1;  // =====>
-                    m_moves[moveIndex++] = Move.WHITE_SHORT_CASTLE;
+                    moves[moveIndex++] = Move.WHITE_SHORT_CASTLE;
                 }
-                if ((castles & WHITE_LONG_CASTLE) != 0 && (ofSquare(Chess.C1) & bbTargets) != 0L && (bbAllPieces & WHITE_LONG_CASTLE_EMPTY_MASK) == 0L && !isAttacked(Chess.D1, Chess.BLACK, 0L) && !isAttacked(Chess.C1, Chess.BLACK, 0L)) {
+                if ((castles & WHITE_LONG_CASTLE) != 0 && (ofSquare(Chess.C1) & bbTargets) != 0L && (bbAllPieces & WHITE_LONG_CASTLE_EMPTY_MASK) == 0L && (getAttackedSquares(Chess.BLACK) & WHITE_LONG_CASTLE_PASS_MASK) == 0L) {
                     if (moveIndex == -1) return 1;  // =====>
-                    m_moves[moveIndex++] = Move.WHITE_LONG_CASTLE;
+                    moves[moveIndex++] = Move.WHITE_LONG_CASTLE;
                 }
             } else {
-                if ((castles & BLACK_SHORT_CASTLE) != 0 && (ofSquare(Chess.G8) & bbTargets) != 0L && (bbAllPieces & BLACK_SHORT_CASTLE_EMPTY_MASK) == 0L && !isAttacked(Chess.F8, Chess.WHITE, 0L) && !isAttacked(Chess.G8, Chess.WHITE, 0L)) {
+                if ((castles & BLACK_SHORT_CASTLE) != 0 && (ofSquare(Chess.G8) & bbTargets) != 0L && (bbAllPieces & BLACK_SHORT_CASTLE_EMPTY_MASK) == 0L && (getAttackedSquares(Chess.WHITE) & BLACK_SHORT_CASTLE_PASS_MASK) == 0L) {
                     if (moveIndex == -1) return 1;  // =====>
-                    m_moves[moveIndex++] = Move.BLACK_SHORT_CASTLE;
+                    moves[moveIndex++] = Move.BLACK_SHORT_CASTLE;
                 }
-                if ((castles & BLACK_LONG_CASTLE) != 0 && (ofSquare(Chess.C8) & bbTargets) != 0L && (bbAllPieces & BLACK_LONG_CASTLE_EMPTY_MASK) == 0L && !isAttacked(Chess.D8, Chess.WHITE, 0L) && !isAttacked(Chess.C8, Chess.WHITE, 0L)) {
+                if ((castles & BLACK_LONG_CASTLE) != 0 && (ofSquare(Chess.C8) & bbTargets) != 0L && (bbAllPieces & BLACK_LONG_CASTLE_EMPTY_MASK) == 0L && (getAttackedSquares(Chess.WHITE) & BLACK_LONG_CASTLE_PASS_MASK) == 0L) {
                     if (moveIndex == -1) return 1;  // =====>
-                    m_moves[moveIndex++] = Move.BLACK_LONG_CASTLE;
+                    moves[moveIndex++] = Move.BLACK_LONG_CASTLE;
                 }
             }
         }
         return moveIndex;
     }
 
-    private final int getAllPawnMoves(int moveIndex, long bbTargets)
+    private final int getAllPawnMoves(short[] moves, int moveIndex, long bbTargets)
     {
         if (bbTargets == 0L) return moveIndex;
 
         long bbToPlay, bbNotToPlay;
-        int pawnMoveDir, secondRank, eighthRank;
+        int kingSqi, pawnMoveDir, secondRank, eighthRank;
 
         if (getToPlay() == Chess.WHITE) {
             bbToPlay = m_bbWhites; bbNotToPlay = m_bbBlacks;
+            kingSqi = m_whiteKing;
             pawnMoveDir = N;
             secondRank = 1; eighthRank = 7;
         } else {
             bbToPlay = m_bbBlacks; bbNotToPlay = m_bbWhites;
+            kingSqi = m_blackKing;
             pawnMoveDir = S;
             secondRank = 6; eighthRank = 0;
         }
@@ -1540,22 +2625,22 @@ public final class Position extends AbstractMoveablePosition
 
             /*---------- pawn move ----------*/
             int to = from + DIR_SHIFT[pawnMoveDir];
-            int pinnedDir = getPinnedDirection(from, getToPlay());
+            long bbPinLine = ((ofSquare(from) & m_bbPinned) != 0L ? LINE[kingSqi][from] : ~0L);
             if (isSquareEmpty(to)) {
-                if (pinnedDir == NO_DIR || areDirectionsParallel(pinnedDir, pawnMoveDir)) {
+                if ((ofSquare(to) & bbPinLine) != 0L) {
                     long bbTo = ofSquare(to);
                     if (Chess.sqiToRow(to) == eighthRank) {
                         if ((bbTo & bbTargets) != 0L) {
                             if (moveIndex == -1) return 1;  // =====>
-                            m_moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.QUEEN);
-                            m_moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.ROOK);
-                            m_moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.BISHOP);
-                            m_moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.KNIGHT);
+                            moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.QUEEN);
+                            moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.ROOK);
+                            moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.BISHOP);
+                            moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.KNIGHT);
                         }
                     } else {
                         if ((bbTo & bbTargets) != 0L) {
                             if (moveIndex == -1) return 1;  // =====>
-                            m_moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.NO_PIECE);
+                            moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.NO_PIECE);
                         }
                         if (Chess.sqiToRow(from) == secondRank) {
                             to += DIR_SHIFT[pawnMoveDir];
@@ -1563,7 +2648,7 @@ public final class Position extends AbstractMoveablePosition
                             // if single steps are
                             if (isSquareEmpty(to) && (ofSquare(to) & bbTargets) != 0L) {
                                 if (moveIndex == -1) return 1;  // =====>
-                                m_moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.NO_PIECE);
+                                moves[moveIndex++] = Move.getPawnMove(from, to, false, Chess.NO_PIECE);
                             }
                         }
                     }
@@ -1572,22 +2657,21 @@ public final class Position extends AbstractMoveablePosition
 
             /*---------- pawn capture ----------*/
             long destSquares = (getToPlay() == Chess.WHITE ? WHITE_PAWN_ATTACKS[from] : BLACK_PAWN_ATTACKS[from]) & bbTargets;
-            destSquares &= bbNotToPlay;
+            destSquares &= bbNotToPlay & bbPinLine;
 
             while (destSquares != 0L) {
                 to = getFirstSqi(destSquares);
-                int dir = DIR[from][to];
-                if (pinnedDir == NO_DIR || dir == NO_DIR || areDirectionsParallel(pinnedDir, dir)) {
+                if (to != sqiEP || isEPMoveLegal(from, to)) {
                     if (moveIndex == -1) return 1;  // =====>
                     if (Chess.sqiToRow(to) == eighthRank) {
-                        m_moves[moveIndex++] = Move.getPawnMove(from, to, true, Chess.QUEEN);
-                        m_moves[moveIndex++] = Move.getPawnMove(from, to, true, Chess.ROOK);
-                        m_moves[moveIndex++] = Move.getPawnMove(from, to, true, Chess.BISHOP);
-                        m_moves[moveIndex++] = Move.getPawnMove(from, to, true, Chess.KNIGHT);
+                        moves[moveIndex++] = Move.getPawnMove(from, to, true, Chess.QUEEN);
+                        moves[moveIndex++] = Move.getPawnMove(from, to, true, Chess.ROOK);
+                        moves[moveIndex++] = Move.getPawnMove(from, to, true, Chess.BISHOP);
+                        moves[moveIndex++] = Move.getPawnMove(from, to, true, Chess.KNIGHT);
                     } else if (to == sqiEP) {
-                        m_moves[moveIndex++] = Move.getEPMove(from, to);
+                        moves[moveIndex++] = Move.getEPMove(from, to);
                     } else {
-                        m_moves[moveIndex++] = Move.getPawnMove(from, to, true, Chess.NO_PIECE);
+                        moves[moveIndex++] = Move.getPawnMove(from, to, true, Chess.NO_PIECE);
                     }
                 }
                 destSquares &= destSquares - 1;
@@ -1600,71 +2684,398 @@ public final class Position extends AbstractMoveablePosition
     @Override
 	public short[] getAllMoves()
     {
-        return getAllMoves(~0L, ~0L);
+        return getMoves(ALL_MOVES, Move.NO_MOVE);
     }
 
-    private final short[] getAllMoves(long bbTargets, long bbPawnTargets)
+    public short[] getAllReCapturingMoves(short lastMove)
+    {
+        return getMoves(RECAPTURING_MOVES, lastMove);
+    }
+
+    public short[] getAllCapturingMoves()
     {
-        if (PROFILE) m_numGetAllMoves++;
+        return getMoves(CAPTURING_MOVES, Move.NO_MOVE);
+    }
 
-        if (bbTargets == 0L) return new short[0];  // =====>
+    public short[] getAllNonCapturingMoves()
+    {
+        return getMoves(NON_CAPTURING_MOVES, Move.NO_MOVE);
+    }
 
-        int moveIndex = 0;  // TODO: make class?
+    private final short[] getMoves(int kind, short lastMove)
+    {
+        if (m_moves == null) m_moves = new short[MAX_NUM_OF_MOVES];
+        int num = generateMoves(m_moves, 0, kind, lastMove, true);
+        short[] onlyTheMoves = new short[num];
+        System.arraycopy(m_moves, 0, onlyTheMoves, 0, num);
+        return onlyTheMoves;
+    }
 
-        long bbToPlay = (getToPlay() == Chess.WHITE ? m_bbWhites : m_bbBlacks);
-        if (isCheck()) {
-            moveIndex = getAllKingMoves(moveIndex, bbTargets, false);
-            long attackers = getDirectAttackers((getToPlay() == Chess.WHITE ? m_whiteKing : m_blackKing), getNotToPlay(), false);
-            if (isExactlyOneBitSet(attackers)) {
-                attackers = getDirectAttackers((getToPlay() == Chess.WHITE ? m_whiteKing : m_blackKing), getNotToPlay(), true);
-                bbTargets &= attackers; bbPawnTargets &= attackers;
-                moveIndex = getAllKnightMoves(moveIndex, bbTargets);
-                moveIndex = getAllSlidingMoves(moveIndex, bbTargets, m_bbBishops & (~m_bbRooks) & bbToPlay, Chess.BISHOP);
-                moveIndex = getAllSlidingMoves(moveIndex, bbTargets, m_bbRooks & (~m_bbBishops) & bbToPlay, Chess.ROOK);
-                moveIndex = getAllSlidingMoves(moveIndex, bbTargets, m_bbRooks & m_bbBishops & bbToPlay, Chess.QUEEN);
-                moveIndex = getAllPawnMoves(moveIndex, bbPawnTargets);
-            } else { // double check
+    /**
+     * Generates the legal moves of the given kind into a buffer supplied by the caller.
+     * No objects are allocated, so the method can be used in search and replay loops.
+     *
+     *@param out the buffer to write the moves to, it must have room for at least
+     *           {@link #MAX_NUM_OF_MOVES} moves starting at <code>offset</code>
+     *@param offset the index of the first move to write
+     *@param kind one of {@link #ALL_MOVES}, {@link #CAPTURING_MOVES} or {@link #NON_CAPTURING_MOVES}
+     *@return the number of moves written
+     */
+    public int generateMoves(short[] out, int offset, int kind)
+    {
+        if (kind == RECAPTURING_MOVES) throw new IllegalArgumentException("Recapturing moves need the last move");
+        return generateMoves(out, offset, kind, Move.NO_MOVE, true);
+    }
+
+    /**
+     * Generates the legal moves recapturing on the destination square of <code>lastMove</code>
+     * into a buffer supplied by the caller.
+     *
+     *@param out the buffer to write the moves to
+     *@param offset the index of the first move to write
+     *@param lastMove the move whose destination square is the target of the recaptures
+     *@return the number of moves written
+     */
+    public int generateReCapturingMoves(short[] out, int offset, short lastMove)
+    {
+        return generateMoves(out, offset, RECAPTURING_MOVES, lastMove, true);
+    }
+
+    /**
+     * Generates the legal moves of the given kind into a reusable move list. The list
+     * is cleared first and grows if required.
+     *
+     *@param moves the list to fill
+     *@param kind one of {@link #ALL_MOVES}, {@link #CAPTURING_MOVES} or {@link #NON_CAPTURING_MOVES}
+     *@return the number of moves generated
+     */
+    public int generateMoves(MoveList moves, int kind)
+    {
+        moves.clear();
+        moves.ensureCapacity(MAX_NUM_OF_MOVES);
+        int num = generateMoves(moves.getMoves(), 0, kind);
+        moves.setSize(num);
+        return num;
+    }
+
+    /**
+     * Generates the pseudo-legal moves of the given kind into a buffer supplied by the caller.
+     * Unlike {@link #generateMoves(short[], int, int)}, pinned pieces are not detected, so a
+     * move might leave the own king in check. Since this is rare, it is cheaper to test only
+     * the moves which are actually tried with {@link #isPseudoLegalMoveLegal(short)}. King
+     * moves, castles and en passant captures are always legal.
+     *
+     *@param out the buffer to write the moves to, it must have room for at least
+     *           {@link #MAX_NUM_OF_MOVES} moves starting at <code>offset</code>
+     *@param offset the index of the first move to write
+     *@param kind one of {@link #ALL_MOVES}, {@link #CAPTURING_MOVES} or {@link #NON_CAPTURING_MOVES}
+     *@return the number of moves written
+     *@see MovePicker
+     */
+    public int generatePseudoLegalMoves(short[] out, int offset, int kind)
+    {
+        if (kind == RECAPTURING_MOVES) throw new IllegalArgumentException("Recapturing moves need the last move");
+        return generateMoves(out, offset, kind, Move.NO_MOVE, false);
+    }
+
+    /**
+     * Returns whether a move generated by {@link #generatePseudoLegalMoves(short[], int, int)}
+     * in the current position does not leave the own king in check.
+     *
+     *@param move a pseudo-legal move of the current position
+     *@return whether the move is legal
+     */
+    public boolean isPseudoLegalMoveLegal(short move)
+    {
+        if (Move.isCastle(move) || Move.isEPMove(move)) return true;  // =====>
+
+        int from = Move.getFromSqi(move);
+        int kingSqi = (getToPlay() == Chess.WHITE ? m_whiteKing : m_blackKing);
+        if (from == kingSqi) return true;  // =====>
+        if (LINE[kingSqi][from] == 0L) return true;  // =====>  cannot be pinned
+
+        int to = Move.getToSqi(move);
+        if ((LINE[kingSqi][from] & ofSquare(to)) != 0L) return true;  // =====>  moves along the line
+
+        // look for sliders attacking the king after the move, a captured slider does not count
+        long bbOccupied = ((m_bbWhites | m_bbBlacks) & ~ofSquare(from)) | ofSquare(to);
+        long bbOpponent = (getToPlay() == Chess.WHITE ? m_bbBlacks : m_bbWhites) & ~ofSquare(to);
+        return (bishopAttacks(kingSqi, bbOccupied) & m_bbBishops & bbOpponent) == 0L &&
+               (rookAttacks(kingSqi, bbOccupied) & m_bbRooks & bbOpponent) == 0L;
+    }
+
+    /**
+     * Returns whether the move is one of the legal moves of the current position,
+     * without generating any moves. The move must be encoded exactly as the
+     * generated move, e.g. with the capturing flag set iff it captures.
+     *
+     *@param move the move to check, it may stem from another position
+     *@return whether the move is legal
+     */
+    public boolean isLegalMove(short move)
+    {
+        if (!Move.isValid(move) || Move.isNullMove(move) || move == Move.NO_MOVE) return false;  // =====>
+
+        boolean isWhiteMove = (getToPlay() == Chess.WHITE);
+        int kingSqi = (isWhiteMove ? m_whiteKing : m_blackKing);
+        if (kingSqi == Chess.NO_SQUARE) return false;  // =====>
+
+        /*---------- castles ----------*/
+        if (Move.isCastle(move)) {
+            if (isCheck()) return false;  // =====>
+            long bbAllPieces = m_bbWhites | m_bbBlacks;
+            int castles = getCastles();
+            if (isWhiteMove) {
+                if (move == Move.WHITE_SHORT_CASTLE) {
+                    return (castles & WHITE_SHORT_CASTLE) != 0 && (bbAllPieces & WHITE_SHORT_CASTLE_EMPTY_MASK) == 0L && (getAttackedSquares(Chess.BLACK) & WHITE_SHORT_CASTLE_PASS_MASK) == 0L;  // =====>
+                } else if (move == Move.WHITE_LONG_CASTLE) {
+                    return (castles & WHITE_LONG_CASTLE) != 0 && (bbAllPieces & WHITE_LONG_CASTLE_EMPTY_MASK) == 0L && (getAttackedSquares(Chess.BLACK) & WHITE_LONG_CASTLE_PASS_MASK) == 0L;  // =====>
+                }
+            } else {
+                if (move == Move.BLACK_SHORT_CASTLE) {
+                    return (castles & BLACK_SHORT_CASTLE) != 0 && (bbAllPieces & BLACK_SHORT_CASTLE_EMPTY_MASK) == 0L && (getAttackedSquares(Chess.WHITE) & BLACK_SHORT_CASTLE_PASS_MASK) == 0L;  // =====>
+                } else if (move == Move.BLACK_LONG_CASTLE) {
+                    return (castles & BLACK_LONG_CASTLE) != 0 && (bbAllPieces & BLACK_LONG_CASTLE_EMPTY_MASK) == 0L && (getAttackedSquares(Chess.WHITE) & BLACK_LONG_CASTLE_PASS_MASK) == 0L;  // =====>
+                }
             }
-        } else {
-            moveIndex = getAllKnightMoves(moveIndex, bbTargets);
-            moveIndex = getAllSlidingMoves(moveIndex, bbTargets, m_bbBishops & (~m_bbRooks) & bbToPlay, Chess.BISHOP);
-            moveIndex = getAllSlidingMoves(moveIndex, bbTargets, m_bbRooks & (~m_bbBishops) & bbToPlay, Chess.ROOK);
-            moveIndex = getAllSlidingMoves(moveIndex, bbTargets, m_bbRooks & m_bbBishops & bbToPlay, Chess.QUEEN);
-            moveIndex = getAllKingMoves(moveIndex, bbTargets, true);
-            moveIndex = getAllPawnMoves(moveIndex, bbPawnTargets);
+            return false;  // =====>
         }
 
-        short[] onlyTheMoves = new short[moveIndex];
-        System.arraycopy(m_moves, 0, onlyTheMoves, 0, moveIndex);
+        int from = Move.getFromSqi(move);
+        int to = Move.getToSqi(move);
+        long bbFrom = ofSquare(from);
+        long bbTo = ofSquare(to);
+        long bbOwn = (isWhiteMove ? m_bbWhites : m_bbBlacks);
+        long bbEnemies = (isWhiteMove ? m_bbBlacks : m_bbWhites);
+        long bbOccupied = m_bbWhites | m_bbBlacks;
+        if ((bbOwn & bbFrom) == 0L || (bbOwn & bbTo) != 0L) return false;  // =====>
+        if (to == m_whiteKing || to == m_blackKing) return false;  // =====>
+
+        /*---------- the piece must be able to reach to, the encoding must match ----------*/
+        long bbCaptured = bbEnemies & bbTo;
+        short expected;
+        int piece = getPiece(from);
+        switch (piece) {
+            case Chess.PAWN:
+                int lastRow = (isWhiteMove ? 7 : 0);
+                int promoPiece = (Chess.sqiToRow(to) == lastRow ? Move.getPromotionPiece(move) : Chess.NO_PIECE);
+                if (Chess.sqiToRow(to) == lastRow && (promoPiece < Chess.KNIGHT || promoPiece > Chess.QUEEN)) return false;  // =====>
+                long bbAttacks = (isWhiteMove ? WHITE_PAWN_ATTACKS[from] : BLACK_PAWN_ATTACKS[from]);
+                if (to == getSqiEP() && (bbAttacks & bbTo) != 0L) {
+                    bbCaptured = ofSquare(to + (isWhiteMove ? -Chess.NUM_OF_COLS : Chess.NUM_OF_COLS));
+                    expected = Move.getEPMove(from, to);
+                } else if (bbCaptured != 0L) {
+                    if ((bbAttacks & bbTo) == 0L) return false;  // =====>
+                    expected = Move.getPawnMove(from, to, true, promoPiece);
+                } else {
+                    int dir = (isWhiteMove ? Chess.NUM_OF_COLS : -Chess.NUM_OF_COLS);
+                    boolean single = (to == from + dir);
+                    boolean twice = (to == from + 2 * dir) && Chess.sqiToRow(from) == (isWhiteMove ? 1 : 6) && (bbOccupied & ofSquare(from + dir)) == 0L;
+                    if ((bbOccupied & bbTo) != 0L || !(single || twice)) return false;  // =====>
+                    expected = Move.getPawnMove(from, to, false, promoPiece);
+                }
+                break;
+            case Chess.KNIGHT:
+                if ((KNIGHT_ATTACKS[from] & bbTo) == 0L) return false;  // =====>
+                expected = Move.getRegularMove(from, to, bbCaptured != 0L);
+                break;
+            case Chess.BISHOP:
+                if ((bishopAttacks(from, bbOccupied) & bbTo) == 0L) return false;  // =====>
+                expected = Move.getRegularMove(from, to, bbCaptured != 0L);
+                break;
+            case Chess.ROOK:
+                if ((rookAttacks(from, bbOccupied) & bbTo) == 0L) return false;  // =====>
+                expected = Move.getRegularMove(from, to, bbCaptured != 0L);
+                break;
+            case Chess.QUEEN:
+                if ((queenAttacks(from, bbOccupied) & bbTo) == 0L) return false;  // =====>
+                expected = Move.getRegularMove(from, to, bbCaptured != 0L);
+                break;
+            case Chess.KING:
+                if ((KING_ATTACKS[from] & bbTo) == 0L) return false;  // =====>
+                expected = Move.getRegularMove(from, to, bbCaptured != 0L);
+                kingSqi = to;
+                break;
+            default:
+                return false;  // =====>
+        }
+        if (move != expected) return false;  // =====>
 
-        return onlyTheMoves;
+        /*---------- the own king must not be attacked afterwards ----------*/
+        bbOccupied = (bbOccupied & ~bbFrom & ~bbCaptured) | bbTo;
+        bbEnemies &= ~bbCaptured;
+        long bbPawnAttackers = (isWhiteMove ? WHITE_PAWN_ATTACKS[kingSqi] : BLACK_PAWN_ATTACKS[kingSqi]);
+        int enemyKing = (isWhiteMove ? m_blackKing : m_whiteKing);
+        return (KNIGHT_ATTACKS[kingSqi] & m_bbKnights & bbEnemies) == 0L &&
+               (bbPawnAttackers & m_bbPawns & bbEnemies) == 0L &&
+               (bishopAttacks(kingSqi, bbOccupied) & m_bbBishops & bbEnemies) == 0L &&
+               (rookAttacks(kingSqi, bbOccupied) & m_bbRooks & bbEnemies) == 0L &&
+               (enemyKing == Chess.NO_SQUARE || (KING_ATTACKS[kingSqi] & ofSquare(enemyKing)) == 0L);
     }
 
-    public short[] getAllReCapturingMoves(short lastMove)
+    /**
+     * Returns the hash code the position would have after the move, without playing
+     * it. See {@link #getHashCode()}.
+     *
+     *@param move the move, it must be legal in the current position
+     *@return the hash code after the move
+     */
+    public long getHashCodeAfter(short move)
     {
-        if (Move.isValid(lastMove)) {
-            long bbTargets = ofSquare(Move.getToSqi(lastMove));
-            long bbPawnTargets = (getSqiEP() == Chess.NO_SQUARE ? bbTargets : bbTargets | ofSquare(getSqiEP()));
-            return getAllMoves(bbTargets, bbPawnTargets);
-        } else {
-            return new short[0];
-        }
+        return getKeyAfter(move, m_hashCode, s_hashMod, s_hashCastleMod, s_hashEPMod, HASH_TOPLAY_MULT);
     }
 
-    public short[] getAllCapturingMoves()
+    /**
+     * Returns the Zobrist key the position would have after the move, without playing
+     * it. See {@link #getZobristKey()}.
+     *
+     *@param move the move, it must be legal in the current position
+     *@return the Zobrist key after the move
+     */
+    public long getZobristKeyAfter(short move)
     {
-        long bbTargets = getToPlay() == Chess.WHITE ? m_bbBlacks : m_bbWhites;
-        // can include sqiEP safely since no pawn can move on sqi if it is set
-        long bbPawnTargets = (getSqiEP() == Chess.NO_SQUARE ? bbTargets : bbTargets | ofSquare(getSqiEP()));
-        return getAllMoves(bbTargets, bbPawnTargets);
+        return getKeyAfter(move, m_zobristKey, Zobrist.s_stoneMod, Zobrist.s_castleMod, Zobrist.s_epMod, Zobrist.s_whiteToPlayMod);
     }
 
-    public short[] getAllNonCapturingMoves()
+    /**
+     * Applies the changes of a move to a key like setMove does, for the given
+     * random numbers.
+     */
+    private final long getKeyAfter(short move, long key, long[][] stoneMod, long[] castleMod, long[] epMod, long toPlayMod)
+    {
+        boolean isWhiteMove = (getToPlay() == Chess.WHITE);
+        int castles = getCastles();
+        int newCastles = castles;
+        int sqiEP = Chess.NO_SQUARE;
+
+        /*---------- pieces and castles ----------*/
+        if (Move.isNullMove(move)) {
+            // ignore
+        } else if (Move.isCastle(move)) {
+            int kingFrom, rookFrom, kingTo, rookTo;
+            if (isWhiteMove) {
+                kingFrom = m_whiteKing;
+                if (Move.isShortCastle(move)) {
+                    rookFrom = getShortCastleRookPosition(kingFrom); kingTo = Chess.G1; rookTo = Chess.F1;
+                } else {
+                    rookFrom = getLongCastleRookPosition(kingFrom);  kingTo = Chess.C1; rookTo = Chess.D1;
+                }
+                newCastles &= ~WHITE_CASTLE;
+            } else {
+                kingFrom = m_blackKing;
+                if (Move.isShortCastle(move)) {
+                    rookFrom = getShortCastleRookPosition(kingFrom); kingTo = Chess.G8; rookTo = Chess.F8;
+                } else {
+                    rookFrom = getLongCastleRookPosition(kingFrom);  kingTo = Chess.C8; rookTo = Chess.D8;
+                }
+                newCastles &= ~BLACK_CASTLE;
+            }
+            int king = (isWhiteMove ? Chess.WHITE_KING : Chess.BLACK_KING) - Chess.MIN_STONE;
+            int rook = (isWhiteMove ? Chess.WHITE_ROOK : Chess.BLACK_ROOK) - Chess.MIN_STONE;
+            key ^= stoneMod[kingFrom][king] ^ stoneMod[kingTo][king] ^ stoneMod[rookFrom][rook] ^ stoneMod[rookTo][rook];
+        } else {
+            int sqiFrom = Move.getFromSqi(move);
+            int sqiTo = Move.getToSqi(move);
+            int stone = m_stones[sqiFrom];
+
+            if (Move.isEPMove(move)) {
+                int pawnSqi = sqiTo + (isWhiteMove ? -Chess.NUM_OF_COLS : Chess.NUM_OF_COLS);
+                key ^= stoneMod[pawnSqi][(isWhiteMove ? Chess.BLACK_PAWN : Chess.WHITE_PAWN) - Chess.MIN_STONE];
+            } else if (Move.isCapturing(move)) {
+                key ^= stoneMod[sqiTo][m_stones[sqiTo] - Chess.MIN_STONE];
+            }
+
+            int newStone = stone;
+            if (Move.isPromotion(move)) {
+                newStone = Chess.pieceToStone(Move.getPromotionPiece(move), getToPlay());
+            } else if (Chess.stoneToPiece(stone) == Chess.PAWN) {
+                if (sqiTo - sqiFrom == 2 * Chess.NUM_OF_COLS) sqiEP = sqiTo - Chess.NUM_OF_COLS;
+                else if (sqiFrom - sqiTo == 2 * Chess.NUM_OF_COLS) sqiEP = sqiTo + Chess.NUM_OF_COLS;
+            }
+            key ^= stoneMod[sqiFrom][stone - Chess.MIN_STONE] ^ stoneMod[sqiTo][newStone - Chess.MIN_STONE];
+
+            if (castles != NO_CASTLES) newCastles = getCastlesAfter(castles, sqiFrom, sqiTo);
+        }
+        key ^= castleMod[castles] ^ castleMod[newCastles];
+
+        /*---------- ep square ----------*/
+        int hashColEP = getHashColEP();
+        if (hashColEP != Chess.NO_SQUARE) key ^= epMod[hashColEP];
+        if (sqiEP != Chess.NO_SQUARE) {
+            // only if an opponent pawn could capture, as in setSqiEP
+            long bbCapturers = (isWhiteMove ? WHITE_PAWN_ATTACKS[sqiEP] & m_bbPawns & m_bbBlacks
+                                            : BLACK_PAWN_ATTACKS[sqiEP] & m_bbPawns & m_bbWhites);
+            if (bbCapturers != 0L) key ^= epMod[Chess.sqiToCol(sqiEP)];
+        }
+
+        /*---------- to play ----------*/
+        return key ^ toPlayMod;
+    }
+
+    private final int generateMoves(short[] out, int offset, int kind, short lastMove, boolean checkPins)
+    {
+        long bbTargets, bbPawnTargets;
+        switch (kind) {
+            case ALL_MOVES:
+                bbTargets = ~0L;
+                bbPawnTargets = ~0L;
+                break;
+            case CAPTURING_MOVES:
+                bbTargets = getToPlay() == Chess.WHITE ? m_bbBlacks : m_bbWhites;
+                // can include sqiEP safely since no pawn can move on sqi if it is set
+                bbPawnTargets = (getSqiEP() == Chess.NO_SQUARE ? bbTargets : bbTargets | ofSquare(getSqiEP()));
+                break;
+            case NON_CAPTURING_MOVES:
+                bbTargets = getToPlay() == Chess.WHITE ? ~m_bbBlacks : ~m_bbWhites;
+                // can exclude sqiEP safely since no pawn can move on sqi if it is set
+                bbPawnTargets = (getSqiEP() == Chess.NO_SQUARE ? bbTargets : bbTargets & (~ofSquare(getSqiEP())));
+                break;
+            case RECAPTURING_MOVES:
+                if (!Move.isValid(lastMove)) return 0;  // =====>
+                bbTargets = ofSquare(Move.getToSqi(lastMove));
+                bbPawnTargets = (getSqiEP() == Chess.NO_SQUARE ? bbTargets : bbTargets | ofSquare(getSqiEP()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown kind of moves: " + kind);
+        }
+        return generateMoves(out, offset, bbTargets, bbPawnTargets, checkPins) - offset;
+    }
+
+    private final int generateMoves(short[] moves, int moveIndex, long bbTargets, long bbPawnTargets, boolean checkPins)
     {
-        long bbTargets = getToPlay() == Chess.WHITE ? ~m_bbBlacks : ~m_bbWhites;
-        // can exclude sqiEP safely since no pawn can move on sqi if it is set
-        long bbPawnTargets = (getSqiEP() == Chess.NO_SQUARE ? bbTargets : bbTargets & (~ofSquare(getSqiEP())));
-        return getAllMoves(bbTargets, bbPawnTargets);
+        if (PositionMetrics.s_enabled) PositionMetrics.increment(PositionMetrics.GET_ALL_MOVES);
+
+        if (bbTargets == 0L) return moveIndex;  // =====>
+
+        long start = (PositionMetrics.s_enabled ? PositionMetrics.startTimer() : 0L);
+        if (checkPins) {
+            initPinsAndCheckers();
+        } else {
+            initCheckers();
+        }
+        long bbToPlay = (getToPlay() == Chess.WHITE ? m_bbWhites : m_bbBlacks);
+        if (m_bbCheckers != 0L) {
+            moveIndex = getAllKingMoves(moves, moveIndex, bbTargets, false);
+            if (isExactlyOneBitSet(m_bbCheckers)) {
+                long evasionTargets = getCheckEvasionTargets();
+                bbTargets &= evasionTargets; bbPawnTargets &= evasionTargets;
+                moveIndex = getAllKnightMoves(moves, moveIndex, bbTargets);
+                moveIndex = getAllSlidingMoves(moves, moveIndex, bbTargets, m_bbBishops & (~m_bbRooks) & bbToPlay, Chess.BISHOP);
+                moveIndex = getAllSlidingMoves(moves, moveIndex, bbTargets, m_bbRooks & (~m_bbBishops) & bbToPlay, Chess.ROOK);
+                moveIndex = getAllSlidingMoves(moves, moveIndex, bbTargets, m_bbRooks & m_bbBishops & bbToPlay, Chess.QUEEN);
+                moveIndex = getAllPawnMoves(moves, moveIndex, bbPawnTargets);
+            } else { // double check
+            }
+        } else {
+            moveIndex = getAllKnightMoves(moves, moveIndex, bbTargets);
+            moveIndex = getAllSlidingMoves(moves, moveIndex, bbTargets, m_bbBishops & (~m_bbRooks) & bbToPlay, Chess.BISHOP);
+            moveIndex = getAllSlidingMoves(moves, moveIndex, bbTargets, m_bbRooks & (~m_bbBishops) & bbToPlay, Chess.ROOK);
+            moveIndex = getAllSlidingMoves(moves, moveIndex, bbTargets, m_bbRooks & m_bbBishops & bbToPlay, Chess.QUEEN);
+            moveIndex = getAllKingMoves(moves, moveIndex, bbTargets, true);
+            moveIndex = getAllPawnMoves(moves, moveIndex, bbPawnTargets);
+        }
+        if (start != 0L) PositionMetrics.stopTimer(PositionMetrics.TIMER_GENERATE_MOVES, start);
+        return moveIndex;
     }
 
     public boolean canMove()
@@ -1675,33 +3086,35 @@ public final class Position extends AbstractMoveablePosition
         } else if (cacheInfo == FLAG_NO) {
             return false;
         } else {
+            long start = (PositionMetrics.s_enabled ? PositionMetrics.startTimer() : 0L);
             boolean canMove = false;
+            initPinsAndCheckers();
             long bbToPlay = (getToPlay() == Chess.WHITE ? m_bbWhites : m_bbBlacks);
-            if (isCheck()) {
-                if (getAllKingMoves(-1, ~0L, false) > 0) {
+            if (m_bbCheckers != 0L) {
+                if (getAllKingMoves(null, -1, ~0L, false) > 0) {
                     canMove = true;
                 } else {
-                    long attackers = getDirectAttackers((getToPlay() == Chess.WHITE ? m_whiteKing : m_blackKing), getNotToPlay(), false);
-                    if (isExactlyOneBitSet(attackers)) {
-                        attackers = getDirectAttackers((getToPlay() == Chess.WHITE ? m_whiteKing : m_blackKing), getNotToPlay(), true);
-                        canMove = (getAllKnightMoves(-1, attackers) > 0) ||
-                                  (getAllPawnMoves(-1, attackers) > 0) ||
-                                  (getAllSlidingMoves(-1, attackers, m_bbBishops & (~m_bbRooks) & bbToPlay, Chess.BISHOP) > 0) ||
-                                  (getAllSlidingMoves(-1, attackers, m_bbRooks & (~m_bbBishops) & bbToPlay, Chess.ROOK) > 0) ||
-                                  (getAllSlidingMoves(-1, attackers, m_bbRooks & m_bbBishops & bbToPlay, Chess.QUEEN) > 0);
+                    if (isExactlyOneBitSet(m_bbCheckers)) {
+                        long attackers = getCheckEvasionTargets();
+                        canMove = (getAllKnightMoves(null, -1, attackers) > 0) ||
+                                  (getAllPawnMoves(null, -1, attackers) > 0) ||
+                                  (getAllSlidingMoves(null, -1, attackers, m_bbBishops & (~m_bbRooks) & bbToPlay, Chess.BISHOP) > 0) ||
+                                  (getAllSlidingMoves(null, -1, attackers, m_bbRooks & (~m_bbBishops) & bbToPlay, Chess.ROOK) > 0) ||
+                                  (getAllSlidingMoves(null, -1, attackers, m_bbRooks & m_bbBishops & bbToPlay, Chess.QUEEN) > 0);
                     }
                 }
             } else {
                 long bbTargets = ~0L;
-                canMove = (getAllKnightMoves(-1, bbTargets) > 0) ||
-                          (getAllPawnMoves(-1, bbTargets) > 0) ||
-                          (getAllSlidingMoves(-1, bbTargets, m_bbBishops & (~m_bbRooks) & bbToPlay, Chess.BISHOP) > 0) ||
-                          (getAllSlidingMoves(-1, bbTargets, m_bbRooks & (~m_bbBishops) & bbToPlay, Chess.ROOK) > 0) ||
-                          (getAllSlidingMoves(-1, bbTargets, m_bbRooks & m_bbBishops & bbToPlay, Chess.QUEEN) > 0) ||
-                          (getAllKingMoves(-1, bbTargets, false) > 0);  // don' test castling since it cannot be the only move
+                canMove = (getAllKnightMoves(null, -1, bbTargets) > 0) ||
+                          (getAllPawnMoves(null, -1, bbTargets) > 0) ||
+                          (getAllSlidingMoves(null, -1, bbTargets, m_bbBishops & (~m_bbRooks) & bbToPlay, Chess.BISHOP) > 0) ||
+                          (getAllSlidingMoves(null, -1, bbTargets, m_bbRooks & (~m_bbBishops) & bbToPlay, Chess.ROOK) > 0) ||
+                          (getAllSlidingMoves(null, -1, bbTargets, m_bbRooks & m_bbBishops & bbToPlay, Chess.QUEEN) > 0) ||
+                          (getAllKingMoves(null, -1, bbTargets, false) > 0);  // don' test castling since it cannot be the only move
             }
             m_flags &= ~(CAN_MOVE_MASK << CAN_MOVE_SHIFT);
             m_flags |= (canMove ? FLAG_YES : FLAG_NO) << CAN_MOVE_SHIFT;
+            if (start != 0L) PositionMetrics.stopTimer(PositionMetrics.TIMER_CAN_MOVE, start);
             return canMove;
         }
     }
@@ -1735,14 +3148,143 @@ public final class Position extends AbstractMoveablePosition
         return sb.toString();
     }
 
+    /*================================================================================*/
+    // evaluation
+    //
+    // material, phase and piece-square scores are sums over the stones on the board,
+    // they are updated whenever a stone is put on or removed from a square
+
+    /**
+     * The phase of a position with all pieces on the board, see {@link #getPhase()}.
+     */
+    public static final int MAX_PHASE = 24;
+
+    private static final int[] MATERIAL = new int[Chess.MAX_STONE - Chess.MIN_STONE + 1];  // [stone - MIN_STONE], white positive
+    private static final int[] PHASE    = new int[Chess.MAX_STONE - Chess.MIN_STONE + 1];  // [stone - MIN_STONE]
+    private static final int[][] NO_PIECE_SQUARE_TABLE = new int[Chess.MAX_STONE - Chess.MIN_STONE + 1][Chess.NUM_OF_SQUARES];
+
+    static {
+        for (int stone = Chess.MIN_STONE; stone <= Chess.MAX_STONE; stone++) {
+            int piece = Chess.stoneToPiece(stone);
+            int value = (piece == Chess.KING ? 0 : PIECE_VALUE[piece]);
+            MATERIAL[stone - Chess.MIN_STONE] = (stone < 0 ? value : -value);
+            switch (piece) {
+                case Chess.KNIGHT: PHASE[stone - Chess.MIN_STONE] = 1; break;
+                case Chess.BISHOP: PHASE[stone - Chess.MIN_STONE] = 1; break;
+                case Chess.ROOK:   PHASE[stone - Chess.MIN_STONE] = 2; break;
+                case Chess.QUEEN:  PHASE[stone - Chess.MIN_STONE] = 4; break;
+                default:           PHASE[stone - Chess.MIN_STONE] = 0; break;
+            }
+        }
+    }
+
+    private int m_material;     // white minus black
+    private int m_phase;
+    private int m_pstMiddleGame, m_pstEndGame;  // white minus black
+    private int[][] m_pstMiddleGameTable = NO_PIECE_SQUARE_TABLE;  // [stone - MIN_STONE][sqi], white positive
+    private int[][] m_pstEndGameTable = NO_PIECE_SQUARE_TABLE;
+
+    private final void addScore(int sqi, int stone)
+    {
+        int index = stone - Chess.MIN_STONE;
+        m_material      += MATERIAL[index];
+        m_phase         += PHASE[index];
+        m_pstMiddleGame += m_pstMiddleGameTable[index][sqi];
+        m_pstEndGame    += m_pstEndGameTable[index][sqi];
+    }
+
+    private final void removeScore(int sqi, int stone)
+    {
+        int index = stone - Chess.MIN_STONE;
+        m_material      -= MATERIAL[index];
+        m_phase         -= PHASE[index];
+        m_pstMiddleGame -= m_pstMiddleGameTable[index][sqi];
+        m_pstEndGame    -= m_pstEndGameTable[index][sqi];
+    }
+
+    private final void initScores()
+    {
+        m_material = 0;
+        m_phase = 0;
+        m_pstMiddleGame = 0;
+        m_pstEndGame = 0;
+        for (int sqi = 0; sqi < Chess.NUM_OF_SQUARES; sqi++) {
+            addScore(sqi, m_stones[sqi]);
+        }
+    }
+
+    /**
+     * Sets the piece-square tables used by {@link #getPieceSquareScore()}. The tables
+     * are indexed by piece and square and hold the scores of white pieces; black
+     * pieces use the vertically mirrored squares. The scores of the middle game and
+     * of the end game are interpolated by {@link #getPhase()}.
+     *
+     *@param middleGame the scores in the middle game, <code>[piece][sqi]</code>, or
+     *                  <code>null</code> for no scores
+     *@param endGame the scores in the end game, <code>[piece][sqi]</code>, or
+     *               <code>null</code> to use the middle game scores
+     */
+    public void setPieceSquareTables(int[][] middleGame, int[][] endGame)
+    {
+        m_pstMiddleGameTable = createPieceSquareTable(middleGame);
+        m_pstEndGameTable = (endGame == null ? m_pstMiddleGameTable : createPieceSquareTable(endGame));
+        initScores();
+    }
+
+    private static int[][] createPieceSquareTable(int[][] scores)
+    {
+        if (scores == null) return NO_PIECE_SQUARE_TABLE;  // =====>
+
+        int[][] table = new int[Chess.MAX_STONE - Chess.MIN_STONE + 1][Chess.NUM_OF_SQUARES];
+        for (int piece = Chess.KNIGHT; piece <= Chess.KING; piece++) {
+            if (piece >= scores.length || scores[piece] == null) continue;
+            if (scores[piece].length != Chess.NUM_OF_SQUARES) throw new IllegalArgumentException("Piece-square table of " + Chess.pieceToChar(piece) + " has " + scores[piece].length + " squares");
+            for (int sqi = 0; sqi < Chess.NUM_OF_SQUARES; sqi++) {
+                table[Chess.pieceToStone(piece, Chess.WHITE) - Chess.MIN_STONE][sqi] = scores[piece][sqi];
+                table[Chess.pieceToStone(piece, Chess.BLACK) - Chess.MIN_STONE][sqi ^ 56] = -scores[piece][sqi];
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Returns the material balance from the view of the player to move, with pawns
+     * counting 100, knights 300, bishops 325, rooks 500 and queens 900. The value is
+     * maintained incrementally.
+     */
     public int getMaterial()
     {
-        int value = 0;
-        value += 100 * (numOfBitsSet(m_bbPawns & m_bbWhites) - numOfBitsSet(m_bbPawns & m_bbBlacks));
-        value += 300 * (numOfBitsSet(m_bbKnights & m_bbWhites) - numOfBitsSet(m_bbKnights & m_bbBlacks));
-        value += 325 * (numOfBitsSet(m_bbBishops & (~m_bbRooks) & m_bbWhites) - numOfBitsSet(m_bbBishops & (~m_bbRooks) & m_bbBlacks));
-        value += 500 * (numOfBitsSet(m_bbRooks & (~m_bbBishops) & m_bbWhites) - numOfBitsSet(m_bbRooks & (~m_bbBishops) & m_bbBlacks));
-        value += 900 * (numOfBitsSet(m_bbRooks & m_bbBishops & m_bbWhites) - numOfBitsSet(m_bbRooks & m_bbBishops & m_bbBlacks));
-        return (getToPlay() == Chess.WHITE ? value : -value);
+        return (getToPlay() == Chess.WHITE ? m_material : -m_material);
+    }
+
+    /**
+     * Returns the game phase, from {@link #MAX_PHASE} with all pieces on the board to 0
+     * with only kings and pawns left. Knights and bishops count 1, rooks 2 and
+     * queens 4.
+     */
+    public int getPhase()
+    {
+        return Math.min(m_phase, MAX_PHASE);
+    }
+
+    /**
+     * Returns the score of the piece-square tables from the view of the player to
+     * move, interpolated between middle and end game by the phase. Returns 0 unless
+     * tables have been set with {@link #setPieceSquareTables(int[][], int[][])}.
+     */
+    public int getPieceSquareScore()
+    {
+        int phase = getPhase();
+        int score = (m_pstMiddleGame * phase + m_pstEndGame * (MAX_PHASE - phase)) / MAX_PHASE;
+        return (getToPlay() == Chess.WHITE ? score : -score);
+    }
+
+    /**
+     * Returns a static evaluation from the view of the player to move: the material
+     * plus the piece-square score.
+     */
+    public int getEvaluation()
+    {
+        return getMaterial() + getPieceSquareScore();
     }
 }
\ No newline at end of file
@@ -0,0 +1,267 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.position;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Classifies large numbers of positions as legal, check, mate or stalemate and
+ * optionally counts their legal moves.
+ *
+ * <p>The positions are passed packed in a <code>long[]</code>, as written by
+ * {@link Position#snapshot(long[], int)} or {@link PositionSnapshot#write(long[], int)},
+ * so no objects are created per position. The array is split into ranges which
+ * are classified by the workers of a fork/join pool, every worker thread reuses one
+ * {@link Position}. Mate and stalemate are detected by {@link Position#canMove()},
+ * which stops at the first legal move, unless the moves are counted anyway.
+ *
+ * <p>The result of each position is an <code>int</code> combining the flags
+ * {@link #ILLEGAL}, {@link #CHECK}, {@link #MATE} and {@link #STALEMATE} with the
+ * number of legal moves, see {@link #getNumOfMoves(int)}.
+ *
+ * @author Andreas Rudolph
+ */
+public class PositionClassifier
+{
+    /**
+     * The position is illegal, see {@link Position#isLegal()}. No other
+     * information is determined for illegal positions.
+     */
+    public static final int ILLEGAL   = 1;
+    /**
+     * The player to move is in check.
+     */
+    public static final int CHECK     = 2;
+    /**
+     * The player to move is mate, {@link #CHECK} is set as well.
+     */
+    public static final int MATE      = 4;
+    /**
+     * The player to move is stalemate.
+     */
+    public static final int STALEMATE = 8;
+
+    private static final int NUM_OF_MOVES_SHIFT = 8;
+
+    // the number of positions below which a range is not split any further
+    private static final int MIN_POSITIONS_PER_TASK = 512;
+
+    private final int m_parallelism;
+    private ForkJoinPool m_pool;
+
+    private final ThreadLocal<Worker> m_worker = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {return new Worker();}
+    };
+
+    /*================================================================================*/
+
+    /**
+     * Creates a classifier using all available processors.
+     */
+    public PositionClassifier()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a classifier.
+     *
+     *@param parallelism the number of worker threads, 1 to run in the calling thread
+     */
+    public PositionClassifier(int parallelism)
+    {
+        if (parallelism < 1) throw new IllegalArgumentException("Illegal parallelism: " + parallelism);
+        m_parallelism = parallelism;
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Returns whether the result has the given flag set.
+     *
+     *@param result a result of {@link #classify(long[], int, int, boolean)}
+     *@param flag one of {@link #ILLEGAL}, {@link #CHECK}, {@link #MATE} or {@link #STALEMATE}
+     */
+    public static boolean is(int result, int flag)
+    {
+        return (result & flag) != 0;
+    }
+
+    /**
+     * Returns the number of legal moves stored in the result. The number is only
+     * determined if moves are counted, otherwise it is 0.
+     *
+     *@param result a result of {@link #classify(long[], int, int, boolean)}
+     */
+    public static int getNumOfMoves(int result)
+    {
+        return result >>> NUM_OF_MOVES_SHIFT;
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Classifies packed positions.
+     *
+     *@param positions the positions, {@link PositionSnapshot#NUM_OF_LONGS} longs each
+     *@param offset the index of the first long of the first position
+     *@param num the number of positions
+     *@param countMoves whether to count the legal moves of each position
+     *@return the results, one per position
+     */
+    public int[] classify(long[] positions, int offset, int num, boolean countMoves)
+    {
+        int[] results = new int[num];
+        classify(positions, offset, num, countMoves, results, 0);
+        return results;
+    }
+
+    /**
+     * Classifies packed positions into a given result array.
+     *
+     *@param positions the positions, {@link PositionSnapshot#NUM_OF_LONGS} longs each
+     *@param offset the index of the first long of the first position
+     *@param num the number of positions
+     *@param countMoves whether to count the legal moves of each position
+     *@param results the array to store the results in
+     *@param resultOffset the index of the result of the first position
+     */
+    public void classify(long[] positions, int offset, int num, boolean countMoves, int[] results, int resultOffset)
+    {
+        if (num < 0) throw new IllegalArgumentException("Illegal number of positions: " + num);
+        if (offset < 0 || offset + (long)num * PositionSnapshot.NUM_OF_LONGS > positions.length) {
+            throw new IllegalArgumentException("Positions out of range: " + offset + " + " + num + " positions, length " + positions.length);
+        }
+        if (resultOffset < 0 || resultOffset + num > results.length) {
+            throw new IllegalArgumentException("Results out of range: " + resultOffset + " + " + num + ", length " + results.length);
+        }
+
+        ClassifyTask task = new ClassifyTask(positions, offset, num, countMoves, results, resultOffset);
+        if (m_parallelism > 1 && num > MIN_POSITIONS_PER_TASK) {
+            getPool().invoke(task);
+        } else {
+            task.classify();
+        }
+    }
+
+    /**
+     * Classifies a single position.
+     *
+     *@param position the position, it is not changed
+     *@param countMoves whether to count the legal moves
+     *@return the result
+     */
+    public static int classify(Position position, boolean countMoves)
+    {
+        return classify(position, countMoves, new short[Position.MAX_NUM_OF_MOVES]);
+    }
+
+    private static int classify(Position position, boolean countMoves, short[] moves)
+    {
+        if (!position.isLegal()) return ILLEGAL;  // =====>
+
+        int result = 0;
+        boolean canMove;
+        if (countMoves) {
+            int num = position.generateMoves(moves, 0, Position.ALL_MOVES);
+            result |= num << NUM_OF_MOVES_SHIFT;
+            canMove = (num > 0);
+        } else {
+            canMove = position.canMove();
+        }
+        if (position.isCheck()) {
+            result |= (canMove ? CHECK : CHECK | MATE);
+        } else if (!canMove) {
+            result |= STALEMATE;
+        }
+        return result;
+    }
+
+    /*================================================================================*/
+
+    private synchronized ForkJoinPool getPool()
+    {
+        if (m_pool == null) m_pool = new ForkJoinPool(m_parallelism);
+        return m_pool;
+    }
+
+    /**
+     * Terminates the worker threads. The classifier can still be used afterwards,
+     * a new pool is created on demand.
+     */
+    public synchronized void shutdown()
+    {
+        if (m_pool != null) {
+            m_pool.shutdown();
+            m_pool = null;
+        }
+    }
+
+    /*================================================================================*/
+
+    private static final class Worker
+    {
+        final Position m_position = new Position();
+        final short[] m_moves = new short[Position.MAX_NUM_OF_MOVES];
+    }
+
+    private final class ClassifyTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] m_positions;
+        private final int m_offset;
+        private final int m_num;
+        private final boolean m_countMoves;
+        private final int[] m_results;
+        private final int m_resultOffset;
+
+        ClassifyTask(long[] positions, int offset, int num, boolean countMoves, int[] results, int resultOffset)
+        {
+            m_positions = positions;
+            m_offset = offset;
+            m_num = num;
+            m_countMoves = countMoves;
+            m_results = results;
+            m_resultOffset = resultOffset;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (m_num <= MIN_POSITIONS_PER_TASK) {
+                classify();
+            } else {
+                int half = m_num / 2;
+                invokeAll(new ClassifyTask(m_positions, m_offset, half, m_countMoves, m_results, m_resultOffset),
+                          new ClassifyTask(m_positions, m_offset + half * PositionSnapshot.NUM_OF_LONGS, m_num - half,
+                                           m_countMoves, m_results, m_resultOffset + half));
+            }
+        }
+
+        void classify()
+        {
+            Worker worker = m_worker.get();
+            Position position = worker.m_position;
+            for (int i = 0; i < m_num; i++) {
+                position.set(m_positions, m_offset + i * PositionSnapshot.NUM_OF_LONGS);
+                m_results[m_resultOffset + i] = PositionClassifier.classify(position, m_countMoves, worker.m_moves);
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.position;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Call counters and timing histograms of {@link Position}, shared by all instances.
+ *
+ * <p>Both are disabled by default and can be switched on and off at runtime with
+ * {@link #setEnabled(boolean)} and {@link #setTimingEnabled(boolean)}. When disabled,
+ * an instrumented method only reads a volatile static flag, which on common hardware
+ * costs about as much as a plain load, and switching takes effect in all threads at
+ * once. Counters are striped: threads add to different cells, which are summed up
+ * when read, so counting scales with the number of threads using positions. The
+ * timing histograms count the durations of {@link #TIMER_DO_MOVE moves}, {@link #TIMER_UNDO_MOVE undos},
+ * {@link #TIMER_GENERATE_MOVES move generation}, {@link #TIMER_CAN_MOVE canMove}
+ * and {@link #TIMER_ATTACKED_SQUARES attack maps} in buckets of powers of two
+ * nanoseconds.
+ *
+ * <p>Values are read with {@link #getCount(int)}, {@link #getHistogram(int)} and
+ * {@link #getCounters()}, e.g. to export them to a metrics system. They are not
+ * read atomically, values of calls running concurrently may or may not be included.
+ *
+ * @author Andreas Rudolph
+ */
+public final class PositionMetrics
+{
+    public static final int
+        POSITIONS              =  0,
+        SET                    =  1,
+        DO_MOVE                =  2,
+        LONGS_BACKUPED         =  3,
+        UNDO_MOVE              =  4,
+        IS_CHECK               =  5,
+        IS_MATE                =  6,
+        IS_STALE_MATE          =  7,
+        GET_ALL_MOVES          =  8,
+        INIT_PINS_AND_CHECKERS =  9,
+        GET_PINNED_DIRECTION   = 10,
+        IS_ATTACKED            = 11,
+        ATTACKED_SQUARES       = 12,
+        DIRECT_ATTACKERS       = 13,
+        GET_ALL_ATTACKERS      = 14,
+        NUM_OF_COUNTERS        = 15;
+
+    private static final String[] COUNTER_NAMES = {
+        "positions", "set", "doMove", "longsBackuped", "undoMove",
+        "isCheck", "isMate", "isStaleMate", "getAllMoves", "pinsAndCheckers",
+        "getPinnedDirection", "isAttacked", "attackedSquares", "directAttackers",
+        "getAllAttackers"
+    };
+
+    public static final int
+        TIMER_DO_MOVE          = 0,
+        TIMER_UNDO_MOVE        = 1,
+        TIMER_GENERATE_MOVES   = 2,
+        TIMER_CAN_MOVE         = 3,
+        TIMER_ATTACKED_SQUARES = 4,
+        NUM_OF_TIMERS          = 5;
+
+    private static final String[] TIMER_NAMES = {
+        "doMove", "undoMove", "generateMoves", "canMove", "attackedSquares"
+    };
+
+    /**
+     * The number of buckets of a histogram. Bucket <code>i</code> counts durations
+     * from <code>2^i</code> to <code>2^(i+1) - 1</code> nanoseconds, bucket 0 includes 0.
+     */
+    public static final int NUM_OF_BUCKETS = 40;
+
+    // read by Position before each instrumented call; volatile, so that running
+    // threads see a change at once instead of a value hoisted out of their loops
+    static volatile boolean s_enabled = false;
+    static volatile boolean s_timing = false;
+
+    private static final StripedCounters s_counters = new StripedCounters(NUM_OF_COUNTERS);
+    // per timer: the buckets followed by the total nanoseconds
+    private static final StripedCounters s_timers = new StripedCounters(NUM_OF_TIMERS * (NUM_OF_BUCKETS + 1));
+
+    /*================================================================================*/
+
+    private PositionMetrics() {}
+
+    /**
+     * Switches the counters on or off.
+     */
+    public static void setEnabled(boolean enabled)  {s_enabled = enabled;}
+    public static boolean isEnabled()               {return s_enabled;}
+
+    /**
+     * Switches the timing histograms on or off. Calls are only timed while the
+     * counters are enabled, too. Timing calls <code>System.nanoTime()</code>
+     * twice per timed call, which is expensive compared to a move, so it should
+     * be enabled only for measurements.
+     */
+    public static void setTimingEnabled(boolean enabled)  {s_timing = enabled;}
+    public static boolean isTimingEnabled()               {return s_timing;}
+
+    /**
+     * Sets all counters and histograms to 0.
+     */
+    public static void reset()
+    {
+        s_counters.reset();
+        s_timers.reset();
+    }
+
+    /*================================================================================*/
+
+    static void increment(int counter)
+    {
+        s_counters.add(counter, 1L);
+    }
+
+    static void add(int counter, long value)
+    {
+        s_counters.add(counter, value);
+    }
+
+    /**
+     * Returns the start time for {@link #stopTimer(int, long)}, 0 if timing is disabled.
+     * Only called if the counters are enabled.
+     */
+    static long startTimer()
+    {
+        return (s_timing ? System.nanoTime() : 0L);
+    }
+
+    static void stopTimer(int timer, long start)
+    {
+        if (start == 0L) return;  // =====>
+        long nanos = System.nanoTime() - start;
+        int bucket = (nanos <= 1L ? 0 : Math.min(63 - Long.numberOfLeadingZeros(nanos), NUM_OF_BUCKETS - 1));
+        int offset = timer * (NUM_OF_BUCKETS + 1);
+        s_timers.add(offset + bucket, 1L);
+        s_timers.add(offset + NUM_OF_BUCKETS, nanos);
+    }
+
+    /*================================================================================*/
+
+    public static String getCounterName(int counter)  {return COUNTER_NAMES[counter];}
+    public static String getTimerName(int timer)      {return TIMER_NAMES[timer];}
+
+    /**
+     * Returns the current value of a counter.
+     *
+     *@param counter the counter, 0 to {@link #NUM_OF_COUNTERS} - 1
+     */
+    public static long getCount(int counter)
+    {
+        return s_counters.sum(counter);
+    }
+
+    /**
+     * Returns the number of timed calls per bucket, see {@link #NUM_OF_BUCKETS}.
+     *
+     *@param timer the timer, 0 to {@link #NUM_OF_TIMERS} - 1
+     */
+    public static long[] getHistogram(int timer)
+    {
+        long[] histogram = new long[NUM_OF_BUCKETS];
+        int offset = timer * (NUM_OF_BUCKETS + 1);
+        for (int bucket = 0; bucket < NUM_OF_BUCKETS; bucket++) {
+            histogram[bucket] = s_timers.sum(offset + bucket);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the sum of the durations of all timed calls in nanoseconds.
+     *
+     *@param timer the timer, 0 to {@link #NUM_OF_TIMERS} - 1
+     */
+    public static long getTotalNanos(int timer)
+    {
+        return s_timers.sum(timer * (NUM_OF_BUCKETS + 1) + NUM_OF_BUCKETS);
+    }
+
+    /**
+     * Returns all counters by name, and the number of calls and total nanoseconds of
+     * all timers as <code>&lt;timer&gt;.calls</code> and <code>&lt;timer&gt;.nanos</code>.
+     */
+    public static Map<String, Long> getCounters()
+    {
+        Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        for (int counter = 0; counter < NUM_OF_COUNTERS; counter++) {
+            counters.put(COUNTER_NAMES[counter], Long.valueOf(getCount(counter)));
+        }
+        for (int timer = 0; timer < NUM_OF_TIMERS; timer++) {
+            long calls = 0;
+            for (long num : getHistogram(timer)) calls += num;
+            counters.put(TIMER_NAMES[timer] + ".calls", Long.valueOf(calls));
+            counters.put(TIMER_NAMES[timer] + ".nanos", Long.valueOf(getTotalNanos(timer)));
+        }
+        return counters;
+    }
+
+    /*================================================================================*/
+
+    /**
+     * A set of counters, each split into one cell per stripe. A thread always adds
+     * to the cells of the same stripe; the cells of a stripe are padded to separate
+     * cache lines, so threads on different stripes do not contend.
+     */
+    private static final class StripedCounters
+    {
+        private static final int PADDING = 8;  // longs per cache line
+
+        private final int m_stripeLength;
+        private final int m_stripeMask;
+        private final AtomicLongArray m_cells;
+
+        StripedCounters(int numOfCounters)
+        {
+            int numOfStripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+            numOfStripes = Math.min(numOfStripes * 2, 64);
+            m_stripeMask = numOfStripes - 1;
+            m_stripeLength = (numOfCounters + 2 * PADDING - 1) / PADDING * PADDING;
+            m_cells = new AtomicLongArray(numOfStripes * m_stripeLength);
+        }
+
+        private int getStripe()
+        {
+            long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+            return (int)(id >>> 32) & m_stripeMask;
+        }
+
+        void add(int counter, long value)
+        {
+            m_cells.addAndGet(getStripe() * m_stripeLength + counter, value);
+        }
+
+        long sum(int counter)
+        {
+            long sum = 0L;
+            for (int index = counter; index < m_cells.length(); index += m_stripeLength) {
+                sum += m_cells.get(index);
+            }
+            return sum;
+        }
+
+        void reset()
+        {
+            for (int index = 0; index < m_cells.length(); index++) m_cells.set(index, 0L);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.position;
+
+
+/**
+ * A per-thread pool of {@link Position} objects for short-lived positions, e.g.
+ * to replay moves or to parse a FEN only to extract some information.
+ *
+ * <p>A position is taken with one of the <code>acquire</code> methods and must be
+ * given back with {@link #release(Position)} by the same thread once it is no
+ * longer used, typically in a <code>finally</code> block. A released position must
+ * not be used or handed out anymore. Each thread keeps up to {@link #MAX_POOLED}
+ * positions, which keep their grown stacks but no moves. If more positions are
+ * acquired at the same time, new positions are created and dropped on release.
+ *
+ * @author Andreas Rudolph
+ */
+public final class PositionPool
+{
+    /**
+     * The maximum number of positions kept per thread.
+     */
+    public static final int MAX_POOLED = 8;
+
+    private static final ThreadLocal<PositionPool> s_pool = new ThreadLocal<PositionPool>() {
+        @Override
+        protected PositionPool initialValue() {return new PositionPool();}
+    };
+
+    private final Position[] m_positions = new Position[MAX_POOLED];
+    private int m_num;
+
+    /*================================================================================*/
+
+    private PositionPool() {}
+
+    private Position take()
+    {
+        if (m_num == 0) return new Position();  // =====>
+        Position position = m_positions[--m_num];
+        m_positions[m_num] = null;
+        return position;
+    }
+
+    /*================================================================================*/
+
+    /**
+     * Returns a position of the pool set to the initial position.
+     */
+    public static Position acquire()
+    {
+        return acquire(Position.getStartSnapshot());
+    }
+
+    /**
+     * Returns a position of the pool set to the given snapshot.
+     *
+     *@param snapshot the position to copy
+     */
+    public static Position acquire(PositionSnapshot snapshot)
+    {
+        Position position = s_pool.get().take();
+        position.set(snapshot);
+        return position;
+    }
+
+    /**
+     * Returns a position of the pool set to the given position. Moves of the
+     * given position cannot be undone in the returned position.
+     *
+     *@param source the position to copy
+     */
+    public static Position acquire(ImmutablePosition source)
+    {
+        if (source instanceof Position) return acquire(((Position)source).snapshot());  // =====>
+        if (source instanceof PositionSnapshot) return acquire((PositionSnapshot)source);  // =====>
+
+        Position position = s_pool.get().take();
+        position.set(source);
+        return position;
+    }
+
+    /**
+     * Returns a position of the pool set to the position of a FEN string.
+     *
+     *@param fen the FEN string
+     *@param strict whether to validate the position, see {@link FEN#initFromFEN(MutablePosition, String, boolean)}
+     *@throws IllegalArgumentException if the FEN string is malformed, the position is released then
+     */
+    public static Position acquire(String fen, boolean strict) throws IllegalArgumentException
+    {
+        Position position = s_pool.get().take();
+        try {
+            FEN.initFromFEN(position, fen, strict);
+        } catch (IllegalArgumentException ex) {
+            release(position);
+            throw ex;
+        }
+        return position;
+    }
+
+    /**
+     * Gives a position back to the pool of the current thread. Listeners and
+     * piece-square tables of the position are removed.
+     *
+     *@param position the position, must not be used afterwards
+     */
+    public static void release(Position position)
+    {
+        if (position == null) return;  // =====>
+
+        PositionPool pool = s_pool.get();
+        if (pool.m_num < MAX_POOLED) {
+            position.recycle();
+            pool.m_positions[pool.m_num++] = position;
+        }
+    }
+}
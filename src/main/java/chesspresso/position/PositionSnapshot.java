@@ -0,0 +1,175 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.position;
+
+import chesspresso.Chess;
+
+
+/**
+ * An immutable copy of the state of a {@link Position} packed into
+ * {@link #NUM_OF_LONGS} longs: the bit boards, the king squares and flags, the hash
+ * code and the Zobrist key.
+ *
+ * <p>Snapshots are created with {@link Position#snapshot()} and restored with
+ * {@link Position#set(PositionSnapshot)}, both copy the bit boards directly. Since
+ * snapshots are immutable, they can be handed between threads without
+ * synchronization. Like all positions, snapshots are equal to any
+ * {@link ImmutablePosition} with the same hash code, so they can be used as keys of
+ * hash maps together with positions. To compare all longs, i.e. the positions
+ * including the ply number and half move clock, use {@link #isSame(PositionSnapshot)}.
+ *
+ * <p>For compact storage, snapshots can be written to and read from
+ * <code>long[]</code> arrays, see {@link #write(long[], int)},
+ * {@link #read(long[], int)}, {@link Position#snapshot(long[], int)} and
+ * {@link Position#set(long[], int)}.
+ *
+ * @author Andreas Rudolph
+ */
+public final class PositionSnapshot extends AbstractPosition
+{
+    /**
+     * The number of longs a snapshot occupies in a <code>long[]</code>.
+     */
+    public static final int NUM_OF_LONGS = 8;
+
+    // the flags long holds the flags of Position (without cached information) and the
+    // king squares, offset by one to allow NO_SQUARE
+    static final int
+        WHITE_KING_SHIFT = 40,
+        BLACK_KING_SHIFT = 47,
+        KING_MASK        = 0x7F;
+
+    private final long m_bbWhites, m_bbPawns, m_bbKnights, m_bbBishops, m_bbRooks;
+    private final long m_flags;
+    private final long m_hashCode;
+    private final long m_zobristKey;
+
+    /*================================================================================*/
+
+    PositionSnapshot(long bbWhites, long bbPawns, long bbKnights, long bbBishops, long bbRooks,
+                     long flags, long hashCode, long zobristKey)
+    {
+        m_bbWhites   = bbWhites;
+        m_bbPawns    = bbPawns;
+        m_bbKnights  = bbKnights;
+        m_bbBishops  = bbBishops;
+        m_bbRooks    = bbRooks;
+        m_flags      = flags;
+        m_hashCode   = hashCode;
+        m_zobristKey = zobristKey;
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(long[], int)} or
+     * {@link Position#snapshot(long[], int)}.
+     *
+     *@param src the array to read from
+     *@param offset the index of the first long of the snapshot
+     *@return the snapshot
+     */
+    public static PositionSnapshot read(long[] src, int offset)
+    {
+        return new PositionSnapshot(src[offset], src[offset + 1], src[offset + 2], src[offset + 3],
+                                    src[offset + 4], src[offset + 5], src[offset + 6], src[offset + 7]);
+    }
+
+    /**
+     * Writes the snapshot to {@link #NUM_OF_LONGS} consecutive longs of an array.
+     *
+     *@param dest the array to write to
+     *@param offset the index of the first long to write
+     */
+    public void write(long[] dest, int offset)
+    {
+        dest[offset]     = m_bbWhites;
+        dest[offset + 1] = m_bbPawns;
+        dest[offset + 2] = m_bbKnights;
+        dest[offset + 3] = m_bbBishops;
+        dest[offset + 4] = m_bbRooks;
+        dest[offset + 5] = m_flags;
+        dest[offset + 6] = m_hashCode;
+        dest[offset + 7] = m_zobristKey;
+    }
+
+    /*================================================================================*/
+
+    static int getWhiteKing(long flags)  {return (int)((flags >>> WHITE_KING_SHIFT) & KING_MASK) + Chess.NO_SQUARE;}
+    static int getBlackKing(long flags)  {return (int)((flags >>> BLACK_KING_SHIFT) & KING_MASK) + Chess.NO_SQUARE;}
+
+    private long getFlag(int shift, int mask)
+    {
+        return (m_flags >>> shift) & mask;
+    }
+
+    public int getToPlay()          {return getFlag(Position.TO_PLAY_SHIFT, Position.TO_PLAY_MASK) == 0 ? Chess.WHITE : Chess.BLACK;}
+    public int getCastles()         {return (int)getFlag(Position.CASTLES_SHIFT, Position.CASTLES_MASK);}
+    public int getSqiEP()           {return (int)getFlag(Position.SQI_EP_SHIFT, Position.SQI_EP_MASK) + Chess.NO_SQUARE;}
+    public int getHalfMoveClock()   {return (int)getFlag(Position.HALF_MOVE_CLOCK_SHIFT, Position.HALF_MOVE_CLOCK_MASK);}
+    public int getPlyNumber()       {return (int)getFlag(Position.PLY_NUMBER_SHIFT, Position.PLY_NUMBER_MASK);}
+    public long getHashCode()       {return m_hashCode;}
+    public long getZobristKey()     {return m_zobristKey;}
+
+    public int getStone(int sqi)
+    {
+        long bbSqi = 1L << sqi;
+        int piece;
+        if ((m_bbPawns & bbSqi) != 0L) {
+            piece = Chess.PAWN;
+        } else if ((m_bbKnights & bbSqi) != 0L) {
+            piece = Chess.KNIGHT;
+        } else if ((m_bbBishops & bbSqi) != 0L) {
+            piece = ((m_bbRooks & bbSqi) != 0L ? Chess.QUEEN : Chess.BISHOP);
+        } else if ((m_bbRooks & bbSqi) != 0L) {
+            piece = Chess.ROOK;
+        } else if (sqi == getWhiteKing(m_flags) || sqi == getBlackKing(m_flags)) {
+            piece = Chess.KING;
+        } else {
+            return Chess.NO_STONE;  // =====>
+        }
+        return Chess.pieceToStone(piece, (m_bbWhites & bbSqi) != 0L ? Chess.WHITE : Chess.BLACK);
+    }
+
+    /*================================================================================*/
+
+    long getBBWhites()   {return m_bbWhites;}
+    long getBBPawns()    {return m_bbPawns;}
+    long getBBKnights()  {return m_bbKnights;}
+    long getBBBishops()  {return m_bbBishops;}
+    long getBBRooks()    {return m_bbRooks;}
+    long getFlags()      {return m_flags;}
+
+    /*================================================================================*/
+
+    /**
+     * Returns whether the snapshot is exactly the same as the given one, i.e. all
+     * its longs are equal. Unlike {@link #equals(Object)}, this also compares the
+     * ply number, the half move clock and the Zobrist key.
+     *
+     *@param snapshot the snapshot to compare with
+     *@return whether the snapshots are the same
+     */
+    public boolean isSame(PositionSnapshot snapshot)
+    {
+        if (snapshot == this) return true;  // =====>
+        return m_hashCode   == snapshot.m_hashCode &&
+               m_zobristKey == snapshot.m_zobristKey &&
+               m_flags      == snapshot.m_flags &&
+               m_bbWhites   == snapshot.m_bbWhites &&
+               m_bbPawns    == snapshot.m_bbPawns &&
+               m_bbKnights  == snapshot.m_bbKnights &&
+               m_bbBishops  == snapshot.m_bbBishops &&
+               m_bbRooks    == snapshot.m_bbRooks;
+    }
+}
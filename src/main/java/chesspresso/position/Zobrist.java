@@ -0,0 +1,243 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.position;
+
+import chesspresso.Chess;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Full 64 bit Zobrist keys of positions.
+ *
+ * <p>Unlike the hash code of {@link ImmutablePosition#getHashCode()}, which reserves
+ * bits for the player to move and is masked to 63 bits, all parts of the key (stones,
+ * castles, en passant column and player to move) are xor'ed random numbers.
+ *
+ * <p>The random numbers are laid out like the <code>Random64</code> table of the
+ * Polyglot opening book format (781 numbers: 12 x 64 stones, 4 castles, 8 en passant
+ * columns, white to play), and the key is computed by the same rules. By default, a
+ * fixed table is generated. If the system property {@link #TABLE_PROPERTY} names a
+ * file containing the 781 Polyglot random numbers (hexadecimal, separated by white
+ * space or commas, as in the Polyglot sources), keys are compatible to Polyglot books.
+ * The table is read once, when the class is loaded.
+ *
+ * @author Andreas Rudolph
+ */
+public final class Zobrist
+{
+    private final static Logger LOGGER = LoggerFactory.getLogger( Zobrist.class );
+
+    /**
+     * The system property naming a file with the Polyglot random numbers.
+     */
+    public static final String TABLE_PROPERTY = "chesspresso.zobrist.table";
+
+    public static final int
+        STONE_OFFSET   = 0,
+        CASTLE_OFFSET  = 768,
+        EP_OFFSET      = 772,
+        TO_PLAY_OFFSET = 780,
+        TABLE_LENGTH   = 781;
+
+    private static final long[] s_random;
+    private static final boolean s_isDefaultTable;
+
+    // the random numbers rearranged for fast access by position implementations
+    static final long[][] s_stoneMod;   // [sqi][stone - MIN_STONE], 0 for NO_STONE
+    static final long[] s_castleMod;    // [castles]
+    static final long[] s_epMod;        // [col]
+    static final long s_whiteToPlayMod;
+
+    static {
+        String file = System.getProperty(TABLE_PROPERTY);
+        if (file != null && file.length() > 0) {
+            s_random = readTable(file);
+            s_isDefaultTable = false;
+            if (LOGGER.isDebugEnabled()) LOGGER.debug("Read zobrist table from " + file);
+        } else {
+            s_random = createDefaultTable();
+            s_isDefaultTable = true;
+        }
+
+        s_stoneMod = new long[Chess.NUM_OF_SQUARES][Chess.MAX_STONE - Chess.MIN_STONE + 1];
+        for (int sqi = 0; sqi < Chess.NUM_OF_SQUARES; sqi++) {
+            for (int stone = Chess.MIN_STONE; stone <= Chess.MAX_STONE; stone++) {
+                if (stone != Chess.NO_STONE) {
+                    s_stoneMod[sqi][stone - Chess.MIN_STONE] = s_random[STONE_OFFSET + 64 * getKind(stone) + sqi];
+                }
+            }
+        }
+
+        s_castleMod = new long[16];
+        for (int castles = 0; castles < 16; castles++) {
+            long mod = 0L;
+            if ((castles & ImmutablePosition.WHITE_SHORT_CASTLE) != 0) mod ^= s_random[CASTLE_OFFSET];
+            if ((castles & ImmutablePosition.WHITE_LONG_CASTLE)  != 0) mod ^= s_random[CASTLE_OFFSET + 1];
+            if ((castles & ImmutablePosition.BLACK_SHORT_CASTLE) != 0) mod ^= s_random[CASTLE_OFFSET + 2];
+            if ((castles & ImmutablePosition.BLACK_LONG_CASTLE)  != 0) mod ^= s_random[CASTLE_OFFSET + 3];
+            s_castleMod[castles] = mod;
+        }
+
+        s_epMod = new long[Chess.NUM_OF_COLS];
+        for (int col = 0; col < Chess.NUM_OF_COLS; col++) {
+            s_epMod[col] = s_random[EP_OFFSET + col];
+        }
+
+        s_whiteToPlayMod = s_random[TO_PLAY_OFFSET];
+    }
+
+    /**
+     * Returns the index of the stone in the Polyglot order: black pawn, white pawn,
+     * black knight, white knight, ..., black king, white king.
+     */
+    private static int getKind(int stone)
+    {
+        int kind;
+        switch (Chess.stoneToPiece(stone)) {
+            case Chess.PAWN:   kind = 0; break;
+            case Chess.KNIGHT: kind = 1; break;
+            case Chess.BISHOP: kind = 2; break;
+            case Chess.ROOK:   kind = 3; break;
+            case Chess.QUEEN:  kind = 4; break;
+            case Chess.KING:   kind = 5; break;
+            default: throw new RuntimeException("Illegal stone: " + stone);
+        }
+        return 2 * kind + (Chess.stoneToColor(stone) == Chess.WHITE ? 1 : 0);
+    }
+
+    private static long[] createDefaultTable()
+    {
+        // splitmix64 with a fixed seed, re-implemented here to guarantee that the keys
+        // do not change since they might be externalized
+        long[] random = new long[TABLE_LENGTH];
+        long state = 0x243F6A8885A308D3L;
+        for (int i = 0; i < TABLE_LENGTH; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            random[i] = z ^ (z >>> 31);
+        }
+        return random;
+    }
+
+    private static long[] readTable(String file)
+    {
+        List<Long> numbers = new ArrayList<Long>(TABLE_LENGTH);
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                for (String token : line.split("[\\s,]+")) {
+                    if (token.length() == 0) continue;
+                    if (token.startsWith("0x") || token.startsWith("0X")) token = token.substring(2);
+                    while (token.endsWith("U") || token.endsWith("u") || token.endsWith("L") || token.endsWith("l")) {
+                        token = token.substring(0, token.length() - 1);
+                    }
+                    numbers.add(Long.valueOf(new BigInteger(token, 16).longValue()));
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot read zobrist table " + file, ex);
+        } catch (NumberFormatException ex) {
+            throw new RuntimeException("Illegal number in zobrist table " + file, ex);
+        } finally {
+            if (in != null) try {in.close();} catch (IOException ex) {}
+        }
+        if (numbers.size() != TABLE_LENGTH) {
+            throw new RuntimeException("Zobrist table " + file + " contains " + numbers.size() + " numbers, expected " + TABLE_LENGTH);
+        }
+
+        long[] random = new long[TABLE_LENGTH];
+        for (int i = 0; i < TABLE_LENGTH; i++) random[i] = numbers.get(i).longValue();
+        return random;
+    }
+
+    /*================================================================================*/
+
+    private Zobrist() {}
+
+    /**
+     * Returns whether the generated table is used, i.e. no table has been read from
+     * the file named by {@link #TABLE_PROPERTY}.
+     */
+    public static boolean isDefaultTable()
+    {
+        return s_isDefaultTable;
+    }
+
+    /**
+     * Returns the random number at the given index of the Polyglot layout.
+     *
+     *@param index the index, 0 to {@link #TABLE_LENGTH} - 1
+     */
+    public static long getRandom(int index)
+    {
+        return s_random[index];
+    }
+
+    /**
+     * Computes the Zobrist key of a position from scratch. Implementations which keep
+     * the key up to date incrementally return the same value from
+     * {@link ImmutablePosition#getZobristKey()}.
+     *
+     *@param position the position
+     *@return the 64 bit Zobrist key
+     */
+    public static long getKey(ImmutablePosition position)
+    {
+        /*---------- squares ----------*/
+        long key = 0L;
+        for (int sqi = 0; sqi < Chess.NUM_OF_SQUARES; sqi++) {
+            int stone = position.getStone(sqi);
+            if (stone != Chess.NO_STONE) {
+                key ^= s_stoneMod[sqi][stone - Chess.MIN_STONE];
+            }
+        }
+
+        /*---------- castles ----------*/
+        key ^= s_castleMod[position.getCastles()];
+
+        /*---------- en passant square ----------*/
+        // only if a pawn of the player to move could capture (pseudo-legally)
+        int sqiEP = position.getSqiEP();
+        if (sqiEP != Chess.NO_SQUARE) {
+            int col = Chess.sqiToCol(sqiEP);
+            int row, pawn;
+            if (sqiEP < Chess.A4) {
+                row = 3; pawn = Chess.BLACK_PAWN;
+            } else {
+                row = 4; pawn = Chess.WHITE_PAWN;
+            }
+            if ((col > 0 && position.getStone(Chess.coorToSqi(col - 1, row)) == pawn) ||
+                (col < 7 && position.getStone(Chess.coorToSqi(col + 1, row)) == pawn)) {
+                key ^= s_epMod[col];
+            }
+        }
+
+        /*---------- to play ----------*/
+        if (position.getToPlay() == Chess.WHITE) key ^= s_whiteToPlayMod;
+
+        return key;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.pgn;
+
+import junit.framework.*;
+import chesspresso.game.*;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Tests for the PGNIndex.
+ *
+ * @author Andreas Rudolph
+ */
+public class PGNIndexTest extends TestCase
+{
+    public static Test suite()
+    {
+        return new TestSuite(PGNIndexTest.class);
+    }
+
+    public static void main (String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    //======================================================================
+
+    private File m_file;
+    private byte[] m_bytes;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_bytes = PGNTestFiles.getBytes();
+        m_file = PGNTestFiles.createFile("PGNIndexTest");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        PGNIndex.getIndexFile(m_file).delete();
+        m_file.delete();
+    }
+
+    private static void write(File file, byte[] bytes, int from, int to, boolean append) throws IOException
+    {
+        OutputStream os = new FileOutputStream(file, append);
+        os.write(bytes, from, to - from);
+        os.close();
+    }
+
+    private static byte[] read(File file) throws IOException
+    {
+        byte[] bytes = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        in.readFully(bytes);
+        in.close();
+        return bytes;
+    }
+
+    public void testSeekGame() throws Exception
+    {
+        List<String> expected = PGNTestFiles.parseGames(new PGNReader(m_file));
+        List<GameHeaderModel> headers = new ArrayList<GameHeaderModel>();
+        PGNReader reader = new PGNReader(m_file);
+        for (GameHeaderModel header; (header = reader.parseGameHeader()) != null; ) headers.add(header);
+        reader.close();
+
+        PGNIndex index = PGNIndex.open(m_file);
+        assertEquals(expected.size(), index.getNumOfGames());
+        assertEquals(expected.size(), index.getNumOfScannedGames());
+        assertEquals(m_bytes.length, index.getPGNLength());
+        for (int i = 0; i < headers.size(); i++) {
+            GameHeaderModel header = headers.get(i);
+            assertEquals(header.getLong(), index.getOffset(i));
+            assertEquals(header.getMovetextOffset(), index.getMovetextOffset(i));
+            assertEquals(header.getMovetextLength(), index.getMovetextLength(i));
+            assertEquals(header.getResult(), index.getResult(i));
+            assertEquals(header.getWhiteElo(), index.getWhiteElo(i));
+            assertEquals(header.getBlackElo(), index.getBlackElo(i));
+            assertEquals(header.getWhite().hashCode(), index.getWhiteHashCode(i));
+            assertEquals(header.getBlack().hashCode(), index.getBlackHashCode(i));
+            assertEquals(header.getEvent().hashCode(), index.getEventHashCode(i));
+            if (header.getECO() != null && header.getECO().matches("[A-E][0-9][0-9]")) {
+                assertEquals(header.getECO(), index.getECO(i));
+            }
+        }
+        assertEquals("1999.07.31", headers.get(0).getDate());
+        assertEquals(19990731, index.getDate(0));
+        assertEquals('[', m_bytes[(int)index.getOffset(index.getNumOfGames() - 1)]);
+
+        // seek backwards and forwards, also in a file mapped in small windows
+        PGNReader windowReader = new PGNReader(new PGNByteInput(new RandomAccessFile(m_file, "r").getChannel(), 4096), m_file.getPath());
+        reader = new PGNReader(m_file);
+        Random random = new Random(4711);
+        for (int n = 0; n < 200; n++) {
+            int i = random.nextInt(expected.size());
+            reader.seekGame(index, i);
+            assertEquals("Game " + i, expected.get(i), PGNTestFiles.parseGame(reader));
+            windowReader.seekGame(index, i);
+            assertEquals("Game " + i, expected.get(i), PGNTestFiles.parseGame(windowReader));
+        }
+        reader.seekGame(index, index.getNumOfGames() - 1);
+        assertEquals(expected.get(expected.size() - 1), PGNTestFiles.parseGame(reader));
+        assertNull(PGNTestFiles.parseGame(reader));
+        reader.seek(index.getOffset(1));
+        assertEquals(expected.get(1).replaceAll("line \\d+", ""), PGNTestFiles.parseGame(reader).replaceAll("line \\d+", ""));
+        reader.close();
+        windowReader.close();
+
+        try {
+            index.getOffset(index.getNumOfGames());
+            fail("No exception for missing game");
+        } catch (IndexOutOfBoundsException ex) {
+            // expected
+        }
+        try {
+            new PGNReader(new FileInputStream(m_file), "stream").seek(0L);
+            fail("No exception for seeking in a stream");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    public void testUpdate() throws Exception
+    {
+        File fullIndex = File.createTempFile("PGNIndexTest", PGNIndex.SUFFIX);
+        try {
+            fullIndex.delete();
+            PGNIndex full = PGNIndex.open(m_file, fullIndex);
+
+            // up to date
+            PGNIndex index = PGNIndex.open(m_file);
+            assertEquals(full.getNumOfGames(), index.getNumOfScannedGames());
+            index = PGNIndex.open(m_file);
+            assertEquals(0, index.getNumOfScannedGames());
+            assertEquals(full.getNumOfGames(), index.getNumOfGames());
+
+            // grown in the middle of a game, only the last game is scanned again
+            int half = m_bytes.length / 2;
+            write(m_file, m_bytes, 0, half, false);
+            index = PGNIndex.open(m_file);
+            int numOfGames = index.getNumOfGames();
+            assertTrue(numOfGames > 1 && numOfGames < full.getNumOfGames());
+            write(m_file, m_bytes, half, m_bytes.length, true);
+            index = PGNIndex.open(m_file);
+            assertEquals(full.getNumOfGames() - numOfGames + 1, index.getNumOfScannedGames());
+            assertTrue(Arrays.equals(read(fullIndex), read(PGNIndex.getIndexFile(m_file))));
+
+            // changed, the index is rebuilt
+            byte[] bytes = m_bytes.clone();
+            assertEquals('[', bytes[0]);
+            bytes[1] = (byte)Character.toLowerCase(bytes[1]);
+            write(m_file, bytes, 0, bytes.length, false);
+            index = PGNIndex.open(m_file);
+            assertEquals(full.getNumOfGames(), index.getNumOfScannedGames());
+            assertEquals(full.getOffset(1), index.getOffset(1));
+
+            // truncated, the index is rebuilt
+            write(m_file, m_bytes, 0, half, false);
+            index = PGNIndex.open(m_file);
+            assertEquals(numOfGames, index.getNumOfScannedGames());
+            assertEquals(numOfGames, index.getNumOfGames());
+
+            // incomplete index, the index is rebuilt
+            RandomAccessFile file = new RandomAccessFile(PGNIndex.getIndexFile(m_file), "rw");
+            file.setLength(file.length() - 1);
+            file.close();
+            index = PGNIndex.open(m_file);
+            assertEquals(numOfGames, index.getNumOfScannedGames());
+        } finally {
+            fullIndex.delete();
+        }
+    }
+}
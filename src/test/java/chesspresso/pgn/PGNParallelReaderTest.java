@@ -0,0 +1,106 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.pgn;
+
+import junit.framework.*;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Tests for the PGNParallelReader.
+ *
+ * @author Andreas Rudolph
+ */
+public class PGNParallelReaderTest extends TestCase
+{
+    public static Test suite()
+    {
+        return new TestSuite(PGNParallelReaderTest.class);
+    }
+
+    public static void main (String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    //======================================================================
+
+    private File m_file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_file = PGNTestFiles.createFile("PGNParallelReaderTest");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        m_file.delete();
+    }
+
+    public void testOrdered() throws Exception
+    {
+        List<String> expected = PGNTestFiles.parseGames(new PGNReader(m_file));
+        assertTrue(expected.size() > 100);
+        for (int chunkSize : new int[] {1, 4096, 100000, PGNParallelReader.DEFAULT_CHUNK_SIZE}) {
+            PGNParallelReader reader = new PGNParallelReader(m_file, 4, true);
+            reader.setChunkSize(chunkSize);
+            assertEquals("Chunk size " + chunkSize, expected, PGNTestFiles.parseGames(reader));
+        }
+    }
+
+    public void testUnordered() throws Exception
+    {
+        List<String> expected = PGNTestFiles.parseGames(new PGNReader(m_file));
+        PGNParallelReader reader = new PGNParallelReader(m_file, 4, false);
+        reader.setChunkSize(2048);
+        List<String> games = PGNTestFiles.parseGames(reader);
+        Collections.sort(expected);
+        Collections.sort(games);
+        assertEquals(expected, games);
+    }
+
+    public void testClose() throws Exception
+    {
+        // reading to the end closes the reader
+        PGNParallelReader reader = new PGNParallelReader(m_file, 2, true);
+        reader.setChunkSize(100000);
+        int numOfGames = 0;
+        while (reader.parseGame() != null) {
+            assertFalse(reader.isClosed());
+            numOfGames++;
+        }
+        assertTrue(numOfGames > 100);
+        assertTrue(reader.isClosed());
+        assertNull(reader.parseGame());
+        reader.close();
+
+        reader = new PGNParallelReader(m_file, 2, false);
+        assertNotNull(reader.parseGame());
+        reader.close();
+        assertTrue(reader.isClosed());
+        assertNull(reader.parseGame());
+
+        try {
+            new PGNParallelReader(m_file, 0, true);
+            fail("No exception for parallelism 0");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
@@ -65,6 +65,209 @@ public class PGNReaderTest extends FootprintTestCase
         doExtendedTest("chusa99");
     }
 
+    public void testMappedFile() throws Exception
+    {
+        String pgnFilename = "chesspresso/pgn/PGNTest.pgn.gz";
+        File file = File.createTempFile("PGNTest", ".pgn");
+        try {
+            InputStream is = new GZIPInputStream(ClassLoader.getSystemResourceAsStream(pgnFilename));
+            OutputStream os = new FileOutputStream(file);
+            byte[] buf = new byte[8192];
+            for (int num; (num = is.read(buf)) > 0; ) os.write(buf, 0, num);
+            os.close();
+            is.close();
+
+            // the memory-mapped file must give the same games and errors as the character reader,
+            // the deprecated reader for characters is kept as reference for the byte input
+            Reader reader = new InputStreamReader(new FileInputStream(file));
+            @SuppressWarnings("deprecation")
+            PGNReader charReader = new PGNReader(reader, file.getPath());
+            String expected = parseToString(charReader);
+            reader.close();
+            PGNReader mapped = new PGNReader(file);
+            assertEquals(expected, parseToString(mapped));
+            mapped.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testHeaderOnly() throws Exception
+    {
+        byte[] bytes = PGNTestFiles.getBytes();
+        File file = PGNTestFiles.createFile("PGNTest");
+        try {
+            PGNReader gameReader = new PGNReader(file);
+            PGNReader headerReader = new PGNReader(file);
+            int numOfGames = 0;
+            for (;;) {
+                Game game = gameReader.parseGame();
+                GameHeaderModel header = headerReader.parseGameHeader();
+                if (game == null) {
+                    assertNull(header);
+                    break;
+                }
+                numOfGames++;
+                assertNotNull(header);
+                GameHeaderModel expected = game.getModel().getHeaderModel();
+                assertEquals(Arrays.asList(expected.getTags()), Arrays.asList(header.getTags()));
+                for (String tag : expected.getTags()) {
+                    assertEquals(expected.getTag(tag), header.getTag(tag));
+                }
+                assertEquals('[', bytes[(int)header.getLong()]);
+                if (game.hasError()) continue;
+
+                // the movetext alone gives the same moves
+                String movetext = new String(bytes, (int)header.getMovetextOffset(), header.getMovetextLength(), "ISO-8859-1");
+                Game parsed = new PGNReader(java.nio.ByteBuffer.wrap(("[Event \"?\"]\n" + movetext).getBytes("ISO-8859-1")), "movetext").parseGame();
+                assertEquals("Game " + numOfGames, game.getNumOfPlies(), parsed.getNumOfPlies());
+                assertEquals("Game " + numOfGames, Arrays.toString(game.getMainLine()), Arrays.toString(parsed.getMainLine()));
+            }
+            assertTrue(numOfGames > 100);
+            gameReader.close();
+            headerReader.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testLazyMovetext() throws Exception
+    {
+        File file = PGNTestFiles.createFile("PGNTest");
+        try {
+            PGNReader gameReader = new PGNReader(file);
+            PGNReader lazyReader = new PGNReader(new FileInputStream(file), file.getPath());
+            lazyReader.setLazyMovetext(true);
+            List<Game> lazyGames = new ArrayList<Game>();
+            for (;;) {
+                Game game = lazyReader.parseGame();
+                if (game == null) break;
+                assertFalse(game.getModel().getMoveModel().isDecoded());
+                assertNotNull(game.getWhite());
+                lazyGames.add(game);
+            }
+            for (Game lazy : lazyGames) {
+                assertFalse(lazy.getModel().getMoveModel().isDecoded());
+                Game game = gameReader.parseGame();
+                assertNotNull(game);
+                if (game.hasError()) continue;
+                assertEquals(Arrays.asList(game.getTags()), Arrays.asList(lazy.getTags()));
+                assertEquals(game.getNumOfPlies(), lazy.getNumOfPlies());
+                assertTrue(lazy.getModel().getMoveModel().isDecoded());
+                game.gotoStart();
+                assertEquals(Arrays.toString(game.getMainLine()), Arrays.toString(lazy.getMainLine()));
+                assertEquals(PGNTestFiles.toPGN(game), PGNTestFiles.toPGN(lazy));
+            }
+            assertNull(gameReader.parseGame());
+            gameReader.close();
+            lazyReader.close();
+
+            // shared lazy games are decoded once, no thread sees a partial model
+            lazyReader = new PGNReader(file);
+            lazyReader.setLazyMovetext(true);
+            final List<GameMoveModel> models = new ArrayList<GameMoveModel>();
+            for (Game game; (game = lazyReader.parseGame()) != null; ) models.add(game.getModel().getMoveModel());
+            lazyReader.close();
+            final List<List<String>> mainLines = new ArrayList<List<String>>();
+            final Throwable[] failure = new Throwable[1];
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                final List<String> lines = new ArrayList<String>();
+                mainLines.add(lines);
+                threads[i] = new Thread() {
+                    public void run() {
+                        try {
+                            for (GameMoveModel model : models) lines.add(Arrays.toString(model.getMainLine()));
+                        } catch (Throwable ex) {
+                            failure[0] = ex;
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) thread.join();
+            assertNull(failure[0]);
+            assertEquals(lazyGames.size(), models.size());
+            for (int i = 0; i < lazyGames.size(); i++) {
+                String expected = Arrays.toString(lazyGames.get(i).getModel().getMoveModel().getMainLine());
+                for (List<String> lines : mainLines) assertEquals("Game " + i, expected, lines.get(i));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private String parseToString(PGNReader pgnReader) throws Exception
+    {
+        StringWriter out = new StringWriter();
+        pgnReader.setErrorHandler(PGNTestFiles.getErrorHandler(out));
+        PGNWriter pgnWriter = new PGNWriter(out);
+        for (;;) {
+            try {
+                Game game = pgnReader.parseGame();
+                if (game == null) break;
+                pgnWriter.write(game.getModel());
+            } catch (Exception ex) {
+                out.write(ex.getMessage() + "\n");
+            }
+        }
+        return out.toString();
+    }
+
+    public void testByteInput() throws Exception
+    {
+        // CR, LF and CRLF line ends, UTF-8 of 2, 3 and 4 bytes, and a single ISO-8859-1 byte
+        byte[] bytes = new byte[] {'a', '\r', '\n', (byte)0xC3, (byte)0x84, '\r', (byte)0xE2, (byte)0x82, (byte)0xAC, '\n',
+                                   (byte)0xF0, (byte)0x9D, (byte)0x84, (byte)0x9E, '\r', '\n', (byte)0xE4, 'b', '\r'};
+        String expected = "a\r\n\u00C4\r\u20AC\n\uD834\uDD1E\r\n\u00E4b\r";
+        int[] lineNumbers = new int[] {0, 1, 1, 1, 2, 2, 3, 3, 3, 4, 4, 4, 4, 5};
+
+        File file = File.createTempFile("PGNByteInput", ".pgn");
+        try {
+            OutputStream os = new FileOutputStream(file);
+            os.write(bytes);
+            os.close();
+
+            for (int windowSize = 1; windowSize <= bytes.length; windowSize++) {
+                PGNByteInput input = new PGNByteInput(new FileInputStream(file).getChannel(), windowSize);
+                assertEquals("Window size " + windowSize, expected, readAll(input, lineNumbers));
+                assertEquals("Window size " + windowSize, bytes.length, input.getOffset());
+                input.close();
+                checkMark(new PGNByteInput(new FileInputStream(file).getChannel(), windowSize), bytes);
+            }
+        } finally {
+            file.delete();
+        }
+        assertEquals(expected, readAll(new PGNByteInput(new ByteArrayInputStream(bytes)), lineNumbers));
+        assertEquals(expected, readAll(new PGNByteInput(java.nio.ByteBuffer.wrap(bytes), 0L, 0), lineNumbers));
+        for (int bufferSize = 1; bufferSize <= bytes.length; bufferSize++) {
+            checkMark(new PGNByteInput(new ByteArrayInputStream(bytes), bufferSize), bytes);
+            checkMark(new PGNByteInput(new ByteArrayInputStream(bytes), bufferSize, true), bytes);
+        }
+    }
+
+    private void checkMark(PGNByteInput input, byte[] bytes) throws IOException
+    {
+        // the marked bytes are kept while the buffer is refilled
+        for (int i = 0; i < 3; i++) input.read();
+        input.mark();
+        while (input.peek() >= 0) input.skip();
+        assertEquals(bytes.length, input.getOffset());
+        assertEquals(Arrays.toString(Arrays.copyOfRange(bytes, 3, bytes.length - 1)),
+                     Arrays.toString(input.getMarked(bytes.length - 4)));
+        input.close();
+    }
+
+    private String readAll(PGNByteInput input, int[] lineNumbers) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int ch; (ch = input.read()) >= 0; ) {
+            sb.append((char)ch);
+            assertEquals("Line number after " + sb.length() + " chars", lineNumbers[sb.length() - 1], input.getLineNumber());
+        }
+        return sb.toString();
+    }
+
     public void doParseTest(String name) throws Exception
     {
         String pgnFilename = "chesspresso/pgn/" + name + ".pgn.gz";
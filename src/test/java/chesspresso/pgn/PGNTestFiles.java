@@ -0,0 +1,130 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.pgn;
+
+import chesspresso.game.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+
+/**
+ * Test files and helpers shared by the tests of the PGN readers.
+ *
+ * @author Andreas Rudolph
+ */
+final class PGNTestFiles
+{
+    /**
+     * The gzipped test files, PGNTest contains errors and warnings.
+     */
+    static final String[] NAMES = {"fidech99", "PGNTest", "chusa99"};
+
+    private PGNTestFiles() {}
+
+    //======================================================================
+
+    /**
+     * Returns all test files in one, each followed by a line end.
+     */
+    static byte[] getBytes() throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (String name : NAMES) {
+            InputStream is = new GZIPInputStream(ClassLoader.getSystemResourceAsStream("chesspresso/pgn/" + name + ".pgn.gz"));
+            for (int num; (num = is.read(buf)) > 0; ) os.write(buf, 0, num);
+            is.close();
+            os.write('\n');
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * Writes all test files in one temporary file, see {@link #getBytes()}.
+     * The caller deletes the file.
+     *
+     * @param prefix the prefix of the file name
+     */
+    static File createFile(String prefix) throws IOException
+    {
+        File file = File.createTempFile(prefix, ".pgn");
+        OutputStream os = new FileOutputStream(file);
+        os.write(getBytes());
+        os.close();
+        return file;
+    }
+
+    //======================================================================
+
+    /**
+     * Returns an error handler writing errors and warnings to the given writer,
+     * one per line.
+     */
+    static PGNErrorHandler getErrorHandler(final StringWriter errors)
+    {
+        return new PGNErrorHandler() {
+            public void handleError(PGNSyntaxError error) {errors.write(error.toString() + "\n");}
+            public void handleWarning(PGNSyntaxError warning)  {errors.write(warning.toString() + "\n");}
+        };
+    }
+
+    static String toPGN(Game game)
+    {
+        StringWriter out = new StringWriter();
+        new PGNWriter(out).write(game.getModel());
+        return out.toString();
+    }
+
+    /**
+     * Returns the next game as PGN preceded by the errors and warnings reported
+     * while reading it, null at the end.
+     */
+    static String parseGame(PGNReader reader) throws IOException, PGNSyntaxError
+    {
+        StringWriter errors = new StringWriter();
+        reader.setErrorHandler(getErrorHandler(errors));
+        Game game = reader.parseGame();
+        return game != null ? errors.toString() + toPGN(game) : null;
+    }
+
+    /**
+     * Returns all games as by {@link #parseGame(PGNReader)} and closes the reader.
+     */
+    static List<String> parseGames(PGNReader reader) throws IOException, PGNSyntaxError
+    {
+        List<String> games = new ArrayList<String>();
+        for (String game; (game = parseGame(reader)) != null; ) games.add(game);
+        reader.close();
+        return games;
+    }
+
+    /**
+     * Returns all games as by {@link #parseGame(PGNReader)} and closes the reader.
+     */
+    static List<String> parseGames(PGNParallelReader reader) throws IOException, PGNSyntaxError
+    {
+        StringWriter errors = new StringWriter();
+        reader.setErrorHandler(getErrorHandler(errors));
+        List<String> games = new ArrayList<String>();
+        for (Game game; (game = reader.parseGame()) != null; ) {
+            games.add(errors.toString() + toPGN(game));
+            errors.getBuffer().setLength(0);
+        }
+        reader.close();
+        return games;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.position;
+
+import java.io.*;
+import java.util.Map;
+import junit.framework.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * @author Andreas Rudolph
+ */
+public class PerftTests extends TestCase
+{
+    private final static Logger LOGGER = LoggerFactory.getLogger( PerftTests.class );
+
+    /**
+     * Larger node counts of the regression suite are skipped to keep the tests fast.
+     */
+    private final static long MAX_NODES = 1000000L;
+
+    public static Test suite()
+    {
+        return new TestSuite(PerftTests.class);
+    }
+
+    public static void main (String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    //======================================================================
+
+    private String readLine(LineNumberReader in) throws IOException
+    {
+        for (;;) {
+            String line = in.readLine();
+            if (line == null) return null;
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith(";")) {
+                return line;
+            }
+        }
+    }
+
+    private void runSuite(Perft perft) throws IOException
+    {
+        LineNumberReader in = new LineNumberReader(
+            new InputStreamReader(
+                ClassLoader.getSystemResourceAsStream("chesspresso/position/testPerft.txt")));
+
+        for (;;) {
+            String fen = readLine(in);
+            if (fen == null) break; // =====>
+            String[] counts = readLine(in).split(" ");
+            Position position = new Position(fen);
+            for (String count : counts) {
+                int depth = Integer.parseInt(count.substring(0, count.indexOf(':')));
+                long nodes = Long.parseLong(count.substring(count.indexOf(':') + 1));
+                if (nodes > MAX_NODES) continue;
+                assertEquals("Perft(" + depth + ") wrong in position \"" + fen + "\"", nodes, perft.perft(position, depth));
+                assertEquals("Position changed by perft", fen, position.getFEN());
+            }
+        }
+    }
+
+    //======================================================================
+
+    public void testPerft() throws IOException
+    {
+        runSuite(new Perft(1, 0));
+    }
+
+    public void testPerftParallelWithCache() throws IOException
+    {
+        Perft perft = new Perft(4, 16);
+        try {
+            runSuite(perft);
+        } finally {
+            perft.shutdown();
+        }
+    }
+
+    public void testDivide()
+    {
+        Perft perft = new Perft(1, 0);
+        Position position = Position.createInitialPosition();
+        Map<Short, Long> divide = perft.divide(position, 3);
+        assertEquals("Number of root moves", 20, divide.size());
+        long nodes = 0;
+        for (Long num : divide.values()) nodes += num.longValue();
+        assertEquals("Sum of divide", 8902, nodes);
+        assertEquals("Nodes of last run", 8902, perft.getNodes());
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.position;
+
+import chesspresso.Chess;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.*;
+
+/**
+ *
+ * @author Andreas Rudolph
+ */
+public class PositionClassifierTests extends TestCase
+{
+    public static Test suite()
+    {
+        return new TestSuite(PositionClassifierTests.class);
+    }
+
+    public static void main (String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    //======================================================================
+
+    /**
+     * Returns the test positions and all positions one move after them.
+     */
+    private List<Position> getPositions() throws Exception
+    {
+        List<Position> positions = new ArrayList<Position>();
+        for (String fen : PositionTestFiles.getFENs()) {
+            Position position = new Position(fen);
+            positions.add(new Position(position));
+            for (short move : position.getAllMoves()) {
+                position.doMove(move);
+                positions.add(new Position(position));
+                position.undoMove();
+            }
+        }
+        positions.add(new Position("7k/5Q2/6K1/8/8/8/8/8 b - - 0 1"));    // stalemate
+        positions.add(new Position("6rk/5Npp/8/8/8/8/8/6K1 b - - 0 1"));  // smothered mate
+        Position illegal = new Position("k7/8/8/8/8/8/8/R6K b - - 0 1");
+        illegal.setToPlay(Chess.WHITE);  // black king in check, white to play
+        positions.add(illegal);
+        illegal = new Position("k7/8/8/8/8/8/8/R6K b - - 0 1");
+        illegal.setStone(Chess.H1, Chess.NO_STONE);  // no white king
+        positions.add(illegal);
+        return positions;
+    }
+
+    private void checkClassifier(PositionClassifier classifier) throws Exception
+    {
+        List<Position> positions = getPositions();
+        long[] packed = new long[3 + positions.size() * PositionSnapshot.NUM_OF_LONGS];
+        for (int i = 0; i < positions.size(); i++) {
+            positions.get(i).snapshot(packed, 3 + i * PositionSnapshot.NUM_OF_LONGS);
+        }
+
+        int[] results = classifier.classify(packed, 3, positions.size(), false);
+        int[] counted = classifier.classify(packed, 3, positions.size(), true);
+        assertEquals(positions.size(), results.length);
+
+        for (int i = 0; i < positions.size(); i++) {
+            Position position = positions.get(i);
+            String fen = FEN.getFEN(position);
+            int result = results[i];
+            if (!position.isLegal()) {
+                assertEquals("Illegal position not detected \"" + fen + "\"", PositionClassifier.ILLEGAL, result);
+                assertEquals("Illegal position not detected \"" + fen + "\"", PositionClassifier.ILLEGAL, counted[i]);
+                continue;
+            }
+            assertFalse("Wrong illegal in \"" + fen + "\"", PositionClassifier.is(result, PositionClassifier.ILLEGAL));
+            assertEquals("Wrong check in \"" + fen + "\"", position.isCheck(), PositionClassifier.is(result, PositionClassifier.CHECK));
+            assertEquals("Wrong mate in \"" + fen + "\"", position.isMate(), PositionClassifier.is(result, PositionClassifier.MATE));
+            assertEquals("Wrong stalemate in \"" + fen + "\"", position.isStaleMate(), PositionClassifier.is(result, PositionClassifier.STALEMATE));
+            assertEquals("Moves counted without request in \"" + fen + "\"", 0, PositionClassifier.getNumOfMoves(result));
+            assertEquals("Wrong number of moves in \"" + fen + "\"", position.getAllMoves().length, PositionClassifier.getNumOfMoves(counted[i]));
+            assertEquals("Wrong flags in \"" + fen + "\"", result, counted[i] & 0xFF);
+            assertEquals("Wrong single classification of \"" + fen + "\"", counted[i], PositionClassifier.classify(position, true));
+        }
+
+        int numOfIllegal = 0, numOfMates = 0, numOfStaleMates = 0;
+        for (int result : results) {
+            if (PositionClassifier.is(result, PositionClassifier.ILLEGAL)) numOfIllegal++;
+            if (PositionClassifier.is(result, PositionClassifier.MATE)) numOfMates++;
+            if (PositionClassifier.is(result, PositionClassifier.STALEMATE)) numOfStaleMates++;
+        }
+        assertTrue("No illegal position classified", numOfIllegal > 0);
+        assertTrue("No mate classified", numOfMates > 0);
+        assertTrue("No stalemate classified", numOfStaleMates > 0);
+    }
+
+    public void testSingleThreaded() throws Exception
+    {
+        checkClassifier(new PositionClassifier(1));
+    }
+
+    public void testParallel() throws Exception
+    {
+        PositionClassifier classifier = new PositionClassifier(4);
+        checkClassifier(classifier);
+        classifier.shutdown();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.position;
+
+import java.util.Map;
+import junit.framework.*;
+
+/**
+ *
+ * @author Andreas Rudolph
+ */
+public class PositionMetricsTests extends TestCase
+{
+    private static final int NUM_OF_THREADS = 4;
+    private static final int NUM_OF_MOVES = 10000;
+
+    public static Test suite()
+    {
+        return new TestSuite(PositionMetricsTests.class);
+    }
+
+    public static void main (String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    //======================================================================
+
+    @Override
+    protected void tearDown()
+    {
+        PositionMetrics.setEnabled(false);
+        PositionMetrics.setTimingEnabled(false);
+        PositionMetrics.reset();
+    }
+
+    private static void doMoves(int num) throws Exception
+    {
+        Position position = Position.createInitialPosition();
+        short[] moves = position.getAllMoves();
+        for (int i = 0; i < num; i++) {
+            position.doMove(moves[i % moves.length]);
+            position.undoMove();
+        }
+    }
+
+    public void testDisabled() throws Exception
+    {
+        PositionMetrics.reset();
+        doMoves(100);
+        assertEquals(0L, PositionMetrics.getCount(PositionMetrics.DO_MOVE));
+        assertEquals(0L, PositionMetrics.getTotalNanos(PositionMetrics.TIMER_DO_MOVE));
+
+        // timing alone does not time calls
+        PositionMetrics.setTimingEnabled(true);
+        doMoves(100);
+        assertEquals(0L, PositionMetrics.getTotalNanos(PositionMetrics.TIMER_DO_MOVE));
+    }
+
+    public void testConcurrentCounting() throws Exception
+    {
+        PositionMetrics.reset();
+        PositionMetrics.setEnabled(true);
+        PositionMetrics.setTimingEnabled(true);
+
+        final Exception[] failure = new Exception[1];
+        Thread[] threads = new Thread[NUM_OF_THREADS];
+        for (int i = 0; i < NUM_OF_THREADS; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    try {
+                        doMoves(NUM_OF_MOVES);
+                    } catch (Exception ex) {
+                        synchronized (failure) {failure[0] = ex;}
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        if (failure[0] != null) throw failure[0];
+
+        long numOfMoves = (long)NUM_OF_THREADS * NUM_OF_MOVES;
+        assertEquals(numOfMoves, PositionMetrics.getCount(PositionMetrics.DO_MOVE));
+        assertEquals(numOfMoves, PositionMetrics.getCount(PositionMetrics.UNDO_MOVE));
+
+        long calls = 0;
+        for (long num : PositionMetrics.getHistogram(PositionMetrics.TIMER_DO_MOVE)) calls += num;
+        assertEquals(numOfMoves, calls);
+
+        Map<String, Long> counters = PositionMetrics.getCounters();
+        assertEquals(Long.valueOf(numOfMoves), counters.get("doMove"));
+        assertEquals(Long.valueOf(numOfMoves), counters.get("undoMove.calls"));
+
+        PositionMetrics.reset();
+        assertEquals(0L, PositionMetrics.getCount(PositionMetrics.DO_MOVE));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Chessplorer-Lib - an open source chess library written in Java
+ * Copyright (C) 2016 Chessplorer.org
+ * Copyright (C) 2012-2016 Gerhard Kalab
+ * Copyright (C) 2002-2003 Bernhard Seybold
+ *
+ * This software is published under the terms of the LGPL Software License,
+ * a copy of which has been included with this distribution in the LICENSE.txt
+ * file.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ */
+package chesspresso.position;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Test positions shared by the tests of the position package.
+ *
+ * @author Andreas Rudolph
+ */
+final class PositionTestFiles
+{
+    private PositionTestFiles() {}
+
+    //======================================================================
+
+    private static String readLine(LineNumberReader in) throws IOException
+    {
+        for (;;) {
+            String line = in.readLine();
+            if (line == null) return null;
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith(";")) {
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Returns the FENs of the positions in testGenerateMoves.txt, without their
+     * moves.
+     */
+    static List<String> getFENs() throws IOException
+    {
+        LineNumberReader in = new LineNumberReader(
+            new InputStreamReader(
+                ClassLoader.getSystemResourceAsStream("chesspresso/position/testGenerateMoves.txt")));
+
+        List<String> fens = new ArrayList<String>();
+        for (;;) {
+            String fen = readLine(in);
+            if (fen == null) break; // =====>
+            readLine(in);
+            fens.add(fen);
+        }
+        in.close();
+        return fens;
+    }
+}
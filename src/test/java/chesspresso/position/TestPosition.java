@@ -14,6 +14,18 @@
  */
 package chesspresso.position;
 
+import chesspresso.Chess;
+import chesspresso.game.GameMoveModel;
+import chesspresso.move.Move;
+import chesspresso.move.MoveList;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 import junit.framework.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,4 +56,732 @@ public class TestPosition extends MoveablePositionTests
     protected MutablePosition   createMutablePosition()  {return new Position();}
     protected MoveablePosition  createMoveablePosition() {return new Position();}
 
+    //======================================================================
+
+    private static short[] sorted(short[] moves, int offset, int num)
+    {
+        short[] res = new short[num];
+        System.arraycopy(moves, offset, res, 0, num);
+        Move.normalizeOrder(res);
+        return res;
+    }
+
+    public void testGenerateMovesIntoBuffer() throws IOException
+    {
+        short[] buffer = new short[Position.MAX_NUM_OF_MOVES + 3];
+        MoveList moveList = new MoveList(4);
+        for (String fen : PositionTestFiles.getFENs()) {
+            Position position = new Position(fen);
+
+            short[] allMoves = position.getAllMoves();
+            Move.normalizeOrder(allMoves);
+            int num = position.generateMoves(buffer, 3, Position.ALL_MOVES);
+            assertTrue("Moves wrong in position \"" + fen + "\"", Arrays.equals(allMoves, sorted(buffer, 3, num)));
+
+            num = position.generateMoves(moveList, Position.ALL_MOVES);
+            assertEquals("Wrong size of move list in position \"" + fen + "\"", num, moveList.size());
+            assertTrue("Moves wrong in position \"" + fen + "\"", Arrays.equals(allMoves, sorted(moveList.getMoves(), 0, num)));
+
+            num = position.generateMoves(buffer, 0, Position.CAPTURING_MOVES);
+            num += position.generateMoves(buffer, num, Position.NON_CAPTURING_MOVES);
+            assertTrue("Capturing and non-capturing moves wrong in position \"" + fen + "\"", Arrays.equals(allMoves, sorted(buffer, 0, num)));
+        }
+    }
+
+    public void testMovePicker() throws IOException
+    {
+        short[] picked = new short[Position.MAX_NUM_OF_MOVES];
+        for (String fen : PositionTestFiles.getFENs()) {
+            Position position = new Position(fen);
+
+            short[] allMoves = position.getAllMoves();
+            Move.normalizeOrder(allMoves);
+
+            // try without hints, with a legal hash move and killers, and with moves of another position
+            short hashMove = (allMoves.length > 0 ? allMoves[allMoves.length - 1] : Move.NO_MOVE);
+            short killer = (allMoves.length > 0 ? allMoves[0] : Move.NO_MOVE);
+            short foreign = Move.getRegularMove(Chess.A1, Chess.H8, false);
+            short[][] hints = {{Move.NO_MOVE, Move.NO_MOVE, Move.NO_MOVE}, {hashMove, killer, killer}, {foreign, foreign, hashMove}};
+
+            MovePicker picker = new MovePicker(position);
+            for (short[] hint : hints) {
+                picker.init(hint[0], hint[1], hint[2]);
+                int num = 0;
+                for (short move = picker.next(); move != Move.NO_MOVE; move = picker.next()) {
+                    assertTrue("Too many moves in position \"" + fen + "\"", num < allMoves.length);
+                    picked[num++] = move;
+                }
+                assertTrue("Moves wrong in position \"" + fen + "\"", Arrays.equals(allMoves, sorted(picked, 0, num)));
+                if (hint[0] == hashMove && hashMove != Move.NO_MOVE) {
+                    assertEquals("Hash move not first in position \"" + fen + "\"", hashMove, picked[0]);
+                }
+                if (hint[0] == Move.NO_MOVE) {
+                    // captures come first
+                    boolean quiet = false;
+                    for (int i = 0; i < num; i++) {
+                        if (!Move.isCapturing(picked[i])) quiet = true;
+                        else assertFalse("Capture after quiet move in position \"" + fen + "\"", quiet);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testPseudoLegalMovesSkipPins() throws Exception
+    {
+        // the knight on e2 and the rook on d2 are pinned
+        Position position = new Position("4k3/4r3/8/8/b7/8/3RN3/4K3 w - - 0 1");
+        short[] buffer = new short[Position.MAX_NUM_OF_MOVES];
+        PositionMetrics.reset();
+        PositionMetrics.setEnabled(true);
+        try {
+            int num = position.generatePseudoLegalMoves(buffer, 0, Position.ALL_MOVES);
+            assertEquals(0L, PositionMetrics.getCount(PositionMetrics.INIT_PINS_AND_CHECKERS));
+            assertEquals(0L, PositionMetrics.getCount(PositionMetrics.GET_PINNED_DIRECTION));
+
+            int numOfLegal = 0;
+            for (int i = 0; i < num; i++) {
+                if (position.isPseudoLegalMoveLegal(buffer[i])) numOfLegal++;
+            }
+            assertEquals(0L, PositionMetrics.getCount(PositionMetrics.INIT_PINS_AND_CHECKERS));
+            assertEquals(position.getAllMoves().length, numOfLegal);
+            assertTrue(num > numOfLegal);
+            assertEquals(1L, PositionMetrics.getCount(PositionMetrics.INIT_PINS_AND_CHECKERS));
+        } finally {
+            PositionMetrics.setEnabled(false);
+            PositionMetrics.reset();
+        }
+    }
+
+    public void testIsLegalMove() throws IOException
+    {
+        for (String fen : PositionTestFiles.getFENs()) {
+            Position position = new Position(fen);
+
+            short[] allMoves = position.getAllMoves();
+            Move.normalizeOrder(allMoves);
+            // try every possible encoding
+            for (int i = Short.MIN_VALUE; i <= Short.MAX_VALUE; i++) {
+                short move = (short)i;
+                boolean isLegal = Arrays.binarySearch(allMoves, move) >= 0;
+                assertEquals("Wrong legality of " + Move.getString(move) + " in position \"" + fen + "\"", isLegal, position.isLegalMove(move));
+            }
+        }
+    }
+
+    public void testSee() throws IOException
+    {
+        // undefended pawn
+        Position position = new Position("1k1r4/1pp4p/p7/4p3/8/P5P1/1PP4P/2K1R3 w - - 0 1");
+        short move = position.getMove(Chess.E1, Chess.E5, Chess.NO_PIECE);
+        assertEquals(100, position.see(move));
+        assertTrue(position.seeGE(move, 100));
+        assertFalse(position.seeGE(move, 101));
+
+        // knight for pawn, x-rays on both sides
+        position = new Position("1k1r3q/1ppn3p/p4b2/4p3/8/P2N2P1/1PP1R1BP/2K1Q3 w - - 0 1");
+        move = position.getMove(Chess.D3, Chess.E5, Chess.NO_PIECE);
+        assertEquals(-200, position.see(move));
+        assertTrue(position.seeGE(move, -200));
+        assertFalse(position.seeGE(move, -199));
+
+        // the threshold variant agrees with the full evaluation
+        for (String fen : PositionTestFiles.getFENs()) {
+            position = new Position(fen);
+            long hashCode = position.getHashCode();
+            for (short m : position.getAllMoves()) {
+                int see = position.see(m);
+                for (int threshold = -1000; threshold <= 1000; threshold += 50) {
+                    assertEquals("seeGE wrong for " + Move.getString(m) + " in position \"" + fen + "\"", see >= threshold, position.seeGE(m, threshold));
+                }
+            }
+            assertEquals("Position changed by see", hashCode, position.getHashCode());
+        }
+    }
+
+    private static void doMoves(Position position, int[] squares) throws Exception
+    {
+        for (int i = 0; i < squares.length; i += 2) {
+            position.doMove(position.getMove(squares[i], squares[i + 1], Chess.NO_PIECE));
+        }
+    }
+
+    public void testZobristKey() throws Exception
+    {
+        for (String fen : PositionTestFiles.getFENs()) {
+            Position position = new Position(fen);
+            long key = position.getZobristKey();
+            assertEquals("Wrong key in position \"" + fen + "\"", Zobrist.getKey(new LightWeightPosition(position)), key);
+
+            for (short move : position.getAllMoves()) {
+                position.doMove(move);
+                assertEquals("Wrong key after " + Move.getString(move) + " in position \"" + fen + "\"",
+                             Zobrist.getKey(new LightWeightPosition(position)), position.getZobristKey());
+                long keyAfter = position.getZobristKey();
+                position.undoMove();
+                assertEquals("Wrong key after undo of " + Move.getString(move) + " in position \"" + fen + "\"", key, position.getZobristKey());
+                position.redoMove();
+                assertEquals("Wrong key after redo of " + Move.getString(move) + " in position \"" + fen + "\"", keyAfter, position.getZobristKey());
+                position.undoMove();
+            }
+        }
+
+        // transpositions have the same key, the player to move is part of the key
+        Position p1 = Position.createInitialPosition();
+        doMoves(p1, new int[] {Chess.G1, Chess.F3, Chess.G8, Chess.F6, Chess.B1, Chess.C3, Chess.B8, Chess.C6});
+        Position p2 = Position.createInitialPosition();
+        doMoves(p2, new int[] {Chess.B1, Chess.C3, Chess.B8, Chess.C6, Chess.G1, Chess.F3, Chess.G8, Chess.F6});
+        assertEquals(p1.getZobristKey(), p2.getZobristKey());
+        p2.setToPlay(Chess.BLACK);
+        assertTrue(p1.getZobristKey() != p2.getZobristKey());
+
+        // the ep square only counts if the pawn can actually be captured
+        Position noCapture = new Position("rnbqkbnr/pppp1ppp/8/8/4p3/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1");
+        doMoves(noCapture, new int[] {Chess.A2, Chess.A4});
+        assertEquals(new Position("rnbqkbnr/pppp1ppp/8/8/P3p3/8/1PPPPPPP/RNBQKBNR b KQkq - 0 1").getZobristKey(), noCapture.getZobristKey());
+        Position capture = new Position("rnbqkbnr/pppp1ppp/8/8/4p3/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1");
+        doMoves(capture, new int[] {Chess.D2, Chess.D4});
+        assertTrue(new Position("rnbqkbnr/pppp1ppp/8/8/3Pp3/8/PPP1PPPP/RNBQKBNR b KQkq - 0 1").getZobristKey() != capture.getZobristKey());
+    }
+
+    /**
+     * Computes the Polyglot key of a FEN by the rules of the Polyglot book format,
+     * independent of the implementation.
+     */
+    private static long getPolyglotKey(String fen, long[] random)
+    {
+        String[] fields = fen.split(" ");
+        char[] board = new char[Chess.NUM_OF_SQUARES];
+        long key = 0L;
+        int row = 7, col = 0;
+        for (char ch : fields[0].toCharArray()) {
+            if (ch == '/') {
+                row--;
+                col = 0;
+            } else if (Character.isDigit(ch)) {
+                col += ch - '0';
+            } else {
+                int kind = 2 * "pnbrqk".indexOf(Character.toLowerCase(ch)) + (Character.isUpperCase(ch) ? 1 : 0);
+                key ^= random[Zobrist.STONE_OFFSET + 64 * kind + 8 * row + col];
+                board[8 * row + col] = ch;
+                col++;
+            }
+        }
+        for (char ch : fields[2].toCharArray()) {
+            if (ch != '-') key ^= random[Zobrist.CASTLE_OFFSET + "KQkq".indexOf(ch)];
+        }
+        boolean whiteToPlay = fields[1].equals("w");
+        if (!fields[3].equals("-")) {
+            // the en passant column only counts if a pawn to play can capture
+            int epCol = fields[3].charAt(0) - 'a';
+            int pawnRow = (whiteToPlay ? 4 : 3);
+            char pawn = (whiteToPlay ? 'P' : 'p');
+            if ((epCol > 0 && board[8 * pawnRow + epCol - 1] == pawn) || (epCol < 7 && board[8 * pawnRow + epCol + 1] == pawn)) {
+                key ^= random[Zobrist.EP_OFFSET + epCol];
+            }
+        }
+        if (whiteToPlay) key ^= random[Zobrist.TO_PLAY_OFFSET];
+        return key;
+    }
+
+    private static URL getLocation(String className) throws ClassNotFoundException
+    {
+        return Class.forName(className).getProtectionDomain().getCodeSource().getLocation();
+    }
+
+    public void testPolyglotKeys() throws Exception
+    {
+        // the reference games of the Polyglot book format, with the positions after each move
+        String[][] games = {
+            {"e2e4", "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e3 0 1",
+             "d7d5", "rnbqkbnr/ppp1pppp/8/3p4/4P3/8/PPPP1PPP/RNBQKBNR w KQkq d6 0 2",
+             "e4e5", "rnbqkbnr/ppp1pppp/8/3pP3/8/8/PPPP1PPP/RNBQKBNR b KQkq - 0 2",
+             "f7f5", "rnbqkbnr/ppp1p1pp/8/3pPp2/8/8/PPPP1PPP/RNBQKBNR w KQkq f6 0 3",
+             "e1e2", "rnbqkbnr/ppp1p1pp/8/3pPp2/8/8/PPPPKPPP/RNBQ1BNR b kq - 0 3",
+             "e8f7", "rnbq1bnr/ppp1pkpp/8/3pPp2/8/8/PPPPKPPP/RNBQ1BNR w - - 0 4"},
+            {"e2e4", "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e3 0 1",
+             "e7e5", "rnbqkbnr/pppp1ppp/8/4p3/4P3/8/PPPP1PPP/RNBQKBNR w KQkq e6 0 2"},
+            {"a2a4", "rnbqkbnr/pppppppp/8/8/P7/8/1PPPPPPP/RNBQKBNR b KQkq a3 0 1",
+             "b7b5", "rnbqkbnr/p1pppppp/8/1p6/P7/8/1PPPPPPP/RNBQKBNR w KQkq b6 0 2",
+             "h2h4", "rnbqkbnr/p1pppppp/8/1p6/P6P/8/1PPPPPP1/RNBQKBNR b KQkq h3 0 2",
+             "b5b4", "rnbqkbnr/p1pppppp/8/8/Pp5P/8/1PPPPPP1/RNBQKBNR w KQkq - 0 3",
+             "c2c4", "rnbqkbnr/p1pppppp/8/8/PpP4P/8/1P1PPPP1/RNBQKBNR b KQkq c3 0 3",
+             "b4c3", "rnbqkbnr/p1pppppp/8/8/P6P/2p5/1P1PPPP1/RNBQKBNR w KQkq - 0 4",
+             "a1a3", "rnbqkbnr/p1pppppp/8/8/P6P/R1p5/1P1PPPP1/1NBQKBNR b Kkq - 1 4"},
+            // losing single castles, not part of the reference games
+            {"h2h4", "rnbqkbnr/pppppppp/8/8/7P/8/PPPPPPP1/RNBQKBNR b KQkq h3 0 1",
+             "a7a5", "rnbqkbnr/1ppppppp/8/p7/7P/8/PPPPPPP1/RNBQKBNR w KQkq a6 0 2",
+             "h1h3", "rnbqkbnr/1ppppppp/8/p7/7P/7R/PPPPPPP1/RNBQKBN1 b Qkq - 1 2",
+             "a8a6", "1nbqkbnr/1ppppppp/r7/p7/7P/7R/PPPPPPP1/RNBQKBN1 w Qk - 2 3"},
+        };
+
+        // a table in the format of the Polyglot sources
+        long[] random = new long[Zobrist.TABLE_LENGTH];
+        Random generator = new Random(4711);
+        File table = File.createTempFile("TestPosition", ".txt");
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(table));
+            for (int i = 0; i < random.length; i++) {
+                random[i] = generator.nextLong();
+                out.println(String.format("    0x%016XULL,", random[i]));
+            }
+            out.close();
+
+            // load a fresh copy of the classes, which reads the table named by the property
+            URLClassLoader loader = new URLClassLoader(new URL[] {
+                getLocation("chesspresso.position.Position"), getLocation("chesspresso.position.TestPosition"),
+                getLocation("org.slf4j.LoggerFactory"), getLocation("org.slf4j.impl.StaticLoggerBinder"),
+                getLocation("org.apache.log4j.Logger")}, null);
+            String property = System.getProperty(Zobrist.TABLE_PROPERTY);
+            ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+            System.setProperty(Zobrist.TABLE_PROPERTY, table.getPath());
+            Thread.currentThread().setContextClassLoader(loader);  // for the logging of the copy
+            Class<?> zobrist;
+            try {
+                zobrist = Class.forName(Zobrist.class.getName(), true, loader);
+            } finally {
+                Thread.currentThread().setContextClassLoader(contextLoader);
+                if (property != null) System.setProperty(Zobrist.TABLE_PROPERTY, property);
+                else System.clearProperty(Zobrist.TABLE_PROPERTY);
+            }
+            assertNotSame(Zobrist.class, zobrist);
+            assertEquals(Boolean.FALSE, zobrist.getMethod("isDefaultTable").invoke(null));
+            assertEquals(Long.valueOf(random[Zobrist.TABLE_LENGTH - 1]), zobrist.getMethod("getRandom", int.class).invoke(null, Zobrist.TABLE_LENGTH - 1));
+
+            Class<?> positionClass = Class.forName(Position.class.getName(), true, loader);
+            Method getMove = positionClass.getMethod("getMove", int.class, int.class, int.class);
+            Method doMove = positionClass.getMethod("doMove", short.class);
+            Method getZobristKey = positionClass.getMethod("getZobristKey");
+            String startFEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+            for (String[] game : games) {
+                Object position = positionClass.getMethod("createInitialPosition").invoke(null);
+                assertEquals(Long.valueOf(getPolyglotKey(startFEN, random)), getZobristKey.invoke(position));
+                for (int i = 0; i < game.length; i += 2) {
+                    String move = game[i], fen = game[i + 1];
+                    Object m = getMove.invoke(position, Chess.strToSqi(move.substring(0, 2)), Chess.strToSqi(move.substring(2)), Chess.NO_PIECE);
+                    doMove.invoke(position, m);
+                    assertEquals("Wrong key after " + move, Long.valueOf(getPolyglotKey(fen, random)), getZobristKey.invoke(position));
+                    assertEquals("Wrong key of \"" + fen + "\"", Long.valueOf(getPolyglotKey(fen, random)),
+                                 getZobristKey.invoke(positionClass.getConstructor(String.class).newInstance(fen)));
+                }
+            }
+        } finally {
+            table.delete();
+        }
+    }
+
+    public void testSAN() throws Exception
+    {
+        for (String fen : PositionTestFiles.getFENs()) {
+            Position position = new Position(fen);
+            short[] moves = position.getAllMoves();
+            String[] sans = position.getSAN(moves, 0, moves.length);
+            for (int i = 0; i < moves.length; i++) {
+                assertEquals("Wrong SAN in position \"" + fen + "\"", position.getSAN(moves[i]), sans[i]);
+                position.doMove(moves[i]);
+                assertEquals("Wrong SAN in position \"" + fen + "\"", position.getLastMove().getSAN(), sans[i]);
+                position.undoMove();
+            }
+        }
+
+        // pinned pieces do not need to be distinguished
+        Position position = new Position("4k3/8/8/8/4r3/8/2N1N3/4K3 w - - 0 1");
+        assertEquals("Nd4", position.getSAN(position.getMove(Chess.C2, Chess.D4, Chess.NO_PIECE)));
+        position = new Position("k7/8/8/8/8/8/8/K1N1N3 w - - 0 1");
+        assertEquals("Ncd3", position.getSAN(position.getMove(Chess.C1, Chess.D3, Chess.NO_PIECE)));
+        position = new Position("7k/8/8/3Q1Q2/8/3Q1Q2/8/K7 w - - 0 1");
+        assertEquals("Qd5e4", position.getSAN(position.getMove(Chess.D5, Chess.E4, Chess.NO_PIECE)));
+        position = new Position("6k1/5ppp/8/8/8/8/8/R5K1 w - - 0 1");
+        assertEquals("Ra8#", position.getSAN(position.getMove(Chess.A1, Chess.A8, Chess.NO_PIECE)));
+
+        // the redo history is kept
+        position = Position.createInitialPosition();
+        doMoves(position, new int[] {Chess.E2, Chess.E4});
+        position.undoMove();
+        position.getSAN(position.getAllMoves(), 0, position.getAllMoves().length);
+        assertTrue(position.canRedoMove());
+    }
+
+    public void testStonesAfterMoves() throws Exception
+    {
+        for (String fen : PositionTestFiles.getFENs()) {
+            Position position = new Position(fen);
+            for (short move : position.getAllMoves()) {
+                position.doMove(move);
+                LightWeightPosition expected = new LightWeightPosition(position);
+                for (short reply : position.getAllMoves()) {
+                    position.doMove(reply);
+                    position.validate();  // includes the mailbox
+                    position.undoMove();
+                }
+                position.undoMove();
+                position.redoMove();
+                for (int sqi = 0; sqi < Chess.NUM_OF_SQUARES; sqi++) {
+                    assertEquals("Wrong stone after " + Move.getString(move) + " in position \"" + fen + "\"",
+                                 expected.getStone(sqi), position.getStone(sqi));
+                }
+                position.undoMove();
+            }
+        }
+    }
+
+    public void testListenersAfterMove() throws Exception
+    {
+        // a listener mirrors the position, it is notified once the move is complete
+        Position position = new Position("r3k2r/8/8/8/1p6/8/P7/R3K2R w KQkq - 0 1");
+        final LightWeightPosition mirror = new LightWeightPosition(position);
+        position.addPositionListener(new PositionListener() {
+            public void squareChanged(int sqi, int stone) {mirror.setStone(sqi, stone);}
+            public void toPlayChanged(int toPlay) {mirror.setToPlay(toPlay);}
+            public void castlesChanged(int castles) {mirror.setCastles(castles);}
+            public void sqiEPChanged(int sqiEP) {mirror.setSqiEP(sqiEP);}
+            public void plyNumberChanged(int plyNumber) {mirror.setPlyNumber(plyNumber);}
+            public void halfMoveClockChanged(int halfMoveClock) {mirror.setHalfMoveClock(halfMoveClock);}
+        });
+        position.doMove(Move.getShortCastle(Chess.WHITE));
+        assertEquals(FEN.getFEN(position), FEN.getFEN(mirror));
+        position.doMove(Move.getLongCastle(Chess.BLACK));
+        assertEquals(FEN.getFEN(position), FEN.getFEN(mirror));
+        doMoves(position, new int[] {Chess.A2, Chess.A4});
+        assertEquals(FEN.getFEN(position), FEN.getFEN(mirror));
+        position.doMove(position.getMove(Chess.B4, Chess.A3, Chess.NO_PIECE));
+        assertEquals(FEN.getFEN(position), FEN.getFEN(mirror));
+        position.undoMove();
+        assertEquals(FEN.getFEN(position), FEN.getFEN(mirror));
+    }
+
+    public void testInitialPosition() throws Exception
+    {
+        Position parsed = new Position();
+        FEN.initFromFEN(parsed, FEN.START_POSITION, true);
+        Position position = Position.createInitialPosition();
+        assertEquals(FEN.START_POSITION, FEN.getFEN(position));
+        assertEquals(parsed.getHashCode(), position.getHashCode());
+        assertEquals(parsed.getZobristKey(), position.getZobristKey());
+        assertEquals(parsed.getPhase(), position.getPhase());
+        assertFalse(position.canUndoMove());
+        assertFalse(position.canRedoMove());
+        position.validate();
+
+        // the stacks are allocated lazily and grow with the moves
+        int[] knightMoves = new int[] {Chess.G1, Chess.F3, Chess.G8, Chess.F6, Chess.F3, Chess.G1, Chess.F6, Chess.G8};
+        for (int i = 0; i < 20; i++) doMoves(position, knightMoves);
+        assertEquals(80, position.getPlyNumber());
+        while (position.canUndoMove()) position.undoMove();
+        assertEquals(FEN.START_POSITION, FEN.getFEN(position));
+        while (position.canRedoMove()) position.redoMove();
+        assertEquals(80, position.getPlyNumber());
+        position.validate();
+
+        assertEquals(FEN.START_POSITION, FEN.getFEN(new Position(FEN.START_POSITION)));
+    }
+
+    public void testPositionPool() throws Exception
+    {
+        Position position = PositionPool.acquire();
+        assertEquals(FEN.START_POSITION, FEN.getFEN(position));
+        doMoves(position, new int[] {Chess.E2, Chess.E4});
+        final int[] notifications = new int[1];
+        position.addPositionListener(new PositionListener() {
+            public void squareChanged(int sqi, int stone) {notifications[0]++;}
+            public void toPlayChanged(int toPlay) {notifications[0]++;}
+            public void castlesChanged(int castles) {notifications[0]++;}
+            public void sqiEPChanged(int sqiEP) {notifications[0]++;}
+            public void plyNumberChanged(int plyNumber) {notifications[0]++;}
+            public void halfMoveClockChanged(int halfMoveClock) {notifications[0]++;}
+        });
+        notifications[0] = 0;
+        PositionPool.release(position);
+
+        String fen = "r3k2r/8/8/8/1p6/8/P7/R3K2R w KQkq - 0 1";
+        Position reused = PositionPool.acquire(fen, true);
+        assertSame(position, reused);
+        assertEquals(fen, FEN.getFEN(reused));
+        assertFalse(reused.canUndoMove());
+        doMoves(reused, new int[] {Chess.A2, Chess.A4});
+        reused.undoMove();
+        assertFalse(reused.canUndoMove());
+        assertEquals("Listener of released position notified", 0, notifications[0]);
+
+        Position other = PositionPool.acquire(reused);
+        assertNotSame(reused, other);
+        assertEquals(fen, FEN.getFEN(other));
+        PositionPool.release(other);
+        PositionPool.release(reused);
+
+        try {
+            PositionPool.acquire("no fen", true);
+            fail("Malformed FEN accepted");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        assertSame(reused, PositionPool.acquire());
+    }
+
+    public void testReplay() throws Exception
+    {
+        // main line with a variation after the first move
+        Position position = Position.createInitialPosition();
+        GameMoveModel model = new GameMoveModel();
+        int[] squares = new int[] {Chess.E2, Chess.E4, Chess.E7, Chess.E5, Chess.G1, Chess.F3, Chess.B8, Chess.C6,
+                                   Chess.F1, Chess.C4, Chess.G8, Chess.F6, Chess.E1, Chess.G1};
+        int index = 0, afterFirstMove = 0;
+        for (int i = 0; i < squares.length; i += 2) {
+            short move = position.getMove(squares[i], squares[i + 1], Chess.NO_PIECE);
+            position.doMove(move);
+            index = model.appendAsRightMostLine(index, move);
+            if (i == 0) afterFirstMove = index;
+        }
+        Position variation = Position.createInitialPosition();
+        doMoves(variation, new int[] {Chess.E2, Chess.E4});
+        model.appendAsRightMostLine(afterFirstMove, variation.getMove(Chess.C7, Chess.C5, Chess.NO_PIECE));
+
+        short[] moves = model.getMainLine();
+        assertEquals(squares.length / 2, moves.length);
+
+        Position expected = Position.createInitialPosition();
+        long[] hashes = new long[moves.length + 1];
+        long[] snapshots = new long[(moves.length + 1) * PositionSnapshot.NUM_OF_LONGS];
+        Position replayed = Position.createInitialPosition();
+        final int[] notifications = new int[1];
+        replayed.addPositionListener(new PositionListener() {
+            public void squareChanged(int sqi, int stone) {notifications[0]++;}
+            public void toPlayChanged(int toPlay) {}
+            public void castlesChanged(int castles) {}
+            public void sqiEPChanged(int sqiEP) {}
+            public void plyNumberChanged(int plyNumber) {}
+            public void halfMoveClockChanged(int halfMoveClock) {}
+        });
+        notifications[0] = 0;
+        assertEquals(moves.length + 1, replayed.replay(moves, 0, moves.length, hashes, snapshots));
+
+        for (int ply = 0; ply <= moves.length; ply++) {
+            assertEquals("Wrong hash at ply " + ply, expected.getHashCode(), hashes[ply]);
+            assertEquals("Wrong snapshot at ply " + ply, expected.snapshot(),
+                         PositionSnapshot.read(snapshots, ply * PositionSnapshot.NUM_OF_LONGS));
+            if (ply < moves.length) expected.doMove(moves[ply]);
+        }
+        assertEquals(FEN.getFEN(expected), FEN.getFEN(replayed));
+        assertEquals(expected.getZobristKey(), replayed.getZobristKey());
+        replayed.validate();
+
+        // only the squares changed in total are notified, once
+        long changed = 0L;
+        Position initial = Position.createInitialPosition();
+        for (int sqi = 0; sqi < Chess.NUM_OF_SQUARES; sqi++) {
+            if (initial.getStone(sqi) != replayed.getStone(sqi)) changed++;
+        }
+        assertEquals(changed, notifications[0]);
+
+        // the moves can be undone, a part can be replayed without output
+        while (replayed.canUndoMove()) replayed.undoMove();
+        assertEquals(FEN.START_POSITION, FEN.getFEN(replayed));
+        assertEquals(3, replayed.replay(moves, 0, 2, null));
+        doMoves(initial, new int[] {Chess.E2, Chess.E4, Chess.E7, Chess.E5});
+        assertEquals(FEN.getFEN(initial), FEN.getFEN(replayed));
+        replayed.validate();
+
+        try {
+            replayed.replay(moves, 0, moves.length, new long[1]);
+            fail("Too short hash array accepted");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    public void testDraws() throws Exception
+    {
+        int[] knightMoves = new int[] {Chess.G1, Chess.F3, Chess.G8, Chess.F6, Chess.F3, Chess.G1, Chess.F6, Chess.G8};
+        Position position = Position.createInitialPosition();
+        assertFalse(position.isRepetition(2));
+        doMoves(position, knightMoves);
+        assertTrue(position.isRepetition(2));
+        assertFalse(position.isRepetition(3));
+        doMoves(position, knightMoves);
+        assertTrue(position.isRepetition(3));
+        position.undoMove();
+        assertTrue(position.isRepetition(2));
+        assertFalse(position.isRepetition(3));
+        position.redoMove();
+        assertTrue(position.isRepetition(3));
+        doMoves(position, new int[] {Chess.E2, Chess.E4});
+        assertFalse(position.isRepetition(2));
+
+        position = new Position("4k3/8/8/8/8/8/4P3/R3K3 w - - 99 80");
+        assertFalse(position.isFiftyMoveDraw());
+        doMoves(position, new int[] {Chess.A1, Chess.A2});
+        assertTrue(position.isFiftyMoveDraw());
+        position = new Position("4k3/8/8/8/8/8/4P3/R3K3 w - - 99 80");
+        doMoves(position, new int[] {Chess.E2, Chess.E3});
+        assertFalse(position.isFiftyMoveDraw());
+        position = new Position("7k/8/6K1/8/8/8/8/R7 w - - 99 80");
+        doMoves(position, new int[] {Chess.A1, Chess.A8});
+        assertFalse(position.isFiftyMoveDraw());  // mate
+
+        assertTrue(new Position("4k3/8/8/8/8/8/8/4K3 w - - 0 1").isInsufficientMaterial());
+        assertTrue(new Position("4k3/8/8/8/8/8/8/3NK3 w - - 0 1").isInsufficientMaterial());
+        assertTrue(new Position("4kb2/8/8/8/8/8/8/2B1K3 w - - 0 1").isInsufficientMaterial());
+        assertFalse(new Position("4k3/8/8/8/8/8/8/2B1K2b w - - 0 1").isInsufficientMaterial());
+        assertFalse(new Position("4k3/8/8/8/8/8/8/2NNK3 w - - 0 1").isInsufficientMaterial());
+        assertFalse(new Position("4k3/8/8/8/8/8/4P3/4K3 w - - 0 1").isInsufficientMaterial());
+        assertFalse(new Position("4k3/8/8/8/8/8/8/3QK3 w - - 0 1").isInsufficientMaterial());
+    }
+
+    public void testKeysAfterMove() throws Exception
+    {
+        for (String fen : PositionTestFiles.getFENs()) {
+            Position position = new Position(fen);
+            short[] moves = position.getAllMoves();
+            for (int i = 0; i <= moves.length; i++) {
+                short move = (i < moves.length ? moves[i] : Move.NULL_MOVE);
+                long hashCode = position.getHashCodeAfter(move);
+                long zobristKey = position.getZobristKeyAfter(move);
+                position.doMove(move);
+                assertEquals("Wrong hash code after " + Move.getString(move) + " in position \"" + fen + "\"", position.getHashCode(), hashCode);
+                assertEquals("Wrong key after " + Move.getString(move) + " in position \"" + fen + "\"", position.getZobristKey(), zobristKey);
+                position.undoMove();
+            }
+        }
+    }
+
+    private static long getAttackedSquares(Position position, int color)
+    {
+        int[][] knightSteps = {{1, 2}, {2, 1}, {2, -1}, {1, -2}, {-1, -2}, {-2, -1}, {-2, 1}, {-1, 2}};
+        int[][] kingSteps = {{1, 1}, {1, 0}, {1, -1}, {0, -1}, {-1, -1}, {-1, 0}, {-1, 1}, {0, 1}};
+        long attacks = 0L;
+        for (int sqi = 0; sqi < Chess.NUM_OF_SQUARES; sqi++) {
+            int stone = position.getStone(sqi);
+            if (stone == Chess.NO_STONE || Chess.stoneToColor(stone) != color) continue;
+            int col = Chess.sqiToCol(sqi), row = Chess.sqiToRow(sqi);
+            int piece = Chess.stoneToPiece(stone);
+            for (int i = 0; i < 8; i++) {
+                boolean diagonal = (kingSteps[i][0] != 0 && kingSteps[i][1] != 0);
+                int[] step = (piece == Chess.KNIGHT ? knightSteps[i] : kingSteps[i]);
+                boolean slides = (piece == Chess.QUEEN || (piece == Chess.BISHOP && diagonal) || (piece == Chess.ROOK && !diagonal));
+                if (piece == Chess.PAWN && !(diagonal && step[1] == (color == Chess.WHITE ? 1 : -1))) continue;
+                if ((piece == Chess.BISHOP && !diagonal) || (piece == Chess.ROOK && diagonal)) continue;
+                for (int c = col + step[0], r = row + step[1]; c >= 0 && c < 8 && r >= 0 && r < 8; c += step[0], r += step[1]) {
+                    attacks |= 1L << Chess.coorToSqi(c, r);
+                    if (!slides || position.getStone(Chess.coorToSqi(c, r)) != Chess.NO_STONE) break;
+                }
+            }
+        }
+        return attacks;
+    }
+
+    public void testAttackedSquares() throws Exception
+    {
+        for (String fen : PositionTestFiles.getFENs()) {
+            Position position = new Position(fen);
+            for (short move : position.getAllMoves()) {
+                for (int step = 0; step < 3; step++) {
+                    if (step == 0) position.doMove(move); else if (step == 1) position.undoMove(); else position.redoMove();
+                    for (int color = Chess.WHITE; color <= Chess.BLACK; color++) {
+                        assertEquals("Wrong attacks of " + color + " after " + Move.getString(move) + " (" + step + ") in position \"" + fen + "\"",
+                                     getAttackedSquares(position, color), position.getAttackedSquares(color));
+                    }
+                }
+                position.undoMove();
+            }
+        }
+    }
+
+    private static void assertEvaluation(String message, Position expected, Position position)
+    {
+        assertEquals("Wrong material " + message, expected.getMaterial(), position.getMaterial());
+        assertEquals("Wrong phase " + message, expected.getPhase(), position.getPhase());
+        assertEquals("Wrong piece-square score " + message, expected.getPieceSquareScore(), position.getPieceSquareScore());
+        assertEquals("Wrong evaluation " + message, expected.getEvaluation(), position.getEvaluation());
+    }
+
+    public void testEvaluation() throws Exception
+    {
+        Position start = Position.createInitialPosition();
+        assertEquals(0, start.getMaterial());
+        assertEquals(Position.MAX_PHASE, start.getPhase());
+        assertEquals(0, start.getPieceSquareScore());
+
+        // arbitrary tables, asymmetric to catch wrong mirroring
+        int[][] middleGame = new int[Chess.MAX_PIECE + 1][Chess.NUM_OF_SQUARES];
+        int[][] endGame = new int[Chess.MAX_PIECE + 1][Chess.NUM_OF_SQUARES];
+        for (int piece = Chess.MIN_PIECE; piece <= Chess.MAX_PIECE; piece++) {
+            for (int sqi = 0; sqi < Chess.NUM_OF_SQUARES; sqi++) {
+                middleGame[piece][sqi] = (sqi * 7 + piece * 13) % 41 - 20;
+                endGame[piece][sqi] = (sqi * 11 + piece * 3) % 29 - 14;
+            }
+        }
+
+        for (String fen : PositionTestFiles.getFENs()) {
+            Position position = new Position(fen);
+            position.setPieceSquareTables(middleGame, endGame);
+            Position original = new Position(fen);
+            original.setPieceSquareTables(middleGame, endGame);
+            for (short move : position.getAllMoves()) {
+                position.doMove(move);
+                Position expected = new Position(FEN.getFEN(position));
+                expected.setPieceSquareTables(middleGame, endGame);
+                assertEvaluation("after " + Move.getString(move) + " in position \"" + fen + "\"", expected, position);
+                position.undoMove();
+                assertEvaluation("after undoing " + Move.getString(move) + " in position \"" + fen + "\"", original, position);
+                position.redoMove();
+                assertEvaluation("after redoing " + Move.getString(move) + " in position \"" + fen + "\"", expected, position);
+                position.undoMove();
+            }
+        }
+    }
+
+    public void testSnapshot() throws Exception
+    {
+        Map<PositionSnapshot, String> fens = new HashMap<PositionSnapshot, String>();
+        long[] column = new long[PositionSnapshot.NUM_OF_LONGS];
+        Position copy = new Position();
+        for (String fen : PositionTestFiles.getFENs()) {
+            Position position = new Position(fen);
+            position.isCheck();  // cached information must not be part of the snapshot
+            PositionSnapshot snapshot = position.snapshot();
+            assertEquals("Wrong snapshot of \"" + fen + "\"", FEN.getFEN(position), FEN.getFEN(snapshot));
+            assertEquals(position.getHashCode(), snapshot.getHashCode());
+            assertEquals(position.getZobristKey(), snapshot.getZobristKey());
+            assertEquals(snapshot, new Position(fen).snapshot());
+            assertTrue(snapshot.isSame(new Position(fen).snapshot()));
+            assertTrue(snapshot.equals(position));
+            assertTrue(position.equals(snapshot));
+            fens.put(snapshot, fen);
+
+            position.snapshot(column, 0);
+            assertTrue(snapshot.isSame(PositionSnapshot.read(column, 0)));
+
+            // the copy must be fully functional
+            copy.set(column, 0);
+            assertEquals(FEN.getFEN(position), FEN.getFEN(copy));
+            assertEquals(position.getHashCode(), copy.getHashCode());
+            assertFalse(copy.canUndoMove());
+            short[] moves = position.getAllMoves();
+            short[] copyMoves = copy.getAllMoves();
+            assertTrue(Arrays.equals(sorted(moves, 0, moves.length), sorted(copyMoves, 0, copyMoves.length)));
+            for (short move : position.getAllMoves()) {
+                position.doMove(move);
+                copy.set(position.snapshot());
+                copy.validate();
+                assertEquals("Wrong position after " + Move.getString(move) + " in \"" + fen + "\"", FEN.getFEN(position), FEN.getFEN(copy));
+                assertEquals(position.isMate(), copy.isMate());
+                position.undoMove();
+            }
+        }
+
+        // snapshots work as keys
+        for (Map.Entry<PositionSnapshot, String> entry : fens.entrySet()) {
+            assertEquals(entry.getValue(), fens.get(new Position(entry.getValue()).snapshot()));
+        }
+        Position position = Position.createInitialPosition();
+        PositionSnapshot start = position.snapshot();
+        fens.put(start, "Start");
+        doMoves(position, new int[] {Chess.G1, Chess.F3, Chess.G8, Chess.F6, Chess.F3, Chess.G1, Chess.F6, Chess.G8});
+        assertTrue(start.equals(position.snapshot()));
+        assertFalse(start.isSame(position.snapshot()));  // same placement, different ply number
+        assertTrue(start.equals(position));
+        assertTrue(position.equals(start));
+        assertEquals("Start", fens.get(position));  // positions find snapshot keys
+    }
+
 }
\ No newline at end of file